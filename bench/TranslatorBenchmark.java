@@ -0,0 +1,127 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Reports and checks the code the translator generates, running it on HackEmulator: the ROM words and cycles of
+ * comparison-heavy programs for each comparison strategy, checking that all strategies compute the same, and the cost
+ * of the function prologue for 0 to 64 locals. The throughput of the translator is measured by the JMH benchmarks in
+ * bench/jmh.
+ * <p>
+ * Usage: java TranslatorBenchmark
+ */
+public class TranslatorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("vm-bench");
+        try {
+            reportComparisonSizes(directory.toFile());
+            reportPrologueCosts();
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Prints the ROM words of comparison-heavy programs for each comparison strategy.
+     */
+    private static void reportComparisonSizes(File directory) throws Exception {
+        System.out.printf("%n%-36s %10s %10s %10s %10s %10s %10s%n", "comparisons per file", "inline", "shared", "auto",
+                "cycles", "", "");
+        for (int comparisons : new int[]{1, 4, 8, 16, 64, 256}) {
+            File program = new File(directory, "Comparisons" + comparisons);
+            if (!program.mkdir()) {
+                throw new IOException("Can't create " + program);
+            }
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(program, "Sys.vm")))) {
+                writer.write("function Sys.init 0\n");
+                for (int i = 0; i < comparisons; i++) {
+                    writer.write("push static " + i % 4 + "\npush constant " + i + "\n" + (i % 3 == 0 ? "eq" :
+                            i % 3 == 1 ? "gt" : "lt") + "\npop static " + (i + 1) % 4 + "\n");
+                }
+                writer.write("label END\ngoto END\n");
+            }
+            String[] strategies = {"inline", "shared", "auto"};
+            long[] cycles = new long[strategies.length];
+            int[] expected = null;
+            System.out.printf("%-36d", comparisons);
+            for (int i = 0; i < strategies.length; i++) {
+                HackAssembler assembler = TestPrograms.assemble(program, "--compare", strategies[i]);
+                HackEmulator emulator = new HackEmulator(assembler.getRom());
+                if (!emulator.run(1_000_000)) {
+                    throw new IllegalStateException(program.getName() + " doesn't halt with --compare " +
+                            strategies[i]);
+                }
+                cycles[i] = emulator.getCycles();
+                // every strategy must leave the same static variables
+                int[] statics = new int[4];
+                for (int j = 0; j < statics.length; j++) {
+                    statics[j] = TestPrograms.peekStatic(emulator, assembler, "Sys." + j);
+                }
+                if (expected == null) {
+                    expected = statics;
+                } else if (!Arrays.equals(expected, statics)) {
+                    throw new IllegalStateException(program.getName() + " computes " + Arrays.toString(statics) +
+                            " with --compare " + strategies[i] + ", " + Arrays.toString(expected) + " with inline");
+                }
+                System.out.printf(" %10d", emulator.getRomSize());
+            }
+            for (long strategyCycles : cycles) {
+                System.out.printf(" %10d", strategyCycles);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Prints the ROM words and cycles the prologue of a function with n locals adds to one with none, checking that it
+     * leaves SP past the locals and the locals set to 0 on a stack filled with garbage.
+     */
+    private static void reportPrologueCosts() throws IOException {
+        System.out.printf("%n%-36s %10s %10s %10s%n", "function prologue locals", "strategy", "words", "cycles");
+        long baseWords = 0;
+        long baseCycles = 0;
+        for (int nVars = 0; nVars <= 64; nVars++) {
+            HackWriter hackWriter = new HackWriter(Channels.newChannel(OutputStream.nullOutputStream()), true, null);
+            try (CodeWriter codeWriter = new CodeWriter(hackWriter, TranslatorOptions.defaults())) {
+                codeWriter.setFileName("Sys");
+                codeWriter.writeFunction("Sys.init", nVars);
+                codeWriter.writeLabel("END");
+                codeWriter.writeGoto("END");
+            }
+            HackEmulator emulator = new HackEmulator(hackWriter.getAssembler().getRom());
+            for (int address = 256; address < 512; address++) {
+                emulator.poke(address, -1);
+            }
+            if (!emulator.run(1_000_000)) {
+                throw new IllegalStateException("The prologue of " + nVars + " locals doesn't halt");
+            }
+            int local = emulator.peek(1);
+            if (emulator.peek(0) != local + nVars) {
+                throw new IllegalStateException("The prologue of " + nVars + " locals leaves SP at " +
+                        emulator.peek(0) + " with LCL at " + local);
+            }
+            for (int i = 0; i < nVars; i++) {
+                if (emulator.peek(local + i) != 0) {
+                    throw new IllegalStateException("The prologue of " + nVars + " locals doesn't zero local " + i);
+                }
+            }
+            if (nVars == 0) {
+                baseWords = emulator.getRomSize();
+                baseCycles = emulator.getCycles();
+            }
+            System.out.printf("%-36d %10s %10d %10d%n", nVars, CodeWriter.usesPrologueLoop(nVars) ? "loop" :
+                    "unrolled", emulator.getRomSize() - baseWords, emulator.getCycles() - baseCycles);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import jmh.Workload;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * The work measured by the JMH benchmarks in bench/jmh, on a generated corpus or a CodeWriter.
+ */
+public class TranslatorWorkload implements Workload {
+
+    // CodeWriter buffers a function until the next one starts, so the writer starts a new function this often
+    private static final int OPS_PER_FUNCTION = 1000;
+    private static final PrintStream NO_REPORTS = new PrintStream(OutputStream.nullOutputStream());
+
+    private Path directory;
+    private File corpus;
+    private TranslatorOptions options;
+    private ForkJoinPool pool;
+    private CodeWriter codeWriter;
+    private WriteOperation operation;
+    private int operations;
+
+    @Override
+    public void generateCorpus(int commands) throws IOException {
+        this.directory = Files.createTempDirectory("vm-bench");
+        this.corpus = new File(this.directory.toFile(), "Corpus");
+        if (!this.corpus.mkdir()) {
+            throw new IOException("Can't create " + this.corpus);
+        }
+        generateCorpus(new File(this.corpus, "Corpus.vm"), commands, new Random(commands));
+        this.options = TranslatorOptions.parse(new String[]{"--no-cache", this.corpus.getPath()});
+        this.pool = new ForkJoinPool(this.options.getThreads());
+    }
+
+    @Override
+    public long parse() throws IOException {
+        long lines = 0;
+        try (Parser parser = new Parser(new File(this.corpus, "Corpus.vm").toPath())) {
+            while (parser.hasMoreLines()) {
+                parser.advance();
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    @Override
+    public long read() throws IOException {
+        Program program = new Program();
+        try (Parser parser = new Parser(new File(this.corpus, "Corpus.vm").toPath())) {
+            program.read(parser, "Corpus");
+        }
+        return program.size();
+    }
+
+    @Override
+    public void translate() throws Exception {
+        if (!VMTranslator.translate(this.options, this.pool, NO_REPORTS)) {
+            throw new IllegalStateException("Can't translate " + this.corpus);
+        }
+    }
+
+    @Override
+    public void openWriter(String method) throws IOException {
+        this.operation = switch (method) {
+            case "writeArithmetic" -> (codeWriter, i) -> codeWriter.writeArithmetic(i % 2 == 0 ? "add" : "eq");
+            case "writePush" -> (codeWriter, i) -> codeWriter.writePushPop(Parser.CommandType.C_PUSH, "local", i % 8);
+            case "writePop" -> (codeWriter, i) -> codeWriter.writePushPop(Parser.CommandType.C_POP, "argument", i % 8);
+            case "writeLabel" -> (codeWriter, i) -> codeWriter.writeLabel("L" + (i & 1023));
+            case "writeGoto" -> (codeWriter, i) -> codeWriter.writeGoto("L" + (i & 1023));
+            case "writeIf" -> (codeWriter, i) -> codeWriter.writeIf("L" + (i & 1023));
+            case "writeFunction" -> (codeWriter, i) -> codeWriter.writeFunction("Bench.f" + (i & 1023), i % 4);
+            case "writeCall" -> (codeWriter, i) -> codeWriter.writeCall("Bench.f", i % 4);
+            case "writeReturn" -> (codeWriter, i) -> codeWriter.writeReturn();
+            default -> throw new IllegalArgumentException("Unknown CodeWriter method: " + method);
+        };
+        this.codeWriter = new CodeWriter(OutputStream.nullOutputStream(), TranslatorOptions.defaults());
+        this.codeWriter.setFileName("Bench");
+        this.operations = 0;
+    }
+
+    @Override
+    public long write() throws IOException {
+        if (this.operations % OPS_PER_FUNCTION == 0) {
+            this.codeWriter.writeFunction("Bench.run", 0);
+        }
+        long before = this.codeWriter.getWrittenInstructions();
+        this.operation.write(this.codeWriter, this.operations++);
+        return this.codeWriter.getWrittenInstructions() - before;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.codeWriter != null) {
+            this.codeWriter.close();
+        }
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+        if (this.directory != null) {
+            try (Stream<Path> files = Files.walk(this.directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Writes a program of the given number of commands, made of functions that mix every command type the way
+     * compiled Jack code does.
+     */
+    static void generateCorpus(File file, int commands, Random random) throws IOException {
+        String[] segments = {"local", "argument", "this", "that", "temp", "static", "pointer"};
+        String[] arithmetic = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            int written = 0;
+            int function = 0;
+            while (written < commands) {
+                writer.write("function Corpus.f" + function++ + " 2");
+                writer.newLine();
+                written++;
+                for (int i = 0; i < 40 && written < commands - 1; i++, written++) {
+                    int kind = random.nextInt(20);
+                    String segment = segments[random.nextInt(segments.length)];
+                    int index = segment.equals("pointer") ? random.nextInt(2) : random.nextInt(8);
+                    String line;
+                    if (kind < 7) {
+                        line = "push constant " + random.nextInt(32768);
+                    } else if (kind < 11) {
+                        line = "push " + segment + " " + index + " // load";
+                    } else if (kind < 13) {
+                        line = "pop " + segment + " " + index;
+                    } else if (kind < 16) {
+                        line = arithmetic[random.nextInt(arithmetic.length)];
+                    } else if (kind == 16) {
+                        line = "label L" + i;
+                    } else if (kind == 17) {
+                        line = "if-goto L" + i;
+                    } else if (kind == 18) {
+                        line = "goto L" + i;
+                    } else {
+                        line = "call Corpus.f" + random.nextInt(function) + " " + random.nextInt(3);
+                    }
+                    writer.write(line);
+                    writer.newLine();
+                }
+                writer.write("return");
+                writer.newLine();
+                written++;
+            }
+        }
+    }
+
+    private interface WriteOperation {
+        void write(CodeWriter codeWriter, int i) throws IOException;
+    }
+}
@@ -0,0 +1,127 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the translator on generated VM corpora of 10K, 1M and 10M commands: lines per second of
+ * Parser.advance and commands per second of Program.read, reported as the "lines" counter, and the end-to-end time of
+ * VMTranslator. Also the instructions per second of each CodeWriter.write* method, reported as the "instructions"
+ * counter.
+ * <p>
+ * Run with "mvn -B test-compile exec:exec", which profiles allocations with -prof gc, so gc.alloc.rate.norm is the
+ * bytes allocated per operation. Other runner options go in jmh.args, e.g. -Djmh.args="-prof gc parserAdvance".
+ */
+@Fork(2)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class TranslatorJmhBenchmark {
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long parserAdvance(Corpus corpus, Lines lines) throws Exception {
+        long read = corpus.workload.parse();
+        lines.lines += read;
+        return read;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long programRead(Corpus corpus, Lines lines) throws Exception {
+        long read = corpus.workload.read();
+        lines.lines += read;
+        return read;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void vmTranslator(Corpus corpus) throws Exception {
+        corpus.workload.translate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long codeWriter(Writer writer, Instructions instructions) throws Exception {
+        long written = writer.workload.write();
+        instructions.instructions += written;
+        return written;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Corpus {
+        @Param({"10000", "1000000", "10000000"})
+        public int commands;
+        private Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.workload = Workload.create();
+            this.workload.generateCorpus(this.commands);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.workload.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        @Param({"writeArithmetic", "writePush", "writePop", "writeLabel", "writeGoto", "writeIf", "writeFunction",
+                "writeCall", "writeReturn"})
+        public String method;
+        private Workload workload;
+
+        // a new writer per iteration, so the output doesn't build up
+        @Setup(Level.Iteration)
+        public void setUp() throws Exception {
+            this.workload = Workload.create();
+            this.workload.openWriter(this.method);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws Exception {
+            this.workload.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Lines {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.lines = 0;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Instructions {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.instructions = 0;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package jmh;
+
+import java.io.IOException;
+
+/**
+ * The work the JMH benchmarks measure. JMH only accepts benchmarks in a named package, which can't refer to the
+ * translator's classes in the unnamed package, so TranslatorWorkload implements this interface next to them.
+ */
+public interface Workload extends AutoCloseable {
+
+    static Workload create() throws ReflectiveOperationException {
+        return (Workload) Class.forName("TranslatorWorkload").getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Writes a program of the given number of commands into a new directory.
+     */
+    void generateCorpus(int commands) throws IOException;
+
+    /**
+     * @return number of lines Parser.advance read from the corpus
+     */
+    long parse() throws IOException;
+
+    /**
+     * @return number of commands Program.read read from the corpus
+     */
+    long read() throws IOException;
+
+    /**
+     * Translates the corpus with VMTranslator, without the translation cache.
+     */
+    void translate() throws Exception;
+
+    /**
+     * Opens a CodeWriter that write calls the method on.
+     *
+     * @param method name of a CodeWriter.write* method, writePush and writePop for the two kinds of writePushPop
+     */
+    void openWriter(String method) throws IOException;
+
+    /**
+     * @return number of instructions the next call of the method wrote
+     */
+    long write() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
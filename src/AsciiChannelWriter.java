@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes ASCII text to a channel through a large direct buffer, narrowing chars to bytes without a charset encoder.
+ * Chars outside of ASCII are written as '?'.
+ */
+public class AsciiChannelWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private boolean closed;
+
+    public AsciiChannelWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            if (!this.buffer.hasRemaining()) {
+                this.drain();
+            }
+            char c = chars[i];
+            this.buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            if (!this.buffer.hasRemaining()) {
+                this.drain();
+            }
+            char c = string.charAt(i);
+            this.buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.drain();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+}
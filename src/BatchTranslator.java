@@ -0,0 +1,161 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Translates many programs in one JVM, so JVM startup and JIT warm-up are paid once per batch instead of once per
+ * program. The jobs are the inputs given on the command line, or the lines of standard input, each holding the
+ * arguments of one job separated by whitespace and added to the flags of the batch:
+ * <pre>
+ * java VMTranslator --batch -O -
+ * FibonacciElement
+ * --stack-cache StaticsTest
+ * </pre>
+ * Jobs run concurrently, each on a thread of its own, while the files of all jobs are translated on one shared
+ * ForkJoinPool. Nothing a translation changes is shared between jobs: label counters belong to each job's CodeWriter
+ * and the translation cache to each output directory, so jobs writing the same output don't belong in one batch. The
+ * --threads of a job is ignored, the batch's applies.
+ * <p>
+ * The reports of each job are printed in job order as soon as the job and all earlier ones are done, followed by a
+ * status line with its latency, the time from its start to its end. The batch ends with its throughput and latency
+ * percentiles, and exits with status 1 if a job failed.
+ */
+public class BatchTranslator {
+
+    public static void run(TranslatorOptions options) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(options.getThreads());
+        ExecutorService jobs = Executors.newFixedThreadPool(options.getThreads());
+        // prints the results in job order, which is also the order the results are taken from this executor
+        ExecutorService printer = Executors.newSingleThreadExecutor();
+        List<Future<JobResult>> printed = new ArrayList<>();
+        try {
+            if (options.getInput().equals(TranslatorOptions.STANDARD_INPUT)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        printed.add(submit(printed.size() + 1, line.trim(), options.forJob(line.trim().split("\\s+")),
+                                pool, jobs, printer));
+                    }
+                }
+            } else {
+                for (String input : options.getInputs()) {
+                    printed.add(submit(printed.size() + 1, input, options.forJob(input), pool, jobs, printer));
+                }
+            }
+
+            long[] latencies = new long[printed.size()];
+            int failed = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                JobResult result = printed.get(i).get();
+                latencies[i] = result.nanos();
+                if (result.error() != null) {
+                    failed++;
+                }
+            }
+            System.out.print(getReport(latencies, failed, System.nanoTime() - start));
+            if (failed > 0) {
+                System.exit(1);
+            }
+        } catch (IOException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            printer.shutdown();
+            jobs.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @param options null if the arguments of the job are invalid
+     * @return prints the result of the job once it is done
+     */
+    private static Future<JobResult> submit(int number, String description, TranslatorOptions options,
+                                            ForkJoinPool pool, ExecutorService jobs, ExecutorService printer) {
+        Future<JobResult> job = jobs.submit(() -> runJob(options, pool));
+        return printer.submit(() -> {
+            JobResult result = job.get();
+            System.out.print(result.reports());
+            if (result.error() == null) {
+                System.out.printf(Locale.ROOT, "job %d ok %s %.3f ms%n", number, description, result.nanos() / 1e6);
+            } else {
+                System.out.printf("job %d failed %s: %s%n", number, description, result.error());
+            }
+            System.out.flush();
+            return result;
+        });
+    }
+
+    private static JobResult runJob(TranslatorOptions options, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream reports = new ByteArrayOutputStream();
+        String error = null;
+        try (PrintStream out = new PrintStream(reports, true, StandardCharsets.UTF_8)) {
+            if (options == null || options.isBatch() ||
+                    options.getInput().equals(TranslatorOptions.STANDARD_INPUT)) {
+                error = "invalid arguments";
+            } else if (!VMTranslator.translate(options, pool, out)) {
+                error = "not a .vm file or a directory with .vm files";
+            }
+        } catch (IOException | ExecutionException | RuntimeException e) {
+            error = rootCause(e).toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e.toString();
+        }
+        return new JobResult(reports.toString(StandardCharsets.UTF_8), System.nanoTime() - start, error);
+    }
+
+    /**
+     * @return the exception that caused the others, e.g. the parse error behind the ExecutionException of a file
+     */
+    private static Throwable rootCause(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static String getReport(long[] latencies, int failed, long nanos) {
+        if (latencies.length == 0) {
+            return "batch: no jobs\n";
+        }
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "batch: %d jobs, %d failed in %.3f s, %.1f jobs/s, latency min %.3f " +
+                        "median %.3f p95 %.3f max %.3f ms%n", latencies.length, failed, nanos / 1e9,
+                latencies.length / (nanos / 1e9), sorted[0] / 1e6, percentile(sorted, 50) / 1e6,
+                percentile(sorted, 95) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    /**
+     * @return the nearest-rank percentile of the sorted values
+     */
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.max((int) Math.ceil(percent / 100.0 * sorted.length) - 1, 0)];
+    }
+
+    /**
+     * @param reports what the translator printed for the job
+     * @param error   why the job failed, null if it succeeded
+     */
+    private record JobResult(String reports, long nanos, String error) {
+    }
+}
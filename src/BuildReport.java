@@ -0,0 +1,150 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Metrics of a translation, written as JSON with --report: per input file the time to parse and to translate it, its
+ * VM commands by type and the Hack instructions written for them (before peephole optimization), and for the whole
+ * program its ROM words, its labels and the functions taking the most ROM words.
+ * <p>
+ * Files reused from the translation cache are marked as cached and have no translate time or instruction counts. They
+ * are still read for the call graph of the program, so they have a parse time and command counts.
+ */
+public class BuildReport {
+
+    private static final int BIGGEST_FUNCTIONS = 20;
+    private static final Parser.CommandType[] COMMAND_TYPES = Parser.CommandType.values();
+
+    private final List<FileMetrics> files = new ArrayList<>();
+
+    /**
+     * @return the metrics of the file, filled in while it is translated
+     */
+    public FileMetrics addFile(String fileName) {
+        FileMetrics metrics = new FileMetrics(fileName);
+        this.files.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * @param assembler has assembled the whole program
+     * @param functions the functions of the program
+     */
+    public void write(Path file, TranslatorOptions options, long nanos, HackAssembler assembler,
+                      Collection<String> functions) throws IOException {
+        List<String> labels = new ArrayList<>(functions);
+        labels.add(CodeWriter.SHARED_ROUTINES_LABEL);
+        List<Map.Entry<String, Integer>> sizes = new ArrayList<>(assembler.getCodeSizes(labels).entrySet());
+        sizes.removeIf(entry -> entry.getKey().equals(CodeWriter.SHARED_ROUTINES_LABEL));
+        sizes.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\n");
+            writer.write("  \"input\": " + quote(options.getInput()) + ",\n");
+            writer.write("  \"options\": " + quote(options.describeCodeGeneration()) + ",\n");
+            writer.write("  \"millis\": " + millis(nanos) + ",\n");
+            writer.write("  \"romWords\": " + assembler.getSize() + ",\n");
+            writer.write("  \"labels\": " + assembler.getLabels().size() + ",\n");
+            writer.write("  \"files\": [");
+            StringJoiner fileEntries = new StringJoiner(",\n", "\n", "\n  ");
+            fileEntries.setEmptyValue("");
+            for (FileMetrics metrics : this.files) {
+                fileEntries.add(metrics.toJson());
+            }
+            writer.write(fileEntries + "],\n");
+            writer.write("  \"biggestFunctions\": [");
+            StringJoiner functionEntries = new StringJoiner(",\n", "\n", "\n  ");
+            functionEntries.setEmptyValue("");
+            for (Map.Entry<String, Integer> entry : sizes.subList(0, Math.min(sizes.size(), BIGGEST_FUNCTIONS))) {
+                functionEntries.add("    {\"function\": " + quote(entry.getKey()) + ", \"romWords\": " +
+                        entry.getValue() + "}");
+            }
+            writer.write(functionEntries + "]\n");
+            writer.write("}\n");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String string) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Metrics of an input file. Each file is read and translated by a single thread.
+     */
+    public static class FileMetrics {
+
+        private final String fileName;
+        private boolean cached;
+        private long parseNanos;
+        private long translateNanos;
+        private final long[] commands = new long[COMMAND_TYPES.length];
+        private final long[] instructions = new long[COMMAND_TYPES.length];
+
+        private FileMetrics(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Counts the commands of the file as read.
+         */
+        public void read(Program program, long nanos) {
+            this.parseNanos += nanos;
+            for (VmFunction function : program.getFunctions()) {
+                CommandList commands = function.getCommands();
+                for (int i = 0; i < commands.size(); i++) {
+                    this.commands[commands.commandType(i).ordinal()]++;
+                }
+            }
+        }
+
+        public void addTranslateTime(long nanos) {
+            this.translateNanos += nanos;
+        }
+
+        public void addInstructions(Parser.CommandType commandType, long instructions) {
+            this.instructions[commandType.ordinal()] += instructions;
+        }
+
+        public void setCached() {
+            this.cached = true;
+        }
+
+        private String toJson() {
+            return "    {\"file\": " + quote(this.fileName) + ", \"cached\": " + this.cached + ", \"parseMillis\": " +
+                    millis(this.parseNanos) + ", \"translateMillis\": " + millis(this.translateNanos) +
+                    ",\n     \"commands\": " + countsToJson(this.commands) + ",\n     \"instructions\": " +
+                    countsToJson(this.instructions) + "}";
+        }
+
+        private static String countsToJson(long[] counts) {
+            StringJoiner json = new StringJoiner(", ", "{", "}");
+            for (Parser.CommandType commandType : COMMAND_TYPES) {
+                json.add(quote(commandType.name()) + ": " + counts[commandType.ordinal()]);
+            }
+            return json.toString();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Functions of the whole program and the functions each of them calls, used to find functions that can never run.
+ * Calls made outside of any function (before the first function of a file) are treated as entry points. Also records
+ * which of THIS and THAT each function sets with pop pointer, see FrameLayouts.
+ */
+public class CallGraph {
+
+    // function name -> functions it calls, in the order the functions are defined
+    private final Map<String, Set<String>> callees = new LinkedHashMap<>();
+    // function name -> name of the file that defines it
+    private final Map<String, String> files = new LinkedHashMap<>();
+    private final Set<String> entryPoints = new LinkedHashSet<>();
+    // function name -> THIS and THAT if the function pops into pointer 0 and 1
+    private final Map<String, Set<CodeWriter.Segment>> pointerWrites = new HashMap<>();
+
+    /**
+     * Scans the functions and calls of the programs of a pass manager, e.g. all files of a directory.
+     */
+    public static final PassManager.Analysis<CallGraph> ANALYSIS = passManager -> of(passManager.getPrograms());
+
+    /**
+     * Scans the functions and calls of programs.
+     */
+    public static CallGraph of(List<Program> programs) {
+        CallGraph callGraph = new CallGraph();
+        for (Program program : programs) {
+            for (VmFunction function : program.getFunctions()) {
+                Set<String> functionCallees = function.getName() == null ? callGraph.entryPoints :
+                        callGraph.callees.computeIfAbsent(function.getName(), k -> new LinkedHashSet<>());
+                if (function.getName() != null) {
+                    callGraph.files.put(function.getName(), function.getFileName());
+                }
+                CommandList commands = function.getCommands();
+                for (int i = 0; i < commands.size(); i++) {
+                    switch (commands.commandType(i)) {
+                        case C_CALL -> functionCallees.add(commands.symbol(i));
+                        case C_POP -> {
+                            if (function.getName() != null && commands.segment(i) == CodeWriter.Segment.POINTER) {
+                                callGraph.pointerWrites.computeIfAbsent(function.getName(),
+                                        k -> EnumSet.noneOf(CodeWriter.Segment.class)).add(commands.arg2(i) == 0 ?
+                                        CodeWriter.Segment.THIS : CodeWriter.Segment.THAT);
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            }
+        }
+        return callGraph;
+    }
+
+    /**
+     * @return the functions that can be reached from the entry function or from calls outside of functions
+     */
+    public Set<String> reachableFrom(String entryFunction) {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(this.entryPoints);
+        pending.add(entryFunction);
+        while (!pending.isEmpty()) {
+            String function = pending.pop();
+            if (reachable.add(function)) {
+                pending.addAll(this.callees.getOrDefault(function, Set.of()));
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * @return the defined functions that are not reachable, in definition order
+     */
+    public List<String> unreachable(Set<String> reachable) {
+        List<String> unreachable = new ArrayList<>();
+        for (String function : this.callees.keySet()) {
+            if (!reachable.contains(function)) {
+                unreachable.add(function);
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * @return the functions the function calls, empty if it calls none or is not defined
+     */
+    public Set<String> callees(String function) {
+        return Collections.unmodifiableSet(this.callees.getOrDefault(function, Set.of()));
+    }
+
+    /**
+     * @return THIS and / or THAT if the function sets them with pop pointer
+     */
+    public Set<CodeWriter.Segment> pointerWrites(String function) {
+        return Collections.unmodifiableSet(this.pointerWrites.getOrDefault(function, Set.of()));
+    }
+
+    /**
+     * @return name of the file defining the function, or null if it is not defined
+     */
+    public String fileOf(String function) {
+        return this.files.get(function);
+    }
+
+    /**
+     * @return the defined functions, in definition order
+     */
+    public Set<String> functions() {
+        return Collections.unmodifiableSet(this.callees.keySet());
+    }
+
+    /**
+     * @return number of defined functions
+     */
+    public int size() {
+        return this.callees.size();
+    }
+}
@@ -2,20 +2,109 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 
 public class CodeWriter implements AutoCloseable {
 
     private static final boolean BOOTSTRAP = true;
-    private static int RETURN_INDEX = 0;
-    private static int AUTO_BRANCH_INDEX = 0;
+    // namespace of the labels created by the bootstrap code, can't clash with a file name
+    private static final String BOOTSTRAP_FILE_NAME = "$bootstrap";
+    private static final String SHARED_CALL_LABEL = "$$CALL";
+    private static final String SHARED_RETURN_LABEL = "$$RETURN";
+    // marks the start of the shared routines written at the end, so they are not counted as part of the last function
+    public static final String SHARED_ROUTINES_LABEL = "$$SHARED";
+    // ROM words of a call / return when inlined, and of a call site / return site using the shared routines
+    private static final int INLINE_CALL_WORDS = 47;
+    private static final int INLINE_RETURN_WORDS = 49;
+    private static final int SHARED_CALL_SITE_WORDS = 12;
+    private static final int SHARED_RETURN_SITE_WORDS = 2;
+    static final int SHARED_ROUTINES_WORDS = 97;
+    // ROM words of a comparison routine, and words saved by each site calling it instead of inlining the comparison
+    private static final int COMPARISON_ROUTINE_WORDS = 14;
+    private static final int SHARED_COMPARISON_SAVED_WORDS = 2;
+    // highest segment index still addressed with an A=A+1 chain, see usesComputedOffset
+    static final int MAX_PUSH_CHAIN_INDEX = 2;
+    static final int MAX_POP_CHAIN_INDEX = 6;
+    static final int MAX_CACHED_POP_CHAIN_INDEX = 10;
+    // most locals a function prologue zeroes unrolled, see usesPrologueLoop
+    static final int MAX_UNROLLED_LOCALS = 16;
     private final BufferedWriter bufferedWriter;
+    // the writer the output goes to if it assembles it, so object files are linked as machine code, null otherwise
+    private final HackWriter hackWriter;
+    private final TranslatorOptions options;
+    // holds the output of a fragment writer, null otherwise
+    private final StringWriter fragmentText;
+    // instructions of the current function, written out (and optimized with -O) at the next function boundary
+    private final List<String> instructions = new ArrayList<>();
+    private final PeepholeOptimizer optimizer = PeepholeOptimizer.withDefaultRules();
+    // per file: number of shared call sites and shared return sites
+    private final Map<String, int[]> sharedCallReturnSites = new LinkedHashMap<>();
+    // comparisons that call their shared routine instead of being inlined, and the number of such sites per kind
+    private final Set<ArithmeticCommand> sharedComparisons = EnumSet.noneOf(ArithmeticCommand.class);
+    private final Map<ArithmeticCommand, Integer> sharedComparisonSites = new EnumMap<>(ArithmeticCommand.class);
     private String fileName;
+    // the function being written, null before the first one
+    private String functionName;
+    // with --profile: the counters, null otherwise
+    private ProfileMap profile;
+    // with --trim-frames: the pointers each function saves, null if every frame is full
+    private FrameLayouts frames;
+    // label counters per file name, so that a file translates the same regardless of the files before it
+    private final Map<String, int[]> labelIndices = new HashMap<>();
+    // return label and comparison label counters of the current file
+    private int[] fileLabelIndices = new int[2];
+    private boolean closed;
+    // with the stack cache enabled: the top of the stack is held in D instead of RAM, SP does not include it
+    private boolean topInD;
+    // constants pushed but not written yet, so the next command can fold them; they are above the top of the stack
+    private final int[] pendingConstants = new int[2];
+    private int pendingConstantCount;
+    // instructions written so far, before peephole optimization
+    private long writtenInstructions;
 
     public CodeWriter(OutputStream out) throws IOException {
-        this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(out));
-        if (BOOTSTRAP) {
-            this.fileName = "Sys";
+        this(out, TranslatorOptions.defaults());
+    }
+
+    public CodeWriter(OutputStream out, TranslatorOptions options) throws IOException {
+        this(new OutputStreamWriter(out), options, null);
+    }
+
+    /**
+     * Writes the program as ASCII bytes straight to the channel.
+     */
+    public CodeWriter(WritableByteChannel out, TranslatorOptions options) throws IOException {
+        this(new AsciiChannelWriter(out), options, null);
+    }
+
+    /**
+     * Writes the program to the writer, e.g. a HackWriter to assemble it.
+     */
+    public CodeWriter(Writer out, TranslatorOptions options) throws IOException {
+        this(out, options, null);
+    }
+
+    private CodeWriter(Writer out, TranslatorOptions options, StringWriter fragmentText) throws IOException {
+        this.bufferedWriter = new BufferedWriter(out);
+        this.hackWriter = out instanceof HackWriter hackWriter ? hackWriter : null;
+        this.options = options;
+        this.fragmentText = fragmentText;
+        if (options.getComparisonStrategy() == TranslatorOptions.ComparisonStrategy.SHARED) {
+            this.sharedComparisons.addAll(EnumSet.of(ArithmeticCommand.EQ, ArithmeticCommand.GT, ArithmeticCommand.LT));
+        }
+        if (BOOTSTRAP && fragmentText == null) {
+            this.setFileName(BOOTSTRAP_FILE_NAME);
             this.write(
                     "@256",
                     "D=A",
@@ -44,12 +133,146 @@ public class CodeWriter implements AutoCloseable {
         }
     }
 
+    /**
+     * Creates a writer that translates one or more files into memory, without bootstrap code. Its output is added to
+     * the program with writeFragment.
+     */
+    public static CodeWriter fragment(TranslatorOptions options) throws IOException {
+        StringWriter fragmentText = new StringWriter();
+        return new CodeWriter(fragmentText, options, fragmentText);
+    }
+
+    /**
+     * Recreates a closed fragment of a single file from the output and shared routine sites of an earlier fragment
+     * writer.
+     *
+     * @param sharedCallReturnSites as returned by getSharedCallReturnSites
+     * @param sharedComparisonSites as returned by getSharedComparisonSites
+     */
+    public static CodeWriter restoreFragment(TranslatorOptions options, String fileName, String text,
+                                             int[] sharedCallReturnSites,
+                                             Map<ArithmeticCommand, Integer> sharedComparisonSites)
+            throws IOException {
+        CodeWriter fragment = fragment(options);
+        fragment.fileName = fileName;
+        fragment.bufferedWriter.write(text);
+        if (sharedCallReturnSites[0] > 0 || sharedCallReturnSites[1] > 0) {
+            fragment.sharedCallReturnSites.put(fileName, sharedCallReturnSites.clone());
+        }
+        fragment.sharedComparisonSites.putAll(sharedComparisonSites);
+        fragment.close();
+        return fragment;
+    }
+
+    /**
+     * Closes the fragment.
+     *
+     * @return the translated code of the fragment
+     */
+    public String getFragmentText() throws IOException {
+        if (this.fragmentText == null) {
+            throw new IllegalStateException("Not a fragment writer");
+        }
+        this.close();
+        return this.fragmentText.toString();
+    }
+
+    /**
+     * @return number of shared call sites and shared return sites written for the file
+     */
+    public int[] getSharedCallReturnSites(String fileName) {
+        return this.sharedCallReturnSites.getOrDefault(fileName, new int[2]).clone();
+    }
+
+    /**
+     * @return number of comparisons calling the shared routine of their kind
+     */
+    public Map<ArithmeticCommand, Integer> getSharedComparisonSites() {
+        return new EnumMap<>(this.sharedComparisonSites);
+    }
+
+    /**
+     * Picks between inlined and shared comparisons when the comparison strategy is AUTO. A kind of comparison calls its
+     * shared routine if it occurs often enough in the file for the routine to pay for itself in ROM words, at the cost
+     * of about 12 more cycles per comparison.
+     *
+     * @param counts number of comparisons of each kind in the file
+     */
+    public void chooseComparisons(Map<ArithmeticCommand, Integer> counts) {
+        if (this.options.getComparisonStrategy() != TranslatorOptions.ComparisonStrategy.AUTO) {
+            return;
+        }
+        counts.forEach((kind, count) -> {
+            if (count * SHARED_COMPARISON_SAVED_WORDS > COMPARISON_ROUTINE_WORDS) {
+                this.sharedComparisons.add(kind);
+            }
+        });
+    }
+
+    /**
+     * Counts the entries, calls and returns of every function in the profile's counters.
+     */
+    public void setProfile(ProfileMap profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Saves and restores only the pointers the layout of the callee asks for. Without layouts, every call saves the
+     * full frame.
+     */
+    public void setFrames(FrameLayouts frames) {
+        this.frames = frames;
+    }
+
     public void setFileName(String fileName) throws IOException {
+        this.spillTop();
         this.fileName = fileName;
+        this.fileLabelIndices = this.labelIndices.computeIfAbsent(fileName, k -> new int[2]);
+    }
+
+    /**
+     * Closes the fragment and appends its output to this writer.
+     */
+    public void writeFragment(CodeWriter fragment) throws IOException {
+        if (fragment.fragmentText == null) {
+            throw new IllegalArgumentException("Not a fragment writer");
+        }
+        this.flush();
+        this.bufferedWriter.write(fragment.getFragmentText());
+        fragment.sharedCallReturnSites.forEach((file, sites) -> {
+            int[] merged = this.sharedCallReturnSites.computeIfAbsent(file, k -> new int[2]);
+            merged[0] += sites[0];
+            merged[1] += sites[1];
+        });
+        fragment.sharedComparisonSites.forEach((kind, sites) -> this.sharedComparisonSites.merge(kind, sites,
+                Integer::sum));
+        this.optimizer.mergeHits(fragment.optimizer);
+    }
+
+    /**
+     * Appends the code of an object file, translated with the same code generation options. Its machine code is added
+     * as is when the output is assembled, otherwise it is written as assembly.
+     */
+    public void writeObject(ObjectFile object) throws IOException {
+        this.flush();
+        if (this.hackWriter != null) {
+            this.bufferedWriter.flush();
+            this.hackWriter.link(object);
+        } else {
+            this.bufferedWriter.write(object.toAssembly());
+        }
+        int[] sites = object.getSharedCallReturnSites();
+        if (sites[0] > 0 || sites[1] > 0) {
+            int[] merged = this.sharedCallReturnSites.computeIfAbsent(object.getFileName(), k -> new int[2]);
+            merged[0] += sites[0];
+            merged[1] += sites[1];
+        }
+        object.getSharedComparisonSites().forEach((kind, count) -> this.sharedComparisonSites.merge(kind, count,
+                Integer::sum));
     }
 
     public void writeComment(String comment) throws IOException {
-        this.bufferedWriter.newLine();
+        this.instructions.add("");
         this.write("// " + comment);
     }
 
@@ -57,14 +280,31 @@ public class CodeWriter implements AutoCloseable {
      * Pops the top one or two values from the stack, performs the operation, and pushes the result back onto the stack.
      */
     public void writeArithmetic(String command) throws IOException {
-        ArithmeticCommand arithmeticCommand = ArithmeticCommand.fromString(command);
+        this.writeArithmetic(ArithmeticCommand.fromString(command));
+    }
+
+    public void writeArithmetic(ArithmeticCommand arithmeticCommand) throws IOException {
+        if (this.writeFoldedArithmetic(arithmeticCommand)) {
+            return;
+        }
+        if (this.options.isStackCache()) {
+            this.writeCachedArithmetic(arithmeticCommand);
+            return;
+        }
 
         switch (arithmeticCommand) {
             case ADD, SUB, EQ, GT, LT, AND, OR -> {
                 // pops 2 off the stack and stores them in D and M. if stack is ordered like: X, Y <-SP. Then D will
                 // equal Y and
                 // M will equal X
-                writeStackPop(true);
+                if (this.pendingConstantCount > 0) {
+                    // Y is a constant, so it is loaded instead of pushed and popped
+                    int y = this.pendingConstants[--this.pendingConstantCount];
+                    this.writePendingConstants();
+                    this.writeConstantIntoD(y);
+                } else {
+                    writeStackPop(true);
+                }
                 writeStackPop(false);
             }
             case NEG, NOT -> writeStackPop(true);
@@ -83,8 +323,74 @@ public class CodeWriter implements AutoCloseable {
         this.writeStackPush();
     }
 
+    /**
+     * Same as writeArithmetic, but the top of the stack is kept in D. Y is the top of the stack and X the value
+     * below it.
+     */
+    private void writeCachedArithmetic(ArithmeticCommand arithmeticCommand) throws IOException {
+        this.writeTopIntoD(); // D = Y
+        switch (arithmeticCommand) {
+            case ADD, SUB, EQ, GT, LT, AND, OR -> {
+                this.write(
+                        "@SP",
+                        "AM=M-1" // M = X
+                );
+                String asmCommands = switch (arithmeticCommand) {
+                    case EQ, GT, LT -> createEqualityCommands(arithmeticCommand);
+                    default -> arithmeticCommand.arithmeticTranslation;
+                };
+                this.write(asmCommands.split("\n"));
+            }
+            case NEG -> this.write("D=-D");
+            case NOT -> this.write("D=!D");
+        }
+        this.topInD = true;
+    }
+
     public void writePushPop(Parser.CommandType command, String segment, int index) throws IOException {
-        Segment segmentEnum = Segment.fromString(segment);
+        this.writePushPop(command, Segment.fromString(segment), index);
+    }
+
+    /**
+     * @param staticFileName the file whose static variables are used by a static push or pop, null for the current file
+     */
+    public void writePushPop(Parser.CommandType command, Segment segment, int index, String staticFileName)
+            throws IOException {
+        if (staticFileName == null || segment != Segment.STATIC) {
+            this.writePushPop(command, segment, index);
+            return;
+        }
+        // the file name only names the static variable here, no labels are created for a push or pop
+        String fileName = this.fileName;
+        this.fileName = staticFileName;
+        try {
+            this.writePushPop(command, segment, index);
+        } finally {
+            this.fileName = fileName;
+        }
+    }
+
+    public void writePushPop(Parser.CommandType command, Segment segmentEnum, int index) throws IOException {
+        if (command == Parser.CommandType.C_PUSH && segmentEnum == Segment.CONSTANT) {
+            this.pushConstant(index);
+            return;
+        }
+        if (command == Parser.CommandType.C_POP && this.writeConstantPop(segmentEnum, index)) {
+            return;
+        }
+        this.writePendingConstants();
+        if (this.options.isStackCache()) {
+            switch (command) {
+                case C_PUSH -> {
+                    this.spillTop();
+                    this.writeLoad(segmentEnum, index);
+                    this.topInD = true;
+                }
+                case C_POP -> this.writeCachedPop(segmentEnum, index);
+                default -> throw new IllegalArgumentException("Unknown command type: " + command);
+            }
+            return;
+        }
         switch (command) {
             case C_PUSH -> writePush(segmentEnum, index);
             case C_POP -> writePop(segmentEnum, index);
@@ -93,45 +399,425 @@ public class CodeWriter implements AutoCloseable {
     }
 
     private void writePush(Segment segment, int index) throws IOException {
+        writeLoad(segment, index);
+        writeStackPush();
+    }
+
+    /**
+     * Loads the value at the segment and index into D
+     */
+    private void writeLoad(Segment segment, int index) throws IOException {
         if (segment == Segment.CONSTANT) {
             this.write(
                     "@" + index,
                     "D=A"
             );
+        } else if (usesComputedOffset(segment, index, MAX_PUSH_CHAIN_INDEX)) {
+            this.write(
+                    "@" + index,
+                    "D=A",
+                    segment.getSegmentAddress(this.fileName, index),
+                    "A=D+M", // A = segment base + index
+                    "D=M"
+            );
         } else {
             writePointToSegment(segment, index, true);
         }
-        writeStackPush();
     }
 
     private void writePop(Segment segment, int index) throws IOException {
+        if (usesComputedOffset(segment, index, MAX_POP_CHAIN_INDEX)) {
+            // D is needed for the popped value, so the address is computed into R13 first
+            this.write(
+                    "@" + index,
+                    "D=A",
+                    segment.getSegmentAddress(this.fileName, index),
+                    "D=D+M",
+                    "@R13",
+                    "M=D" // R13 = segment base + index
+            );
+            writeStackPop(true);
+            this.write(
+                    "@R13",
+                    "A=M",
+                    "M=D"
+            );
+            return;
+        }
         writeStackPop(true);
         writePointToSegment(segment, index, false);
         this.write("M=D");
     }
 
+    private void writeCachedPop(Segment segment, int index) throws IOException {
+        if (!this.topInD) {
+            writePop(segment, index);
+            return;
+        }
+        this.topInD = false;
+        if (usesComputedOffset(segment, index, MAX_CACHED_POP_CHAIN_INDEX)) {
+            this.write(
+                    "@R13",
+                    "M=D", // R13 = value
+                    "@" + index,
+                    "D=A",
+                    segment.getSegmentAddress(this.fileName, index),
+                    "D=D+M",
+                    "@R14",
+                    "M=D", // R14 = segment base + index
+                    "@R13",
+                    "D=M",
+                    "@R14",
+                    "A=M",
+                    "M=D"
+            );
+            return;
+        }
+        writePointToSegment(segment, index, false);
+        this.write("M=D");
+    }
+
+    /**
+     * Makes sure the top of the stack is in D, popping it if it is not cached. It is no longer on the stack
+     * afterwards.
+     */
+    private void writeTopIntoD() throws IOException {
+        this.writePendingConstants();
+        if (!this.topInD) {
+            writeStackPop(true);
+        }
+        this.topInD = false;
+    }
+
+    /**
+     * Writes the cached top of the stack back to the stack. Must be called before anything that can be jumped to or
+     * that reads the stack from RAM.
+     */
+    private void spillTop() throws IOException {
+        this.writePendingConstants();
+        if (this.topInD) {
+            this.topInD = false;
+            writeStackPush();
+        }
+    }
+
+    /**
+     * Defers a push constant until the next command, which may fold it. Only the top two constants are kept, older
+     * ones are written out.
+     */
+    private void pushConstant(int value) throws IOException {
+        if (this.pendingConstantCount == this.pendingConstants.length) {
+            this.writeConstant(this.pendingConstants[0]);
+            this.pendingConstants[0] = this.pendingConstants[1];
+            this.pendingConstantCount--;
+        }
+        this.pendingConstants[this.pendingConstantCount++] = value;
+    }
+
+    private void writePendingConstants() throws IOException {
+        for (int i = 0; i < this.pendingConstantCount; i++) {
+            this.writeConstant(this.pendingConstants[i]);
+        }
+        this.pendingConstantCount = 0;
+    }
+
+    /**
+     * Pushes a constant. 0, 1 and -1 are written straight into the stack slot (or D) since the ALU can produce them.
+     */
+    private void writeConstant(int value) throws IOException {
+        String comp = constantComp(value);
+        if (this.options.isStackCache()) {
+            if (this.topInD) {
+                writeStackPush();
+            }
+            this.writeConstantIntoD(value);
+            this.topInD = true;
+        } else if (comp != null) {
+            this.write(
+                    "@SP",
+                    "M=M+1",
+                    "A=M-1",
+                    "M=" + comp
+            );
+        } else {
+            this.writeConstantIntoD(value);
+            writeStackPush();
+        }
+    }
+
+    /**
+     * Loads any 16-bit value into D, A instructions can only hold 0..32767.
+     */
+    private void writeConstantIntoD(int value) throws IOException {
+        String comp = constantComp(value);
+        if (comp != null) {
+            this.write("D=" + comp);
+        } else if (value >= 0) {
+            this.write("@" + value, "D=A");
+        } else if (value == Short.MIN_VALUE) {
+            this.write("@" + Short.MAX_VALUE, "D=-A", "D=D-1");
+        } else {
+            this.write("@" + -value, "D=-A");
+        }
+    }
+
+    /**
+     * @return the computation producing the value ("0", "1" or "-1"), or null if the ALU can't produce it directly
+     */
+    private static String constantComp(int value) {
+        return switch ((short) value) {
+            case 0 -> "0";
+            case 1 -> "1";
+            case -1 -> "-1";
+            default -> null;
+        };
+    }
+
+    /**
+     * Pops a pending constant straight into the segment.
+     *
+     * @return false if nothing was written since there is no pending constant or the segment needs a computed address
+     */
+    private boolean writeConstantPop(Segment segment, int index) throws IOException {
+        if (this.pendingConstantCount == 0 || segment == Segment.CONSTANT ||
+                usesComputedOffset(segment, index, MAX_POP_CHAIN_INDEX)) {
+            return false;
+        }
+        int value = this.pendingConstants[this.pendingConstantCount - 1];
+        String comp = constantComp(value);
+        if (comp == null && this.topInD) {
+            return false; // D holds the top of the stack
+        }
+        this.pendingConstantCount--;
+        if (comp == null) {
+            this.writeConstantIntoD(value);
+        }
+        this.writePointToSegment(segment, index, false);
+        this.write("M=" + (comp == null ? "D" : comp));
+        return true;
+    }
+
+    /**
+     * Folds operations on pending constants: "push constant 2; push constant 3; add" becomes "push constant 5",
+     * "push constant 7; neg" becomes "push constant -7", and "push constant 1; add" increments the top of the stack in
+     * place.
+     *
+     * @return false if nothing could be folded
+     */
+    private boolean writeFoldedArithmetic(ArithmeticCommand arithmeticCommand) throws IOException {
+        if (this.pendingConstantCount == 0) {
+            return false;
+        }
+        int y = this.pendingConstants[this.pendingConstantCount - 1];
+        switch (arithmeticCommand) {
+            case NEG, NOT -> this.pendingConstants[this.pendingConstantCount - 1] = fold(arithmeticCommand, 0, y);
+            default -> {
+                if (this.pendingConstantCount == 2) {
+                    this.pendingConstants[0] = fold(arithmeticCommand, this.pendingConstants[0], y);
+                    this.pendingConstantCount = 1;
+                } else {
+                    return this.writeConstantOperation(arithmeticCommand, y);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies add, sub, and or with a pending constant as Y to the top of the stack, without popping and pushing it.
+     *
+     * @return false if nothing was written
+     */
+    private boolean writeConstantOperation(ArithmeticCommand arithmeticCommand, int y) throws IOException {
+        String register = this.topInD ? "D" : "M";
+        short value = (short) y;
+        // the result if it doesn't need Y in a register, "" if the top of the stack doesn't change
+        String comp;
+        switch (arithmeticCommand) {
+            case ADD -> comp = value == 0 ? "" : value == 1 ? register + "+1" : value == -1 ? register + "-1" : null;
+            case SUB -> comp = value == 0 ? "" : value == 1 ? register + "-1" : value == -1 ? register + "+1" : null;
+            case AND -> comp = value == 0 ? "0" : value == -1 ? "" : null;
+            case OR -> comp = value == 0 ? "" : value == -1 ? "-1" : null;
+            default -> {
+                return false;
+            }
+        }
+        if (comp == null && this.topInD) {
+            // D holds X, so Y has to come from A
+            boolean subtract = arithmeticCommand == ArithmeticCommand.SUB;
+            if (value >= 0) {
+                this.write("@" + value, switch (arithmeticCommand) {
+                    case ADD -> "D=D+A";
+                    case SUB -> "D=D-A";
+                    case AND -> "D=D&A";
+                    default -> "D=D|A";
+                });
+            } else if (arithmeticCommand != ArithmeticCommand.AND && arithmeticCommand != ArithmeticCommand.OR &&
+                    value != Short.MIN_VALUE) {
+                this.write("@" + -value, subtract ? "D=D+A" : "D=D-A");
+            } else {
+                return false;
+            }
+        } else if (comp == null) {
+            this.writeConstantIntoD(value);
+            this.write(
+                    "@SP",
+                    "A=M-1",
+                    "M=" + arithmeticCommand.arithmeticTranslation.substring(2) // same as D=..., with Y in D and X in M
+            );
+        } else if (!comp.isEmpty()) {
+            if (!this.topInD) {
+                this.write("@SP", "A=M-1");
+            }
+            this.write(register + "=" + comp);
+        }
+        this.pendingConstantCount--;
+        return true;
+    }
+
+    /**
+     * @return the 16-bit result of the operation, Y is the top of the stack and the operand of neg and not. gt and lt
+     * compare the sign of the wrapped difference X - Y, as the code written for them does at runtime
+     */
+    private static int fold(ArithmeticCommand arithmeticCommand, int x, int y) {
+        short a = (short) x;
+        short b = (short) y;
+        return switch (arithmeticCommand) {
+            case ADD -> (short) (a + b);
+            case SUB -> (short) (a - b);
+            case AND -> (short) (a & b);
+            case OR -> (short) (a | b);
+            case NEG -> (short) -b;
+            case NOT -> (short) ~b;
+            case EQ -> a == b ? -1 : 0;
+            case GT -> (short) (a - b) > 0 ? -1 : 0;
+            case LT -> (short) (a - b) < 0 ? -1 : 0;
+        };
+    }
+
+    /**
+     * Decides how LOCAL, ARGUMENT, THIS and THAT are addressed. ROM words (and cycles) per command at index i:
+     * <pre>
+     *          | A=A+1 chain | computed offset
+     *   push   | 8 + i       | 10
+     *   pop    | 7 + i       | 13
+     * </pre>
+     * When the value to pop is already cached in D, the chain costs 3 + i and the computed offset 13.
+     * The chain is kept on ties since it leaves R13 untouched. CodeWriterTest checks the table for indices 0..200.
+     *
+     * @return true if the address should be computed as base + index instead of an A=A+1 chain
+     */
+    static boolean usesComputedOffset(Segment segment, int index, int maxChainIndex) {
+        return segment.shouldReference() && index > maxChainIndex;
+    }
+
     public void writeLabel(String label) throws IOException {
-        this.write(wrapLabel(label));
+        this.spillTop();
+        this.write(wrapLabel(this.scopeLabel(label)));
     }
 
     public void writeGoto(String label) throws IOException {
-        this.write("@" + label, "0;JMP");
+        this.spillTop();
+        this.write("@" + this.scopeLabel(label), "0;JMP");
     }
 
     public void writeIf(String label) throws IOException {
-        this.writeStackPop(true);
-        this.write("@" + label, "D;JNE"); // jump if D is not 0
+        this.writeIf(label, false);
+    }
+
+    /**
+     * @param ifZero if true, jumps if the value is 0 instead of if it is not
+     */
+    public void writeIf(String label, boolean ifZero) throws IOException {
+        if (this.pendingConstantCount > 0) {
+            // the condition is known, so the jump is either always or never taken
+            if ((this.pendingConstants[--this.pendingConstantCount] == 0) == ifZero) {
+                this.writeGoto(label);
+            }
+            return;
+        }
+        this.writeTopIntoD();
+        this.write("@" + this.scopeLabel(label), ifZero ? "D;JEQ" : "D;JNE");
     }
 
     public void writeFunction(String functionName, int nVars) throws IOException {
+        this.spillTop();
+        this.flush();
         this.write(wrapLabel(functionName));
-        for (int i = 0; i < nVars; i++) {
-            this.writePointToSegment(Segment.LOCAL, i, false);
-            this.write("M=0");
+        this.functionName = functionName;
+        this.writeProfileCount(ProfileMap.Counter.ENTRIES);
+        this.writePrologue(nVars);
+    }
+
+    /**
+     * Pushes the function's locals, set to 0. At this point LCL equals SP, so the locals are the words from SP on.
+     */
+    private void writePrologue(int nVars) throws IOException {
+        if (nVars == 0) {
+            return;
+        }
+        if (usesPrologueLoop(nVars)) {
+            String loopLabel = createAutoLabel("LOCALS");
+            this.write(
+                    "@" + nVars,
+                    "D=A",
+                    "@SP",
+                    "M=D+M", // SP += nVars
+                    wrapLabel(loopLabel),
+                    "@SP",
+                    "A=M-D", // D counts down from nVars, so this zeroes LCL first
+                    "M=0",
+                    "@" + loopLabel,
+                    "D=D-1;JGT"
+            );
+        } else if (nVars <= 3) {
+            // SP += nVars one by one, then zero the locals downwards
+            this.write("@SP");
+            for (int i = 1; i < nVars; i++) {
+                this.write("M=M+1");
+            }
+            this.write("AM=M+1");
+            for (int i = 0; i < nVars; i++) {
+                this.write("A=A-1", "M=0");
+            }
+        } else {
+            this.write(
+                    "@" + nVars,
+                    "D=A",
+                    "@SP",
+                    "AM=D+M" // SP += nVars
+            );
+            for (int i = 0; i < nVars; i++) {
+                this.write("A=A-1", "M=0");
+            }
         }
     }
 
+    /**
+     * Decides how a function prologue pushes its nVars locals. ROM words and cycles per call:
+     * <pre>
+     *            | unrolled              | loop
+     *   words    | 3n + 1 (n <= 3)       | 9
+     *            | 2n + 4 (n > 3)        |
+     *   cycles   | same as words         | 5n + 4
+     * </pre>
+     * The unrolled prologue is never slower, the loop only saves ROM words, so it is used once the unrolled one
+     * would be 4 times as long. The cost table for n = 0..64 is printed by TranslatorBenchmark.
+     *
+     * @return true if the locals are zeroed by a counted loop instead of unrolled
+     */
+    static boolean usesPrologueLoop(int nVars) {
+        return nVars > MAX_UNROLLED_LOCALS;
+    }
+
     public void writeCall(String functionName, int nArgs) throws IOException {
+        this.spillTop();
+        this.writeProfileCount(ProfileMap.Counter.CALLS);
+        if (options.isSharedCallReturn()) {
+            writeSharedCall(functionName, nArgs);
+            return;
+        }
+
         // push returnAddress
         String returnLabel = createReturnLabel(functionName);
 
@@ -142,19 +828,23 @@ public class CodeWriter implements AutoCloseable {
 
         this.writePush(Segment.LOCAL, -1); // push LCL to the stack
         this.writePush(Segment.ARGUMENT, -1); // push ARG to the stack
-        this.writePush(Segment.THIS, -1); // push THIS to the stack
-        this.writePush(Segment.THAT, -1); // push THAT to the stack
+        if (this.savesPointer(functionName, Segment.THIS)) {
+            this.writePush(Segment.THIS, -1); // push THIS to the stack
+        }
+        if (this.savesPointer(functionName, Segment.THAT)) {
+            this.writePush(Segment.THAT, -1); // push THAT to the stack
+        }
 
-        // set ARG = SP - (nArgs + 5)
+        // set ARG = SP - (nArgs + frame size), the frame size is 5 unless it is trimmed
         this.write(
                 "@SP",
                 "D=M",
-                "@" + (nArgs + 5),
+                "@" + (nArgs + this.frameSize(functionName)),
                 "D=D-A"
         );
         this.write(
                 "@" + Segment.ARGUMENT.segment,
-                "M=D" // set ARG = SP - (nArgs + 5)
+                "M=D" // set ARG = SP - (nArgs + frame size)
         );
 
         // set LCL = SP
@@ -173,12 +863,129 @@ public class CodeWriter implements AutoCloseable {
     }
 
     public void writeReturn() throws IOException {
+        this.spillTop();
+        this.writeProfileCount(ProfileMap.Counter.RETURNS);
+        if (options.isSharedCallReturn()) {
+            this.write("@" + SHARED_RETURN_LABEL, "0;JMP");
+            this.sharedCallReturnSites.computeIfAbsent(this.fileName, k -> new int[2])[1]++;
+            return;
+        }
+        this.writeReturnBody();
+    }
+
+    /**
+     * Loads nArgs into R13, the callee into R14 and the return address into D, then jumps into the shared call
+     * routine which saves the caller's frame.
+     */
+    private void writeSharedCall(String functionName, int nArgs) throws IOException {
+        String returnLabel = createReturnLabel(functionName);
+        this.write(
+                "@" + nArgs,
+                "D=A",
+                "@R13",
+                "M=D", // R13 = nArgs
+                "@" + functionName,
+                "D=A",
+                "@R14",
+                "M=D", // R14 = address of the callee
+                "@" + returnLabel,
+                "D=A", // D = return address
+                "@" + SHARED_CALL_LABEL,
+                "0;JMP"
+        );
+        this.write(wrapLabel(returnLabel));
+        this.sharedCallReturnSites.computeIfAbsent(this.fileName, k -> new int[2])[0]++;
+    }
+
+    /**
+     * Writes the shared call routine. Expects the return address in D, nArgs in R13 and the callee address in R14.
+     */
+    private void writeSharedCallRoutine() throws IOException {
+        this.write(wrapLabel(SHARED_CALL_LABEL));
+        this.writeStackPush(); // push the return address in D
+        this.writePush(Segment.LOCAL, -1); // push LCL to the stack
+        this.writePush(Segment.ARGUMENT, -1); // push ARG to the stack
+        this.writePush(Segment.THIS, -1); // push THIS to the stack
+        this.writePush(Segment.THAT, -1); // push THAT to the stack
+
+        this.write(
+                "@SP",
+                "D=M",
+                "@R13",
+                "D=D-M",
+                "@5",
+                "D=D-A",
+                "@" + Segment.ARGUMENT.segment,
+                "M=D" // set ARG = SP - (nArgs + 5)
+        );
+        this.write(
+                "@SP",
+                "D=M",
+                "@" + Segment.LOCAL.segment,
+                "M=D" // set LCL = SP
+        );
+        this.write(
+                "@R14",
+                "A=M",
+                "0;JMP" // goto functionName
+        );
+    }
+
+    /**
+     * @return sites and ROM words saved per kind of comparison calling a shared routine, or an empty string if none
+     * did
+     */
+    public String getSharedComparisonReport() {
+        StringBuilder report = new StringBuilder();
+        this.sharedComparisonSites.forEach((kind, sites) -> report.append(String.format(
+                "shared %s: %d sites, %d ROM words saved%n", kind.name().toLowerCase(), sites,
+                sites * SHARED_COMPARISON_SAVED_WORDS - COMPARISON_ROUTINE_WORDS)));
+        return report.toString();
+    }
+
+    /**
+     * @return ROM words saved per file by jumping into the shared call / return routines, or an empty string if
+     * they were not used
+     */
+    public String getSharedCallReturnReport() {
+        if (this.sharedCallReturnSites.isEmpty()) {
+            return "";
+        }
+        StringBuilder report = new StringBuilder();
+        int total = 0;
+        for (Map.Entry<String, int[]> entry : this.sharedCallReturnSites.entrySet()) {
+            int calls = entry.getValue()[0];
+            int returns = entry.getValue()[1];
+            int saved = calls * (INLINE_CALL_WORDS - SHARED_CALL_SITE_WORDS) +
+                    returns * (INLINE_RETURN_WORDS - SHARED_RETURN_SITE_WORDS);
+            total += saved;
+            report.append(String.format("%s: %d calls, %d returns, %d ROM words saved%n", entry.getKey(), calls,
+                    returns, saved));
+        }
+        total -= SHARED_ROUTINES_WORDS;
+        report.append(String.format("total: %d ROM words saved (including shared routines)%n", total));
+        return report.toString();
+    }
+
+    /**
+     * @return true if the frame of the function holds the pointer, always without frame layouts or outside of a
+     * function
+     */
+    private boolean savesPointer(String functionName, Segment pointer) {
+        return this.frames == null || functionName == null || this.frames.saves(functionName, pointer);
+    }
+
+    private int frameSize(String functionName) {
+        return this.frames == null || functionName == null ? 5 : this.frames.frameSize(functionName);
+    }
+
+    private void writeReturnBody() throws IOException {
         this.write(
                 "@LCL",
                 "D=M",
                 "@R13", // R13 is a temporary variable to store the LCL (frame pointer)
                 "M=D",
-                "@5",
+                "@" + this.frameSize(this.functionName),
                 "D=A",
                 "@R13",
                 "A=M-D", // A points to the return address
@@ -202,20 +1009,28 @@ public class CodeWriter implements AutoCloseable {
                 "M=D" // set SP to ARG + 1
         );
 
-        // restore THAT, THIS, ARG, LCL
+        // restore THAT, THIS, ARG, LCL, or those of them the frame holds
+        if (this.savesPointer(this.functionName, Segment.THAT)) {
+            this.write(
+                    "@R13",
+                    "M=M-1", // decrement frame pointer
+                    "A=M",
+                    "D=M", // D = LCL
+                    "@THAT",
+                    "M=D" // restore THAT
+            );
+        }
+        if (this.savesPointer(this.functionName, Segment.THIS)) {
+            this.write(
+                    "@R13",
+                    "M=M-1", // decrement frame pointer
+                    "A=M",
+                    "D=M", // D = LCL
+                    "@THIS",
+                    "M=D" // restore THIS
+            );
+        }
         this.write(
-                "@R13",
-                "M=M-1", // decrement frame pointer
-                "A=M",
-                "D=M", // D = LCL
-                "@THAT",
-                "M=D", // restore THAT
-                "@R13",
-                "M=M-1", // decrement frame pointer
-                "A=M",
-                "D=M", // D = LCL
-                "@THIS",
-                "M=D", // restore THIS
                 "@R13",
                 "M=M-1", // decrement frame pointer
                 "A=M",
@@ -237,7 +1052,22 @@ public class CodeWriter implements AutoCloseable {
         );
     }
 
+    /**
+     * Expects D to hold Y and M to hold X, with SP pointing to X. Leaves the result of the comparison in D.
+     */
     private String createEqualityCommands(ArithmeticCommand arithmeticCommand) {
+        if (this.sharedComparisons.contains(arithmeticCommand)) {
+            this.sharedComparisonSites.merge(arithmeticCommand, 1, Integer::sum);
+            String returnLabel = createAutoLabel("CMP_RET");
+            return new StringJoiner("\n")
+                    .add("M=M-D") // the routine reads X - Y from the top of the stack
+                    .add("@" + returnLabel)
+                    .add("D=A")
+                    .add("@" + comparisonRoutineLabel(arithmeticCommand))
+                    .add("0;JMP")
+                    .add(wrapLabel(returnLabel))
+                    .toString();
+        }
         String eqLabel = createAutoLabel("EQ");
         String afterLabel = createAutoLabel("AFTER_EQ");
         StringJoiner joiner = new StringJoiner("\n");
@@ -254,8 +1084,60 @@ public class CodeWriter implements AutoCloseable {
                 .toString();
     }
 
+    private static String comparisonRoutineLabel(ArithmeticCommand arithmeticCommand) {
+        return "$$" + arithmeticCommand.name();
+    }
+
+    /**
+     * Writes the shared routine of a kind of comparison. Expects the return address in D and X - Y at the top of the
+     * stack, returns the result in D.
+     */
+    private void writeComparisonRoutine(ArithmeticCommand arithmeticCommand) throws IOException {
+        String label = comparisonRoutineLabel(arithmeticCommand);
+        this.write(
+                wrapLabel(label),
+                "@R15",
+                "M=D", // R15 = return address
+                "@SP",
+                "A=M",
+                "D=M", // D = X - Y
+                "@" + label + "$TRUE",
+                "D;" + arithmeticCommand.jumpTranslation,
+                "D=0",
+                "@" + label + "$END",
+                "0;JMP",
+                wrapLabel(label + "$TRUE"),
+                "D=-1",
+                wrapLabel(label + "$END"),
+                "@R15",
+                "A=M",
+                "0;JMP"
+        );
+    }
+
+    /**
+     * With --profile, increments the 32-bit counter of the current function. Changes D.
+     */
+    private void writeProfileCount(ProfileMap.Counter counter) throws IOException {
+        if (this.profile == null || this.functionName == null) {
+            return;
+        }
+        int address = this.profile.counterAddress(this.functionName, counter);
+        String noCarryLabel = createAutoLabel("PROFILE");
+        this.write(
+                "@" + address,
+                "M=M+1",
+                "D=M",
+                "@" + noCarryLabel,
+                "D;JNE", // no carry unless the low word wrapped around to 0
+                "@" + (address + 1),
+                "M=M+1",
+                wrapLabel(noCarryLabel)
+        );
+    }
+
     private String createAutoLabel(String label) {
-        return label + "." + AUTO_BRANCH_INDEX++;
+        return this.fileName + "$" + label + "." + this.fileLabelIndices[1]++;
     }
 
     private String generateFunctionEntryLabel(String functionName) {
@@ -263,7 +1145,15 @@ public class CodeWriter implements AutoCloseable {
     }
 
     private String createReturnLabel(String functionName) {
-        return this.generateFunctionEntryLabel(functionName) + "$ret." + RETURN_INDEX++;
+        return this.generateFunctionEntryLabel(functionName) + "$ret." + this.fileLabelIndices[0]++;
+    }
+
+    /**
+     * @return the label of a label, goto or if-goto command as "functionName$label", since compiled Jack code repeats
+     * labels like WHILE_EXP0 in every function. Labels before the first function are kept as they are
+     */
+    private String scopeLabel(String label) {
+        return this.functionName == null ? label : this.functionName + "$" + label;
     }
 
     private String wrapLabel(String label) {
@@ -295,13 +1185,66 @@ public class CodeWriter implements AutoCloseable {
             if (line == null || line.isBlank()) {
                 continue;
             }
+            if (!line.startsWith("(") && !line.startsWith("//")) {
+                this.writtenInstructions++;
+            }
+            this.instructions.add(line);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (this.options.isOptimize()) {
+            this.optimizer.optimize(this.instructions);
+        }
+        for (String line : this.instructions) {
             this.bufferedWriter.write(line);
             this.bufferedWriter.newLine();
         }
+        this.instructions.clear();
+    }
+
+    /**
+     * @return number of instructions written so far, before peephole optimization. Instructions of a pushed constant
+     * are counted when it is written, which may be with the next command
+     */
+    public long getWrittenInstructions() {
+        return this.writtenInstructions;
+    }
+
+    /**
+     * @return number of rewrites per peephole rule, or an empty string if the optimizer is disabled
+     */
+    public String getPeepholeReport() {
+        if (!this.options.isOptimize()) {
+            return "";
+        }
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : this.optimizer.getHits().entrySet()) {
+            report.append(String.format("peephole %s: %d%n", entry.getKey(), entry.getValue()));
+        }
+        return report.toString();
     }
 
     @Override
     public void close() throws IOException {
+        this.finish();
+    }
+
+    /**
+     * Ends the program with the shared routines and closes the output, so that the reports are complete and writers
+     * that only write when closed, like HackWriter, are done. Closing this writer afterwards does nothing.
+     */
+    public void finish() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.spillTop();
+        if (this.fragmentText != null) {
+            this.flush();
+            this.bufferedWriter.close();
+            return;
+        }
         if (!BOOTSTRAP) {
             this.write(
                     "(END)",
@@ -309,6 +1252,20 @@ public class CodeWriter implements AutoCloseable {
                     "0;JMP"
             );
         }
+        if (!this.sharedComparisonSites.isEmpty() || !this.sharedCallReturnSites.isEmpty()) {
+            this.write(wrapLabel(SHARED_ROUTINES_LABEL));
+        }
+        for (ArithmeticCommand kind : this.sharedComparisonSites.keySet()) {
+            this.writeComment("shared " + kind.name().toLowerCase() + " routine");
+            this.writeComparisonRoutine(kind);
+        }
+        if (!this.sharedCallReturnSites.isEmpty()) {
+            this.writeComment("shared call / return routines");
+            this.writeSharedCallRoutine();
+            this.write(wrapLabel(SHARED_RETURN_LABEL));
+            this.writeReturnBody();
+        }
+        this.flush();
         this.bufferedWriter.close();
     }
 
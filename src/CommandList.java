@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of VM commands packed into longs, 8 bytes per command. Bits 0-3 hold the command type, bits 4-7 the segment
+ * or arithmetic command, or 1 for an if-goto jumping if the value is 0, bits 8-31 the id of the label, function name
+ * or file name of a static and bits 32-63 the second argument. Names are stored once in the Symbols shared by the
+ * lists of a program.
+ * <p>
+ * Command records are only created by get, the other accessors read the packed fields directly.
+ */
+public class CommandList {
+
+    private static final Parser.CommandType[] COMMAND_TYPES = Parser.CommandType.values();
+    private static final CodeWriter.Segment[] SEGMENTS = CodeWriter.Segment.values();
+    private static final CodeWriter.ArithmeticCommand[] ARITHMETIC_COMMANDS = CodeWriter.ArithmeticCommand.values();
+    // VM names of the segments and arithmetic commands, by ordinal
+    private static final String[] SEGMENT_NAMES = Arrays.stream(SEGMENTS).map(segment -> segment.name().toLowerCase())
+            .toArray(String[]::new);
+    private static final String[] ARITHMETIC_NAMES = Arrays.stream(ARITHMETIC_COMMANDS)
+            .map(command -> command.name().toLowerCase()).toArray(String[]::new);
+    private static final int KIND_SHIFT = 4;
+    private static final int SYMBOL_SHIFT = 8;
+    private static final int ARG2_SHIFT = 32;
+    private static final int MAX_SYMBOLS = 1 << (ARG2_SHIFT - SYMBOL_SHIFT);
+
+    private final Symbols symbols;
+    private long[] commands = new long[16];
+    private int size;
+
+    public CommandList(Symbols symbols) {
+        this.symbols = symbols;
+    }
+
+    public void add(VmCommand command) {
+        this.add(pack(command));
+    }
+
+    /**
+     * Adds the current command of the parser, without creating its record.
+     */
+    public void add(Parser parser) {
+        Parser.CommandType commandType = parser.commandType();
+        this.add(switch (commandType) {
+            case C_ARITHMETIC ->
+                    this.pack(commandType, CodeWriter.ArithmeticCommand.fromString(parser.arg1()).ordinal(), null, 0);
+            case C_PUSH, C_POP -> this.pack(commandType, CodeWriter.Segment.fromString(parser.arg1()).ordinal(), null,
+                    parser.arg2());
+            case C_LABEL, C_GOTO, C_IF -> this.pack(commandType, 0, parser.arg1(), 0);
+            case C_FUNCTION, C_CALL -> this.pack(commandType, 0, parser.arg1(), parser.arg2());
+            case C_RETURN -> this.pack(commandType, 0, null, 0);
+        });
+    }
+
+    public void addAll(CommandList other) {
+        if (other.symbols != this.symbols) {
+            for (int i = 0; i < other.size; i++) {
+                this.add(other.get(i));
+            }
+            return;
+        }
+        this.ensureCapacity(this.size + other.size);
+        System.arraycopy(other.commands, 0, this.commands, this.size, other.size);
+        this.size += other.size;
+    }
+
+    public VmCommand get(int index) {
+        this.checkIndex(index);
+        return switch (this.commandType(index)) {
+            case C_ARITHMETIC -> new VmCommand.Arithmetic(this.arithmeticCommand(index));
+            case C_PUSH -> new VmCommand.Push(this.segment(index), this.arg2(index), this.symbol(index));
+            case C_POP -> new VmCommand.Pop(this.segment(index), this.arg2(index), this.symbol(index));
+            case C_LABEL -> new VmCommand.Label(this.symbol(index));
+            case C_GOTO -> new VmCommand.Goto(this.symbol(index));
+            case C_IF -> new VmCommand.IfGoto(this.symbol(index), this.isIfZero(index));
+            case C_FUNCTION -> new VmCommand.Function(this.symbol(index), this.arg2(index));
+            case C_RETURN -> new VmCommand.Return();
+            case C_CALL -> new VmCommand.Call(this.symbol(index), this.arg2(index));
+        };
+    }
+
+    /**
+     * Appends the command as its record's toString would, without creating the record.
+     *
+     * @return the builder
+     */
+    public StringBuilder appendTo(StringBuilder text, int index) {
+        Parser.CommandType commandType = this.commandType(index);
+        switch (commandType) {
+            case C_ARITHMETIC -> text.append(ARITHMETIC_NAMES[this.kind(index)]);
+            case C_PUSH, C_POP -> {
+                text.append(commandType == Parser.CommandType.C_PUSH ? "push " : "pop ")
+                        .append(SEGMENT_NAMES[this.kind(index)]).append(' ').append(this.arg2(index));
+                String fileName = this.symbol(index);
+                if (fileName != null) {
+                    text.append(" (").append(fileName).append(')');
+                }
+            }
+            case C_LABEL -> text.append("label ").append(this.symbol(index));
+            case C_GOTO -> text.append("goto ").append(this.symbol(index));
+            case C_IF -> text.append(this.isIfZero(index) ? "if-zero-goto " : "if-goto ").append(this.symbol(index));
+            case C_FUNCTION -> text.append("function ").append(this.symbol(index)).append(' ').append(this.arg2(index));
+            case C_RETURN -> text.append("return");
+            case C_CALL -> text.append("call ").append(this.symbol(index)).append(' ').append(this.arg2(index));
+        }
+        return text;
+    }
+
+    public void set(int index, VmCommand command) {
+        this.checkIndex(index);
+        this.commands[index] = this.pack(command);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Parser.CommandType commandType(int index) {
+        this.checkIndex(index);
+        return COMMAND_TYPES[(int) (this.commands[index] & 0xf)];
+    }
+
+    /**
+     * @return segment of a push or pop
+     */
+    public CodeWriter.Segment segment(int index) {
+        return SEGMENTS[this.kind(index)];
+    }
+
+    public CodeWriter.ArithmeticCommand arithmeticCommand(int index) {
+        return ARITHMETIC_COMMANDS[this.kind(index)];
+    }
+
+    /**
+     * @return true for an if-goto that jumps if the value is 0, see VmCommand.IfGoto
+     */
+    public boolean isIfZero(int index) {
+        return this.commandType(index) == Parser.CommandType.C_IF && this.kind(index) == 1;
+    }
+
+    /**
+     * @return label of a label, goto or if-goto, name of the function of a function or call, or file name of a push or
+     * pop, null if the command has none
+     */
+    public String symbol(int index) {
+        this.checkIndex(index);
+        return this.symbols.name((int) (this.commands[index] >>> SYMBOL_SHIFT) & (MAX_SYMBOLS - 1));
+    }
+
+    /**
+     * @return index of a push or pop, number of locals of a function or number of arguments of a call
+     */
+    public int arg2(int index) {
+        this.checkIndex(index);
+        return (int) (this.commands[index] >>> ARG2_SHIFT);
+    }
+
+    private int kind(int index) {
+        this.checkIndex(index);
+        return (int) (this.commands[index] >>> KIND_SHIFT) & 0xf;
+    }
+
+    private void add(long command) {
+        this.ensureCapacity(this.size + 1);
+        this.commands[this.size++] = command;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.commands.length) {
+            this.commands = Arrays.copyOf(this.commands, Math.max(capacity, this.commands.length * 2));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+        }
+    }
+
+    private long pack(VmCommand command) {
+        int kind = 0;
+        String symbol = null;
+        int arg2 = 0;
+        if (command instanceof VmCommand.Arithmetic arithmetic) {
+            kind = arithmetic.command().ordinal();
+        } else if (command instanceof VmCommand.Push push) {
+            kind = push.segment().ordinal();
+            symbol = push.fileName();
+            arg2 = push.index();
+        } else if (command instanceof VmCommand.Pop pop) {
+            kind = pop.segment().ordinal();
+            symbol = pop.fileName();
+            arg2 = pop.index();
+        } else if (command instanceof VmCommand.Label label) {
+            symbol = label.label();
+        } else if (command instanceof VmCommand.Goto goTo) {
+            symbol = goTo.label();
+        } else if (command instanceof VmCommand.IfGoto ifGoto) {
+            kind = ifGoto.ifZero() ? 1 : 0;
+            symbol = ifGoto.label();
+        } else if (command instanceof VmCommand.Function function) {
+            symbol = function.name();
+            arg2 = function.nVars();
+        } else if (command instanceof VmCommand.Call call) {
+            symbol = call.function();
+            arg2 = call.nArgs();
+        }
+        return this.pack(command.commandType(), kind, symbol, arg2);
+    }
+
+    private long pack(Parser.CommandType commandType, int kind, String symbol, int arg2) {
+        long symbolId = this.symbols.id(symbol);
+        return commandType.ordinal() | (long) kind << KIND_SHIFT | symbolId << SYMBOL_SHIFT | (long) arg2 << ARG2_SHIFT;
+    }
+
+    /**
+     * Label, function and file names of a program, each stored once and referred to by id. Id 0 is null.
+     */
+    public static class Symbols {
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        public Symbols() {
+            this.id(null);
+        }
+
+        int id(String name) {
+            Integer id = this.ids.get(name);
+            if (id == null) {
+                if (this.names.size() == MAX_SYMBOLS) {
+                    throw new IllegalStateException("More than " + MAX_SYMBOLS + " labels and function names");
+                }
+                id = this.names.size();
+                this.names.add(name);
+                this.ids.put(name, id);
+            }
+            return id;
+        }
+
+        String name(int id) {
+            return this.names.get(id);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The frame layout of every function with --trim-frames: which of THIS and THAT a call to the function saves and its
+ * return restores. LCL and ARG are always saved, since every call sets them.
+ * <p>
+ * Only pop pointer changes THIS or THAT, and every function restores the pointers it changes itself when it returns.
+ * A call therefore leaves a pointer unchanged unless the callee itself pops into it, whatever the callee calls in turn,
+ * so only the callee's own pop pointer commands count. With --inline, a leaf's commands are copied into its callers,
+ * so a function also counts the pop pointer commands of the leaves it calls.
+ * <p>
+ * Functions that are not part of the program, and the entry function, which the bootstrap code calls before the
+ * layouts are known, keep the full frame.
+ */
+public class FrameLayouts {
+
+    // return address, LCL and ARG
+    private static final int FIXED_FRAME_WORDS = 3;
+    private static final Set<CodeWriter.Segment> ALL_POINTERS = EnumSet.of(CodeWriter.Segment.THIS,
+            CodeWriter.Segment.THAT);
+
+    // function name -> pointers its frame saves, in the order the functions are defined
+    private final Map<String, Set<CodeWriter.Segment>> savedPointers = new LinkedHashMap<>();
+
+    /**
+     * Lays out the frames of the functions of the programs of a pass manager, from their CallGraph.ANALYSIS.
+     *
+     * @param inlining      if true, leaves may be inlined into their callers
+     * @param entryFunction the function the bootstrap code calls
+     */
+    public static PassManager.Analysis<FrameLayouts> analysis(boolean inlining, String entryFunction) {
+        return new LayoutAnalysis(inlining, entryFunction);
+    }
+
+    /**
+     * @param inlining      if true, leaves may be inlined into their callers
+     * @param entryFunction the function the bootstrap code calls
+     */
+    public static FrameLayouts of(CallGraph callGraph, boolean inlining, String entryFunction) {
+        FrameLayouts layouts = new FrameLayouts();
+        for (String function : callGraph.functions()) {
+            Set<CodeWriter.Segment> saved = EnumSet.noneOf(CodeWriter.Segment.class);
+            if (function.equals(entryFunction)) {
+                saved.addAll(ALL_POINTERS);
+            }
+            saved.addAll(callGraph.pointerWrites(function));
+            if (inlining) {
+                for (String callee : callGraph.callees(function)) {
+                    if (callGraph.fileOf(callee) != null && callGraph.callees(callee).isEmpty()) {
+                        saved.addAll(callGraph.pointerWrites(callee));
+                    }
+                }
+            }
+            layouts.savedPointers.put(function, saved);
+        }
+        return layouts;
+    }
+
+    /**
+     * @param pointer THIS or THAT
+     * @return true if a call to the function saves the pointer and its return restores it
+     */
+    public boolean saves(String function, CodeWriter.Segment pointer) {
+        return this.savedPointers.getOrDefault(function, ALL_POINTERS).contains(pointer);
+    }
+
+    /**
+     * @return words of the saved frame between the arguments and the locals of the function, 5 for the full frame
+     */
+    public int frameSize(String function) {
+        return FIXED_FRAME_WORDS + this.savedPointers.getOrDefault(function, ALL_POINTERS).size();
+    }
+
+    /**
+     * @return the layouts, so cached translations are only reused while they don't change
+     */
+    public String describe() {
+        return this.savedPointers.toString();
+    }
+
+    /**
+     * @return number of functions per frame size
+     */
+    public String getReport() {
+        int[] functions = new int[ALL_POINTERS.size() + 1];
+        for (Set<CodeWriter.Segment> saved : this.savedPointers.values()) {
+            functions[saved.size()]++;
+        }
+        return String.format("frames: %d functions save neither THIS nor THAT, %d one of them, %d both%n",
+                functions[0], functions[1], functions[2]);
+    }
+
+    private record LayoutAnalysis(boolean inlining, String entryFunction)
+            implements PassManager.Analysis<FrameLayouts> {
+        @Override
+        public FrameLayouts analyze(PassManager passManager) {
+            return of(passManager.getAnalysis(CallGraph.ANALYSIS), this.inlining, this.entryFunction);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles Hack assembly into machine code in memory. Instructions are added one at a time and encoded right away;
+ * A-instructions referring to a symbol are recorded in a fixup table and resolved by finish, once all labels are
+ * known. Symbols that are not labels become variables from address 16 on, in the order they are first used.
+ */
+public class HackAssembler {
+
+    private static final int FIRST_VARIABLE = 16;
+    private static final Map<String, Integer> PREDEFINED_SYMBOLS = new HashMap<>();
+    // comp field (a bit and c bits) of each computation
+    private static final Map<String, Integer> COMPUTATIONS = new HashMap<>();
+    // first spelling of each comp field, to disassemble
+    private static final Map<Integer, String> COMPUTATION_NAMES = new HashMap<>();
+    private static final String[] DESTINATIONS = {"", "M", "D", "MD", "A", "AM", "AD", "AMD"};
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED_SYMBOLS.put("R" + i, i);
+        }
+        PREDEFINED_SYMBOLS.put("SP", 0);
+        PREDEFINED_SYMBOLS.put("LCL", 1);
+        PREDEFINED_SYMBOLS.put("ARG", 2);
+        PREDEFINED_SYMBOLS.put("THIS", 3);
+        PREDEFINED_SYMBOLS.put("THAT", 4);
+        PREDEFINED_SYMBOLS.put("SCREEN", 16384);
+        PREDEFINED_SYMBOLS.put("KBD", 24576);
+
+        addComputation("0", 0b0101010);
+        addComputation("1", 0b0111111);
+        addComputation("-1", 0b0111010);
+        addComputation("D", 0b0001100);
+        addComputation("A", 0b0110000);
+        addComputation("!D", 0b0001101);
+        addComputation("!A", 0b0110001);
+        addComputation("-D", 0b0001111);
+        addComputation("-A", 0b0110011);
+        addComputation("D+1", 0b0011111);
+        addComputation("A+1", 0b0110111);
+        addComputation("D-1", 0b0001110);
+        addComputation("A-1", 0b0110010);
+        addComputation("D+A", 0b0000010);
+        addComputation("A+D", 0b0000010);
+        addComputation("D-A", 0b0010011);
+        addComputation("A-D", 0b0000111);
+        addComputation("D&A", 0b0000000);
+        addComputation("A&D", 0b0000000);
+        addComputation("D|A", 0b0010101);
+        addComputation("A|D", 0b0010101);
+    }
+
+    // in the order they are defined, which is ROM order
+    private final Map<String, Integer> labels = new LinkedHashMap<>();
+    // symbols used by A-instructions, numbered in order of first use
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+    private final List<String> symbols = new ArrayList<>();
+    // ROM address and symbol id of each A-instruction referring to a symbol
+    private int[] fixups = new int[256];
+    private int fixupCount;
+    // open addressing table of the C-instructions seen so far and their code, as programs repeat the same few. Looked
+    // up by the characters of the line, so that no string is created for them
+    private String[] cInstructions = new String[64];
+    private int[] cInstructionCodes = new int[64];
+    private int cInstructionCount;
+    private final Map<String, Integer> variables = new LinkedHashMap<>();
+    private short[] rom = new short[1024];
+    private int size;
+    private boolean finished;
+
+    /**
+     * Assembles a whole .asm file.
+     */
+    public static HackAssembler assemble(Path asmFile) throws IOException {
+        HackAssembler assembler = new HackAssembler();
+        try (BufferedReader reader = Files.newBufferedReader(asmFile, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                assembler.add(line);
+            }
+        }
+        assembler.finish();
+        return assembler;
+    }
+
+    /**
+     * Adds a line of assembly: an instruction, a label, a comment or an empty line.
+     */
+    public void add(String line) {
+        if (this.finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        int start = 0;
+        int end = line.indexOf("//");
+        if (end == -1) {
+            end = line.length();
+        }
+        while (start < end && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+        char first = line.charAt(start);
+        if (first == '(') {
+            if (line.charAt(end - 1) != ')') {
+                throw new IllegalArgumentException("Invalid label: " + line);
+            }
+            String label = line.substring(start + 1, end - 1);
+            if (this.labels.putIfAbsent(label, this.size) != null || PREDEFINED_SYMBOLS.containsKey(label)) {
+                throw new IllegalArgumentException("Duplicate label: " + label);
+            }
+        } else if (first == '@') {
+            this.addAInstruction(line, start + 1, end);
+        } else {
+            this.addWord(this.cInstructionCode(line, start, end));
+        }
+    }
+
+    /**
+     * Resolves the symbols of all A-instructions. No instructions can be added afterwards.
+     */
+    public void finish() {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+        int[] addresses = new int[this.symbols.size()];
+        for (int id = 0; id < addresses.length; id++) {
+            String symbol = this.symbols.get(id);
+            Integer address = this.labels.get(symbol);
+            if (address == null) {
+                address = FIRST_VARIABLE + this.variables.size();
+                this.variables.put(symbol, address);
+            }
+            addresses[id] = address;
+        }
+        for (int i = 0; i < this.fixupCount; i += 2) {
+            this.rom[this.fixups[i]] = (short) addresses[this.fixups[i + 1]];
+        }
+    }
+
+    /**
+     * Turns the instructions added so far into an object file: A-instructions referring to a label added so far are
+     * relocated to it, all other symbols are left to the program the object is linked into. Unlike finish, allocates
+     * no variables.
+     *
+     * @param options code generation options of the translation, to check them when linking
+     */
+    public ObjectFile toObject(String fileName, String options, int[] sharedCallReturnSites,
+                               Map<CodeWriter.ArithmeticCommand, Integer> sharedComparisonSites) {
+        if (this.finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        String[] labels = this.labels.keySet().toArray(new String[0]);
+        int[] labelOffsets = new int[labels.length];
+        Map<String, Integer> labelIndices = new HashMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            labelOffsets[i] = this.labels.get(labels[i]);
+            labelIndices.put(labels[i], i);
+        }
+        Map<String, Integer> externalSymbols = new LinkedHashMap<>();
+        int[] relocations = new int[this.fixupCount];
+        for (int i = 0; i < this.fixupCount; i += 2) {
+            String symbol = this.symbols.get(this.fixups[i + 1]);
+            Integer label = labelIndices.get(symbol);
+            relocations[i] = this.fixups[i];
+            relocations[i + 1] = label != null ? label :
+                    -1 - externalSymbols.computeIfAbsent(symbol, k -> externalSymbols.size());
+        }
+        return new ObjectFile(fileName, options, sharedCallReturnSites.clone(), sharedComparisonSites, labels,
+                labelOffsets, externalSymbols.keySet().toArray(new String[0]), Arrays.copyOf(this.rom, this.size),
+                relocations);
+    }
+
+    /**
+     * Appends the code of an object file, as if its assembly had been added line by line.
+     */
+    public void addObject(ObjectFile object) {
+        if (this.finished) {
+            throw new IllegalStateException("Already finished");
+        }
+        int base = this.size;
+        String[] labels = object.getLabels();
+        int[] labelOffsets = object.getLabelOffsets();
+        for (int i = 0; i < labels.length; i++) {
+            if (this.labels.putIfAbsent(labels[i], base + labelOffsets[i]) != null) {
+                throw new IllegalArgumentException("Duplicate label: " + labels[i]);
+            }
+        }
+        for (short word : object.getCode()) {
+            this.addWord(word);
+        }
+        // in code order, so that variables are numbered as if the assembly had been added
+        int[] relocations = object.getRelocations();
+        for (int i = 0; i < relocations.length; i += 2) {
+            int target = relocations[i + 1];
+            if (target >= 0) {
+                this.rom[base + relocations[i]] = (short) (base + labelOffsets[target]);
+            } else {
+                this.addFixup(base + relocations[i], object.getSymbols()[-1 - target]);
+            }
+        }
+    }
+
+    /**
+     * @return the machine code, one instruction per word
+     */
+    public short[] getRom() {
+        this.finish();
+        return Arrays.copyOf(this.rom, this.size);
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return ROM address of each label
+     */
+    public Map<String, Integer> getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * Splits the ROM at the given labels, e.g. the function names.
+     *
+     * @return ROM words from each defined label to the next one or to the end of the ROM, in ROM order
+     */
+    public Map<String, Integer> getCodeSizes(Collection<String> labels) {
+        List<String> starts = new ArrayList<>();
+        for (String label : labels) {
+            if (this.labels.containsKey(label)) {
+                starts.add(label);
+            }
+        }
+        starts.sort(Comparator.comparingInt(this.labels::get));
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        for (int i = 0; i < starts.size(); i++) {
+            int end = i + 1 < starts.size() ? this.labels.get(starts.get(i + 1)) : this.size;
+            sizes.put(starts.get(i), end - this.labels.get(starts.get(i)));
+        }
+        return sizes;
+    }
+
+    /**
+     * @return RAM address of each variable, e.g. the static variables
+     */
+    public Map<String, Integer> getVariables() {
+        this.finish();
+        return this.variables;
+    }
+
+    /**
+     * @param start index of the first character after the "@"
+     */
+    private void addAInstruction(String line, int start, int end) {
+        if (start < end && Character.isDigit(line.charAt(start))) {
+            int constant = 0;
+            for (int i = start; i < end; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new IllegalArgumentException("Invalid constant: " + line);
+                }
+                constant = constant * 10 + c - '0';
+                if (constant > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("Constant out of range: " + line);
+                }
+            }
+            this.addWord(constant);
+            return;
+        }
+        String value = line.substring(start, end);
+        Integer address = PREDEFINED_SYMBOLS.get(value);
+        if (address != null) {
+            this.addWord(address);
+            return;
+        }
+        this.addFixup(this.size, value);
+        this.addWord(0);
+    }
+
+    private void addFixup(int address, String symbol) {
+        Integer id = this.symbolIds.get(symbol);
+        if (id == null) {
+            id = this.symbols.size();
+            this.symbolIds.put(symbol, id);
+            this.symbols.add(symbol);
+        }
+        if (this.fixupCount == this.fixups.length) {
+            this.fixups = Arrays.copyOf(this.fixups, this.fixupCount * 2);
+        }
+        this.fixups[this.fixupCount++] = address;
+        this.fixups[this.fixupCount++] = id;
+    }
+
+    private int cInstructionCode(String line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        int mask = this.cInstructions.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        for (String instruction; (instruction = this.cInstructions[slot]) != null; slot = (slot + 1) & mask) {
+            if (instruction.length() == end - start && line.startsWith(instruction, start)) {
+                return this.cInstructionCodes[slot];
+            }
+        }
+        String instruction = line.substring(start, end);
+        int code = encodeCInstruction(instruction);
+        this.cInstructions[slot] = instruction;
+        this.cInstructionCodes[slot] = code;
+        if (++this.cInstructionCount * 2 > this.cInstructions.length) {
+            String[] instructions = this.cInstructions;
+            int[] codes = this.cInstructionCodes;
+            this.cInstructions = new String[instructions.length * 2];
+            this.cInstructionCodes = new int[instructions.length * 2];
+            mask = this.cInstructions.length - 1;
+            for (int i = 0; i < instructions.length; i++) {
+                if (instructions[i] != null) {
+                    int h = instructions[i].hashCode();
+                    int newSlot = (h ^ h >>> 16) & mask;
+                    while (this.cInstructions[newSlot] != null) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    this.cInstructions[newSlot] = instructions[i];
+                    this.cInstructionCodes[newSlot] = codes[i];
+                }
+            }
+        }
+        return code;
+    }
+
+    private void addWord(int word) {
+        if (this.size == this.rom.length) {
+            this.rom = Arrays.copyOf(this.rom, this.size * 2);
+        }
+        this.rom[this.size++] = (short) word;
+    }
+
+    /**
+     * @return the instruction as assembly, symbols as addresses
+     */
+    public static String disassemble(short word) {
+        int instruction = word & 0xffff;
+        if ((instruction & 0x8000) == 0) {
+            return "@" + instruction;
+        }
+        String comp = COMPUTATION_NAMES.get(instruction >> 6 & 0x7f);
+        if (comp == null) {
+            throw new IllegalArgumentException("Invalid instruction: " + Integer.toBinaryString(instruction));
+        }
+        String dest = DESTINATIONS[instruction >> 3 & 0b111];
+        String jump = JUMPS[instruction & 0b111];
+        return (dest.isEmpty() ? "" : dest + "=") + comp + (jump.isEmpty() ? "" : ";" + jump);
+    }
+
+    /**
+     * @param instruction "dest=comp;jump", dest and jump are optional
+     */
+    private static int encodeCInstruction(String instruction) {
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String dest = equals == -1 ? "" : instruction.substring(0, equals);
+        String comp = instruction.substring(equals + 1, semicolon == -1 ? instruction.length() : semicolon);
+        String jump = semicolon == -1 ? "" : instruction.substring(semicolon + 1);
+
+        Integer compBits = COMPUTATIONS.get(comp);
+        if (compBits == null) {
+            throw new IllegalArgumentException("Invalid computation: " + instruction);
+        }
+        int destBits = 0;
+        for (int i = 0; i < dest.length(); i++) {
+            int bit = switch (dest.charAt(i)) {
+                case 'A' -> 0b100;
+                case 'D' -> 0b010;
+                case 'M' -> 0b001;
+                default -> throw new IllegalArgumentException("Invalid destination: " + instruction);
+            };
+            if ((destBits & bit) != 0) {
+                throw new IllegalArgumentException("Invalid destination: " + instruction);
+            }
+            destBits |= bit;
+        }
+        int jumpBits = Arrays.asList(JUMPS).indexOf(jump);
+        if (jumpBits == -1) {
+            throw new IllegalArgumentException("Invalid jump: " + instruction);
+        }
+        return 0b111 << 13 | compBits << 6 | destBits << 3 | jumpBits;
+    }
+
+    /**
+     * Adds a computation on A, and the same computation on M (with the a bit set) if it uses A.
+     */
+    private static void addComputation(String comp, int bits) {
+        COMPUTATIONS.put(comp, bits);
+        COMPUTATION_NAMES.putIfAbsent(bits, comp);
+        if (comp.indexOf('A') != -1) {
+            COMPUTATIONS.put(comp.replace('A', 'M'), bits | 0b1000000);
+            COMPUTATION_NAMES.putIfAbsent(bits | 0b1000000, comp.replace('A', 'M'));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Runs Hack machine code. Each instruction is decoded once, when the emulator is created, into an int: the value of
+ * an A-instruction, or for a C-instruction a negative int holding the comp, dest and jump fields. The loop then only
+ * switches on the comp field.
+ * <p>
+ * A program has halted when it reaches an infinite loop "(L) @L 0;JMP", as used at the end of programs, or runs past
+ * the end of the ROM.
+ */
+public class HackEmulator {
+
+    public static final int RAM_SIZE = 1 << 15;
+    private static final int STACK_BASE = 256;
+    private static final int C_INSTRUCTION = 1 << 31;
+    // set on the jump of an "(L) @L 0;JMP" loop
+    private static final int HALT = 1 << 20;
+    private static final int DEST_SHIFT = 8;
+    private static final int JUMP_SHIFT = 16;
+
+    private final int[] code;
+    private final int[] ram = new int[RAM_SIZE];
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+    private int peakStackPointer;
+    private boolean halted;
+    // instructions executed per ROM address, null unless counted
+    private long[] instructionCounts;
+    // told about every jump taken, null unless set
+    private JumpListener jumpListener;
+
+    public HackEmulator(short[] rom) {
+        this.code = new int[rom.length];
+        for (int i = 0; i < rom.length; i++) {
+            int instruction = rom[i] & 0xffff;
+            if ((instruction & 0x8000) == 0) {
+                this.code[i] = instruction;
+                continue;
+            }
+            int comp = instruction >> 6 & 0x7f;
+            int dest = instruction >> 3 & 0b111;
+            int jump = instruction & 0b111;
+            if (!isValidComputation(comp)) {
+                throw new IllegalArgumentException("Invalid instruction at ROM address " + i + ": " +
+                        Integer.toBinaryString(instruction));
+            }
+            boolean halts = jump == 0b111 && i > 0 && this.code[i - 1] == i - 1;
+            this.code[i] = C_INSTRUCTION | (halts ? HALT : 0) | jump << JUMP_SHIFT | dest << DEST_SHIFT | comp;
+        }
+    }
+
+    /**
+     * Runs until the program halts or the number of executed instructions reaches maxCycles, counting the
+     * instructions executed by earlier runs. Can be called again to continue.
+     *
+     * @return true if the program halted
+     * @throws IllegalStateException if the program reads or writes M with A outside of the RAM
+     */
+    public boolean run(long maxCycles) {
+        int[] code = this.code;
+        int[] ram = this.ram;
+        long[] instructionCounts = this.instructionCounts;
+        JumpListener jumpListener = this.jumpListener;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long cycles = this.cycles;
+        int peak = this.peakStackPointer;
+        boolean halted = this.halted;
+        try {
+            while (!halted && cycles < maxCycles) {
+                if (pc >= code.length) {
+                    halted = true;
+                    break;
+                }
+                int instruction = code[pc];
+                cycles++;
+                if (instructionCounts != null) {
+                    instructionCounts[pc]++;
+                }
+                if (instruction >= 0) {
+                    a = instruction;
+                    pc++;
+                    continue;
+                }
+                int out = (short) switch (instruction & 0x7f) {
+                    case 0b0101010 -> 0;
+                    case 0b0111111 -> 1;
+                    case 0b0111010 -> -1;
+                    case 0b0001100 -> d;
+                    case 0b0110000 -> a;
+                    case 0b1110000 -> ram[a];
+                    case 0b0001101 -> ~d;
+                    case 0b0110001 -> ~a;
+                    case 0b1110001 -> ~ram[a];
+                    case 0b0001111 -> -d;
+                    case 0b0110011 -> -a;
+                    case 0b1110011 -> -ram[a];
+                    case 0b0011111 -> d + 1;
+                    case 0b0110111 -> a + 1;
+                    case 0b1110111 -> ram[a] + 1;
+                    case 0b0001110 -> d - 1;
+                    case 0b0110010 -> a - 1;
+                    case 0b1110010 -> ram[a] - 1;
+                    case 0b0000010 -> d + a;
+                    case 0b1000010 -> d + ram[a];
+                    case 0b0010011 -> d - a;
+                    case 0b1010011 -> d - ram[a];
+                    case 0b0000111 -> a - d;
+                    case 0b1000111 -> ram[a] - d;
+                    case 0b0000000 -> d & a;
+                    case 0b1000000 -> d & ram[a];
+                    case 0b0010101 -> d | a;
+                    case 0b1010101 -> d | ram[a];
+                    default -> throw new IllegalStateException("Invalid computation at ROM address " + pc);
+                };
+                int dest = instruction >> DEST_SHIFT;
+                if ((dest & 0b001) != 0) {
+                    ram[a] = out;
+                    if (a == 0 && out > peak) {
+                        peak = out;
+                    }
+                }
+                if ((dest & 0b010) != 0) {
+                    d = out;
+                }
+                int target = a; // the jump goes to A as it was before this instruction
+                if ((dest & 0b100) != 0) {
+                    a = out;
+                }
+                int jump = instruction >> JUMP_SHIFT & 0b111;
+                if ((jump & (out < 0 ? 0b100 : out == 0 ? 0b010 : 0b001)) != 0) {
+                    halted = (instruction & HALT) != 0;
+                    pc = target;
+                    if (jumpListener != null) {
+                        jumpListener.jumped(target, cycles);
+                    }
+                } else {
+                    pc++;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("RAM address " + a + " out of range at ROM address " + pc, e);
+        } finally {
+            this.a = a;
+            this.d = d;
+            this.pc = pc;
+            this.cycles = cycles;
+            this.peakStackPointer = peak;
+            this.halted = halted;
+        }
+        return halted;
+    }
+
+    /**
+     * Counts the instructions executed at each ROM address from now on, e.g. to attribute cycles to functions.
+     */
+    public void countInstructions() {
+        if (this.instructionCounts == null) {
+            this.instructionCounts = new long[this.code.length];
+        }
+    }
+
+    /**
+     * @return instructions executed at the ROM address since countInstructions was called
+     */
+    public long getInstructionCount(int address) {
+        return this.instructionCounts == null ? 0 : this.instructionCounts[address];
+    }
+
+    /**
+     * Tells the listener about every jump taken from now on, e.g. to follow calls and returns.
+     */
+    public void setJumpListener(JumpListener jumpListener) {
+        this.jumpListener = jumpListener;
+    }
+
+    public int peek(int address) {
+        return this.ram[address];
+    }
+
+    public void poke(int address, int value) {
+        this.ram[address] = (short) value;
+    }
+
+    public long getCycles() {
+        return this.cycles;
+    }
+
+    /**
+     * @return the highest SP minus the stack base 256, or 0 if SP never went above it
+     */
+    public int getPeakStackDepth() {
+        return Math.max(this.peakStackPointer - STACK_BASE, 0);
+    }
+
+    public int getRomSize() {
+        return this.code.length;
+    }
+
+    public boolean isHalted() {
+        return this.halted;
+    }
+
+    public String getReport() {
+        return String.format("run: %d cycles, %s, peak stack %d words, %d ROM words%n", this.cycles,
+                this.halted ? "halted" : "cycle limit reached", this.getPeakStackDepth(), this.getRomSize());
+    }
+
+    private static boolean isValidComputation(int comp) {
+        return switch (comp) {
+            case 0b0101010, 0b0111111, 0b0111010, 0b0001100, 0b0110000, 0b1110000, 0b0001101, 0b0110001, 0b1110001,
+                    0b0001111, 0b0110011, 0b1110011, 0b0011111, 0b0110111, 0b1110111, 0b0001110, 0b0110010, 0b1110010,
+                    0b0000010, 0b1000010, 0b0010011, 0b1010011, 0b0000111, 0b1000111, 0b0000000, 0b1000000, 0b0010101,
+                    0b1010101 -> true;
+            default -> false;
+        };
+    }
+
+    public interface JumpListener {
+        /**
+         * Called after a jump was taken, before the instruction at the target runs. RAM can be read with peek.
+         *
+         * @param cycles instructions executed so far, including the jump
+         */
+        void jumped(int target, long cycles);
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Assembles the text written to it line by line, and writes the machine code to a channel when closed, once all
+ * labels are resolved: as a .hack file of one 16 digit binary number per line, or packed as big-endian 16-bit words.
+ * The text can also be passed on to a second writer, e.g. to keep the .asm file.
+ */
+public class HackWriter extends Writer {
+
+    private final WritableByteChannel channel;
+    private final boolean packed;
+    // may be null
+    private final Writer asmWriter;
+    private final HackAssembler assembler = new HackAssembler();
+    private final StringBuilder line = new StringBuilder();
+    private boolean closed;
+
+    /**
+     * @param packed    if true, writes 16-bit words instead of .hack text
+     * @param asmWriter also receives the text, may be null
+     */
+    public HackWriter(WritableByteChannel channel, boolean packed, Writer asmWriter) {
+        this.channel = channel;
+        this.packed = packed;
+        this.asmWriter = asmWriter;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            this.addChar(chars[i]);
+        }
+        if (this.asmWriter != null) {
+            this.asmWriter.write(chars, offset, length);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            this.addChar(string.charAt(i));
+        }
+        if (this.asmWriter != null) {
+            this.asmWriter.write(string, offset, length);
+        }
+    }
+
+    /**
+     * Nothing is written before close, as the machine code isn't known until all labels are.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try (WritableByteChannel channel = this.channel) {
+            this.assembler.add(this.line.toString());
+            short[] rom = this.assembler.getRom();
+            ByteBuffer buffer = ByteBuffer.allocate(rom.length * (this.packed ? 2 : 17));
+            for (short word : rom) {
+                if (this.packed) {
+                    buffer.putShort(word);
+                    continue;
+                }
+                for (int bit = 15; bit >= 0; bit--) {
+                    buffer.put((word >> bit & 1) == 0 ? (byte) '0' : (byte) '1');
+                }
+                buffer.put((byte) '\n');
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            if (this.asmWriter != null) {
+                this.asmWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Appends the machine code of an object file, at the start of a line. The asm writer, if any, receives its code as
+     * assembly.
+     */
+    public void link(ObjectFile object) throws IOException {
+        if (this.line.length() > 0) {
+            this.assembler.add(this.line.toString());
+            this.line.setLength(0);
+        }
+        this.assembler.addObject(object);
+        if (this.asmWriter != null) {
+            this.asmWriter.write(object.toAssembly());
+        }
+    }
+
+    /**
+     * @return the assembler, finished once this writer is closed
+     */
+    public HackAssembler getAssembler() {
+        return this.assembler;
+    }
+
+    private void addChar(char c) {
+        if (c == '\n') {
+            this.assembler.add(this.line.toString());
+            this.line.setLength(0);
+        } else {
+            this.line.append(c);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simplifies the control flow of each function, which compiled Jack code leaves full of jumps over jumps:
+ * <ul>
+ * <li>a goto or if-goto to a label followed by a goto jumps to the final target instead (jump threading)</li>
+ * <li>"if-goto L1, goto L2, label L1" becomes "if-zero-goto L2, label L1", and the other way round</li>
+ * <li>"not, if-goto L" after a comparison becomes "if-zero-goto L", since a comparison is either 0 or -1</li>
+ * <li>a goto to a label directly following it is dropped, and so are commands after a goto or return that no label
+ * leads to</li>
+ * <li>labels no jump of the function refers to are dropped, so that they don't end the stack cache or constant
+ * folding</li>
+ * </ul>
+ * Labels are scoped to their function, as in the VM specification.
+ */
+public class JumpOptimizer implements PassManager.Rewrite {
+
+    private final AtomicInteger threadedJumps = new AtomicInteger();
+    private final AtomicInteger invertedJumps = new AtomicInteger();
+    private final AtomicInteger removedJumps = new AtomicInteger();
+    private final AtomicInteger removedCommands = new AtomicInteger();
+    private final AtomicInteger removedLabels = new AtomicInteger();
+
+    @Override
+    public boolean run(Program program) {
+        boolean changed = false;
+        for (VmFunction function : program.getFunctions()) {
+            CommandList commands = function.getCommands();
+            if (!hasJumps(commands)) {
+                continue;
+            }
+            List<VmCommand> optimized = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                optimized.add(commands.get(i));
+            }
+            boolean functionChanged = false;
+            while (this.threadJumps(optimized) | this.invertJumps(optimized) | this.removeJumps(optimized) |
+                    this.removeLabels(optimized)) {
+                functionChanged = true;
+            }
+            if (functionChanged) {
+                CommandList rewritten = program.newCommandList();
+                for (VmCommand command : optimized) {
+                    rewritten.add(command);
+                }
+                function.setCommands(rewritten);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean hasJumps(CommandList commands) {
+        for (int i = 0; i < commands.size(); i++) {
+            switch (commands.commandType(i)) {
+                case C_LABEL, C_GOTO, C_IF -> {
+                    return true;
+                }
+                default -> {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Points every jump to the label its target label leads to through gotos.
+     */
+    private boolean threadJumps(List<VmCommand> commands) {
+        Map<String, Integer> labels = labelIndices(commands);
+        boolean changed = false;
+        for (int i = 0; i < commands.size(); i++) {
+            VmCommand command = commands.get(i);
+            if (command instanceof VmCommand.Goto goTo) {
+                String target = finalTarget(commands, labels, goTo.label());
+                if (!target.equals(goTo.label())) {
+                    commands.set(i, new VmCommand.Goto(target));
+                    this.threadedJumps.incrementAndGet();
+                    changed = true;
+                }
+            } else if (command instanceof VmCommand.IfGoto ifGoto) {
+                String target = finalTarget(commands, labels, ifGoto.label());
+                if (!target.equals(ifGoto.label())) {
+                    commands.set(i, new VmCommand.IfGoto(target, ifGoto.ifZero()));
+                    this.threadedJumps.incrementAndGet();
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the label a jump to the label ends up at when following gotos, the label itself if it is not followed
+     * by a goto or the gotos loop
+     */
+    private static String finalTarget(List<VmCommand> commands, Map<String, Integer> labels, String label) {
+        Set<String> seen = new HashSet<>();
+        String target = label;
+        while (seen.add(target)) {
+            Integer index = labels.get(target);
+            if (index == null) {
+                break;
+            }
+            int next = index;
+            while (next < commands.size() && commands.get(next) instanceof VmCommand.Label) {
+                next++;
+            }
+            if (next == commands.size() || !(commands.get(next) instanceof VmCommand.Goto goTo) ||
+                    seen.contains(goTo.label())) {
+                break;
+            }
+            target = goTo.label();
+        }
+        return target;
+    }
+
+    /**
+     * Replaces a conditional jump over a goto by the inverse jump to the goto's target, and a not of a comparison
+     * followed by a conditional jump by the inverse jump.
+     */
+    private boolean invertJumps(List<VmCommand> commands) {
+        boolean changed = false;
+        for (int i = 0; i + 1 < commands.size(); i++) {
+            if (commands.get(i) instanceof VmCommand.IfGoto ifGoto &&
+                    commands.get(i + 1) instanceof VmCommand.Goto goTo && labelFollows(commands, i + 2,
+                    ifGoto.label())) {
+                commands.set(i, new VmCommand.IfGoto(goTo.label(), !ifGoto.ifZero()));
+                commands.remove(i + 1);
+                this.invertedJumps.incrementAndGet();
+                changed = true;
+            } else if (i + 2 < commands.size() && isComparison(commands.get(i)) &&
+                    commands.get(i + 1) instanceof VmCommand.Arithmetic not &&
+                    not.command() == CodeWriter.ArithmeticCommand.NOT &&
+                    commands.get(i + 2) instanceof VmCommand.IfGoto ifGoto) {
+                commands.remove(i + 1);
+                commands.set(i + 1, new VmCommand.IfGoto(ifGoto.label(), !ifGoto.ifZero()));
+                this.invertedJumps.incrementAndGet();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isComparison(VmCommand command) {
+        if (!(command instanceof VmCommand.Arithmetic arithmetic)) {
+            return false;
+        }
+        return switch (arithmetic.command()) {
+            case EQ, GT, LT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Removes gotos to the label directly following them, and the commands after a goto or return up to the next
+     * label.
+     */
+    private boolean removeJumps(List<VmCommand> commands) {
+        boolean changed = false;
+        for (int i = 0; i < commands.size(); i++) {
+            VmCommand command = commands.get(i);
+            if (command instanceof VmCommand.Goto goTo && labelFollows(commands, i + 1, goTo.label())) {
+                commands.remove(i--);
+                this.removedJumps.incrementAndGet();
+                changed = true;
+            } else if (command instanceof VmCommand.Goto || command instanceof VmCommand.Return) {
+                int end = i + 1;
+                while (end < commands.size() && !(commands.get(end) instanceof VmCommand.Label)) {
+                    end++;
+                }
+                if (end > i + 1) {
+                    commands.subList(i + 1, end).clear();
+                    this.removedCommands.addAndGet(end - i - 1);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the labels that no jump refers to.
+     */
+    private boolean removeLabels(List<VmCommand> commands) {
+        Set<String> targets = new HashSet<>();
+        for (VmCommand command : commands) {
+            if (command instanceof VmCommand.Goto goTo) {
+                targets.add(goTo.label());
+            } else if (command instanceof VmCommand.IfGoto ifGoto) {
+                targets.add(ifGoto.label());
+            }
+        }
+        int size = commands.size();
+        commands.removeIf(command -> command instanceof VmCommand.Label label && !targets.contains(label.label()));
+        this.removedLabels.addAndGet(size - commands.size());
+        return commands.size() < size;
+    }
+
+    /**
+     * @return true if the label is among the labels starting at the index
+     */
+    private static boolean labelFollows(List<VmCommand> commands, int index, String label) {
+        for (int i = index; i < commands.size() && commands.get(i) instanceof VmCommand.Label next; i++) {
+            if (next.label().equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Integer> labelIndices(List<VmCommand> commands) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.get(i) instanceof VmCommand.Label label) {
+                labels.putIfAbsent(label.label(), i);
+            }
+        }
+        return labels;
+    }
+
+    public String getReport() {
+        return String.format("jumps: %d threaded, %d inverted, %d removed, %d unreachable commands and %d labels " +
+                        "removed%n", this.threadedJumps.get(), this.invertedJumps.get(), this.removedJumps.get(),
+                this.removedCommands.get(), this.removedLabels.get());
+    }
+}
@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replaces calls to small leaf functions (functions that call nothing) with their commands, saving the frame setup
+ * of the call and the teardown of the return.
+ * <p>
+ * The arguments and locals of the inlined function are kept in static variables of the reserved file "$inline": the
+ * arguments are popped into them at the call site and the locals set to 0. As a leaf function runs to completion
+ * without any other code running in between, all call sites can share these variables. Static variables of the
+ * inlined function keep the name of its file. If it changes THIS or THAT, the caller's values are saved in the same
+ * way and restored after it.
+ */
+public class LeafInliner implements PassManager.Rewrite {
+
+    // names the static variables holding arguments and locals, can't clash with a file name
+    public static final String SCRATCH_FILE_NAME = "$inline";
+
+    private final Map<String, Leaf> leaves;
+    private final AtomicInteger inlinedCalls = new AtomicInteger();
+
+    private LeafInliner(Map<String, Leaf> leaves) {
+        this.leaves = leaves;
+    }
+
+    /**
+     * Finds the functions of the programs that can be inlined.
+     *
+     * @param maxCommands inline functions of at most this many commands, not counting the function command
+     */
+    public static LeafInliner of(Collection<Program> programs, int maxCommands) {
+        Map<String, Leaf> leaves = new LinkedHashMap<>();
+        for (Program program : programs) {
+            for (VmFunction function : program.getFunctions()) {
+                Leaf leaf = Leaf.of(function, maxCommands);
+                if (leaf != null) {
+                    leaves.put(function.getName(), leaf);
+                }
+            }
+        }
+        return new LeafInliner(leaves);
+    }
+
+    @Override
+    public boolean run(Program program) {
+        boolean changed = false;
+        for (VmFunction function : program.getFunctions()) {
+            CommandList commands = function.getCommands();
+            CommandList inlined = null;
+            int sites = 0;
+            for (int i = 0; i < commands.size(); i++) {
+                Leaf leaf = commands.commandType(i) == Parser.CommandType.C_CALL ? this.leaves.get(commands.symbol(i)) :
+                        null;
+                if (leaf == null || commands.arg2(i) < leaf.nArgsUsed) {
+                    if (inlined != null) {
+                        inlined.add(commands.get(i));
+                    }
+                    continue;
+                }
+                if (inlined == null) {
+                    inlined = program.newCommandList();
+                    for (int j = 0; j < i; j++) {
+                        inlined.add(commands.get(j));
+                    }
+                }
+                String prefix = (function.getName() != null ? function.getName() : function.getFileName()) +
+                        "$inline." + sites++;
+                this.inline(leaf, commands.arg2(i), prefix, function.getFileName(), inlined);
+            }
+            if (inlined != null) {
+                function.setCommands(inlined);
+                this.inlinedCalls.addAndGet(sites);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Writes the commands replacing a call to the leaf.
+     *
+     * @param prefix   makes the labels of this call site unique
+     * @param fileName file of the caller
+     */
+    private void inline(Leaf leaf, int nArgs, String prefix, String fileName, CommandList out) {
+        List<VmCommand> commands = leaf.commands;
+        int nVars = ((VmCommand.Function) commands.get(0)).nVars();
+        // scratch variables: arguments, then locals, then the saved THIS and THAT
+        int savedPointers = nArgs + nVars;
+        for (int i = nArgs - 1; i >= 0; i--) {
+            out.add(new VmCommand.Pop(CodeWriter.Segment.STATIC, i, SCRATCH_FILE_NAME));
+        }
+        for (int i = 0; i < nVars; i++) {
+            out.add(new VmCommand.Push(CodeWriter.Segment.CONSTANT, 0));
+            out.add(new VmCommand.Pop(CodeWriter.Segment.STATIC, nArgs + i, SCRATCH_FILE_NAME));
+        }
+        if (leaf.writesPointer) {
+            for (int i = 0; i < 2; i++) {
+                out.add(new VmCommand.Push(CodeWriter.Segment.POINTER, i));
+                out.add(new VmCommand.Pop(CodeWriter.Segment.STATIC, savedPointers + i, SCRATCH_FILE_NAME));
+            }
+        }
+        // static variables are named after the leaf's file
+        String staticFileName = leaf.fileName.equals(fileName) ? null : leaf.fileName;
+        boolean jumpsToEnd = false;
+        for (int i = 1; i < commands.size(); i++) {
+            VmCommand command = commands.get(i);
+            if (command instanceof VmCommand.Push push) {
+                CodeWriter.Segment segment = push.segment();
+                out.add(new VmCommand.Push(scratchSegment(segment), scratchIndex(segment, push.index(), nArgs),
+                        scratchFileName(segment, staticFileName)));
+            } else if (command instanceof VmCommand.Pop pop) {
+                CodeWriter.Segment segment = pop.segment();
+                out.add(new VmCommand.Pop(scratchSegment(segment), scratchIndex(segment, pop.index(), nArgs),
+                        scratchFileName(segment, staticFileName)));
+            } else if (command instanceof VmCommand.Label label) {
+                out.add(new VmCommand.Label(prefix + "$" + label.label()));
+            } else if (command instanceof VmCommand.Goto goTo) {
+                out.add(new VmCommand.Goto(prefix + "$" + goTo.label()));
+            } else if (command instanceof VmCommand.IfGoto ifGoto) {
+                out.add(new VmCommand.IfGoto(prefix + "$" + ifGoto.label(), ifGoto.ifZero()));
+            } else if (command instanceof VmCommand.Return) {
+                // the return value is the only value left on the leaf's stack, where the return would put it
+                if (i < commands.size() - 1) {
+                    out.add(new VmCommand.Goto(prefix));
+                    jumpsToEnd = true;
+                }
+            } else {
+                out.add(command);
+            }
+        }
+        if (jumpsToEnd) {
+            out.add(new VmCommand.Label(prefix));
+        }
+        if (leaf.writesPointer) {
+            for (int i = 0; i < 2; i++) {
+                out.add(new VmCommand.Push(CodeWriter.Segment.STATIC, savedPointers + i, SCRATCH_FILE_NAME));
+                out.add(new VmCommand.Pop(CodeWriter.Segment.POINTER, i));
+            }
+        }
+    }
+
+    /**
+     * @return segment of the variable replacing an argument or local, the segment itself otherwise
+     */
+    private static CodeWriter.Segment scratchSegment(CodeWriter.Segment segment) {
+        return segment == CodeWriter.Segment.ARGUMENT || segment == CodeWriter.Segment.LOCAL ?
+                CodeWriter.Segment.STATIC : segment;
+    }
+
+    /**
+     * @return index of the variable replacing an argument or local, the index itself otherwise
+     */
+    private static int scratchIndex(CodeWriter.Segment segment, int index, int nArgs) {
+        return segment == CodeWriter.Segment.LOCAL ? nArgs + index : index;
+    }
+
+    /**
+     * @return file name of the variable replacing an argument or local or of a static, null otherwise
+     */
+    private static String scratchFileName(CodeWriter.Segment segment, String staticFileName) {
+        return switch (segment) {
+            case ARGUMENT, LOCAL -> SCRATCH_FILE_NAME;
+            case STATIC -> staticFileName;
+            default -> null;
+        };
+    }
+
+    /**
+     * @return the inlined functions, so cached translations are only reused while they don't change
+     */
+    public String describe() {
+        StringJoiner description = new StringJoiner("\n");
+        for (Leaf leaf : this.leaves.values()) {
+            description.add(leaf.fileName);
+            for (VmCommand command : leaf.commands) {
+                description.add(command.toString());
+            }
+        }
+        return description.toString();
+    }
+
+    public String getReport() {
+        return String.format("inlined %d calls, %d leaf functions can be inlined%n", this.inlinedCalls.get(),
+                this.leaves.size());
+    }
+
+    /**
+     * A function that can be inlined.
+     *
+     * @param commands      the commands of the function, starting with the function command. A copy, since the
+     *                      function's file is rewritten while other files inline it
+     * @param nArgsUsed     number of arguments the function reads, calls passing fewer are not inlined
+     * @param writesPointer if true, the function changes THIS or THAT
+     */
+    private record Leaf(String fileName, List<VmCommand> commands, int nArgsUsed, boolean writesPointer) {
+
+        /**
+         * Checks that the function calls nothing, is small enough and that the stack depth is known at every
+         * command, ending with only the return value at each return.
+         *
+         * @return the leaf, or null if the function can't be inlined
+         */
+        static Leaf of(VmFunction function, int maxCommands) {
+            CommandList commands = function.getCommands();
+            if (function.getName() == null || commands.size() - 1 > maxCommands) {
+                return null;
+            }
+            Map<String, Integer> labelDepths = new HashMap<>();
+            int depth = 0;
+            boolean reachable = true;
+            int nArgsUsed = 0;
+            boolean writesPointer = false;
+            for (int i = 1; i < commands.size(); i++) {
+                Parser.CommandType commandType = commands.commandType(i);
+                if (commandType == Parser.CommandType.C_PUSH || commandType == Parser.CommandType.C_POP) {
+                    if (commands.segment(i) == CodeWriter.Segment.ARGUMENT) {
+                        nArgsUsed = Math.max(nArgsUsed, commands.arg2(i) + 1);
+                    }
+                    writesPointer |= commandType == Parser.CommandType.C_POP &&
+                            commands.segment(i) == CodeWriter.Segment.POINTER;
+                }
+                if (!reachable && commandType != Parser.CommandType.C_LABEL) {
+                    continue;
+                }
+                switch (commandType) {
+                    case C_ARITHMETIC -> {
+                        boolean unary = switch (commands.arithmeticCommand(i)) {
+                            case NEG, NOT -> true;
+                            default -> false;
+                        };
+                        if (depth < (unary ? 1 : 2)) {
+                            return null;
+                        }
+                        depth -= unary ? 0 : 1;
+                    }
+                    case C_PUSH -> depth++;
+                    case C_POP -> {
+                        if (depth-- < 1) {
+                            return null;
+                        }
+                    }
+                    case C_LABEL -> {
+                        Integer labelDepth = labelDepths.get(commands.symbol(i));
+                        if (!reachable) {
+                            if (labelDepth == null) {
+                                return null; // only reached by a later jump, the depth is unknown
+                            }
+                            depth = labelDepth;
+                            reachable = true;
+                        } else if (labelDepth != null && labelDepth != depth) {
+                            return null;
+                        }
+                        labelDepths.put(commands.symbol(i), depth);
+                    }
+                    case C_GOTO, C_IF -> {
+                        if (commandType == Parser.CommandType.C_IF && depth-- < 1) {
+                            return null;
+                        }
+                        Integer labelDepth = labelDepths.putIfAbsent(commands.symbol(i), depth);
+                        if (labelDepth != null && labelDepth != depth) {
+                            return null;
+                        }
+                        reachable = commandType == Parser.CommandType.C_IF;
+                    }
+                    case C_RETURN -> {
+                        if (depth != 1) {
+                            return null;
+                        }
+                        reachable = false;
+                    }
+                    default -> {
+                        return null; // calls, or a function without return
+                    }
+                }
+            }
+            // running off the end would continue with the next function
+            if (reachable) {
+                return null;
+            }
+            List<VmCommand> copy = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                copy.add(commands.get(i));
+            }
+            return new Leaf(function.getFileName(), copy, nArgsUsed, writesPointer);
+        }
+    }
+}
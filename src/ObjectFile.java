@@ -0,0 +1,212 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The machine code of a translated .vm file, relocatable so it can be linked into any program translated with the same
+ * code generation options without translating or assembling the file again. Its A-instructions referring to a label
+ * of the file, including the return labels and the labels of the translator, hold the label's offset in the file and
+ * are moved with the code. Those referring to any other symbol, e.g. another file's function, a shared routine or a
+ * static variable "fileName.index", are resolved by name when the program is assembled.
+ * <p>
+ * Binary format, big-endian:
+ * <pre>
+ *   int    magic "VMO1"
+ *   UTF    file name
+ *   UTF    code generation options of the translation
+ *   int    shared call sites, shared return sites
+ *   int    number of kinds with shared comparison sites, then per kind: UTF kind, int sites
+ *   int    number of labels, then per label: UTF name, int offset
+ *   int    number of external symbols, then per symbol: UTF name
+ *   int    number of words, then the words as shorts, 0 where relocated
+ *   int    number of relocations, then per relocation: int offset, int target
+ * </pre>
+ * A target of 0 or more is the index of a label of the file, -1 - target the index of an external symbol.
+ */
+public class ObjectFile {
+
+    public static final String EXTENSION = ".vmo";
+    private static final int MAGIC = 0x564d4f31;
+
+    private final String fileName;
+    private final String options;
+    private final int[] sharedCallReturnSites;
+    private final Map<CodeWriter.ArithmeticCommand, Integer> sharedComparisonSites;
+    private final String[] labels;
+    private final int[] labelOffsets;
+    private final String[] symbols;
+    private final short[] code;
+    // offset and target of each relocated A-instruction, in code order
+    private final int[] relocations;
+
+    ObjectFile(String fileName, String options, int[] sharedCallReturnSites,
+               Map<CodeWriter.ArithmeticCommand, Integer> sharedComparisonSites, String[] labels, int[] labelOffsets,
+               String[] symbols, short[] code, int[] relocations) {
+        this.fileName = fileName;
+        this.options = options;
+        this.sharedCallReturnSites = sharedCallReturnSites;
+        this.sharedComparisonSites = sharedComparisonSites;
+        this.labels = labels;
+        this.labelOffsets = labelOffsets;
+        this.symbols = symbols;
+        this.code = code;
+        this.relocations = relocations;
+    }
+
+    /**
+     * Assembles the translation of a single file.
+     *
+     * @param fragment translated the file, closed by this
+     */
+    public static ObjectFile compile(CodeWriter fragment, String fileName, TranslatorOptions options)
+            throws IOException {
+        int[] sharedCallReturnSites = fragment.getSharedCallReturnSites(fileName);
+        Map<CodeWriter.ArithmeticCommand, Integer> sharedComparisonSites = fragment.getSharedComparisonSites();
+        HackAssembler assembler = new HackAssembler();
+        fragment.getFragmentText().lines().forEach(assembler::add);
+        return assembler.toObject(fileName, options.describeCodeGeneration(), sharedCallReturnSites,
+                sharedComparisonSites);
+    }
+
+    public static ObjectFile read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an object file: " + file);
+            }
+            String fileName = in.readUTF();
+            String options = in.readUTF();
+            int[] sharedCallReturnSites = {in.readInt(), in.readInt()};
+            Map<CodeWriter.ArithmeticCommand, Integer> sharedComparisonSites =
+                    new EnumMap<>(CodeWriter.ArithmeticCommand.class);
+            for (int i = in.readInt(); i > 0; i--) {
+                sharedComparisonSites.put(CodeWriter.ArithmeticCommand.valueOf(in.readUTF()), in.readInt());
+            }
+            String[] labels = new String[in.readInt()];
+            int[] labelOffsets = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readUTF();
+                labelOffsets[i] = in.readInt();
+            }
+            String[] symbols = new String[in.readInt()];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = in.readUTF();
+            }
+            short[] code = new short[in.readInt()];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = in.readShort();
+            }
+            int[] relocations = new int[in.readInt() * 2];
+            for (int i = 0; i < relocations.length; i++) {
+                relocations[i] = in.readInt();
+            }
+            return new ObjectFile(fileName, options, sharedCallReturnSites, sharedComparisonSites, labels,
+                    labelOffsets, symbols, code, relocations);
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(this.fileName);
+            out.writeUTF(this.options);
+            out.writeInt(this.sharedCallReturnSites[0]);
+            out.writeInt(this.sharedCallReturnSites[1]);
+            out.writeInt(this.sharedComparisonSites.size());
+            for (Map.Entry<CodeWriter.ArithmeticCommand, Integer> entry : this.sharedComparisonSites.entrySet()) {
+                out.writeUTF(entry.getKey().name());
+                out.writeInt(entry.getValue());
+            }
+            out.writeInt(this.labels.length);
+            for (int i = 0; i < this.labels.length; i++) {
+                out.writeUTF(this.labels[i]);
+                out.writeInt(this.labelOffsets[i]);
+            }
+            out.writeInt(this.symbols.length);
+            for (String symbol : this.symbols) {
+                out.writeUTF(symbol);
+            }
+            out.writeInt(this.code.length);
+            for (short word : this.code) {
+                out.writeShort(word);
+            }
+            out.writeInt(this.relocations.length / 2);
+            for (int relocation : this.relocations) {
+                out.writeInt(relocation);
+            }
+        }
+    }
+
+    /**
+     * @return the code as assembly, with the labels and symbols of the file, for output that is not machine code
+     */
+    public String toAssembly() {
+        StringBuilder assembly = new StringBuilder("// object " + this.fileName + "\n");
+        int label = 0;
+        int relocation = 0;
+        for (int offset = 0; offset <= this.code.length; offset++) {
+            while (label < this.labels.length && this.labelOffsets[label] == offset) {
+                assembly.append('(').append(this.labels[label++]).append(")\n");
+            }
+            if (offset == this.code.length) {
+                break;
+            }
+            if (relocation < this.relocations.length && this.relocations[relocation] == offset) {
+                int target = this.relocations[relocation + 1];
+                assembly.append('@').append(target >= 0 ? this.labels[target] : this.symbols[-1 - target]);
+                relocation += 2;
+            } else {
+                assembly.append(HackAssembler.disassemble(this.code[offset]));
+            }
+            assembly.append('\n');
+        }
+        return assembly.toString();
+    }
+
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * @return the code generation options the file was translated with, see TranslatorOptions.describeCodeGeneration
+     */
+    public String getOptions() {
+        return this.options;
+    }
+
+    public int[] getSharedCallReturnSites() {
+        return this.sharedCallReturnSites.clone();
+    }
+
+    public Map<CodeWriter.ArithmeticCommand, Integer> getSharedComparisonSites() {
+        return new EnumMap<>(this.sharedComparisonSites);
+    }
+
+    /**
+     * @return the labels of the file in code order
+     */
+    String[] getLabels() {
+        return this.labels;
+    }
+
+    int[] getLabelOffsets() {
+        return this.labelOffsets;
+    }
+
+    String[] getSymbols() {
+        return this.symbols;
+    }
+
+    short[] getCode() {
+        return this.code;
+    }
+
+    int[] getRelocations() {
+        return this.relocations;
+    }
+}
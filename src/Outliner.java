@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Outlines instruction sequences repeated across the whole program into shared subroutines, to make programs fit into
+ * a ROM budget. Buffers the text written to it and writes the outlined program to the next writer when closed.
+ * <p>
+ * A subroutine is called like the shared comparison routines, "@RET, D=A, @SUB, 0;JMP, (RET)", and keeps the return
+ * address in R15 until it returns with "@R15, A=M, 0;JMP". A call site takes 4 words, and with the 2 words of the
+ * subroutine's entry and the 3 of its exit runs 9 cycles longer than the sequence it replaces. A sequence can be
+ * outlined if:
+ * <ul>
+ * <li>it is straight-line code, without labels and jumps, and doesn't use R15</li>
+ * <li>it starts with an A-instruction, as A points to R15 when the subroutine starts</li>
+ * <li>it sets D before reading it, as the call overwrites D with the return address</li>
+ * <li>the code after it sets A before it uses A or M or jumps, as the return leaves A pointing to the return
+ * address</li>
+ * </ul>
+ * Repeated sequences are found by hashing every such sequence of up to 40 instructions. They are outlined greedily,
+ * most ROM words saved per call site first, which adds the fewest cycles per word saved, until the program fits into
+ * the budget. Code after the shared routines label is left alone, since the comparison routines keep their return
+ * address in R15 as well.
+ */
+public class Outliner extends Writer {
+
+    private static final String RETURN_REGISTER = "@R15";
+    // can't clash with the labels of the translator, which don't start with "$$"
+    private static final String LABEL_PREFIX = "$$OUTLINE.";
+    private static final int CALL_SITE_WORDS = 4;
+    private static final int SUBROUTINE_WORDS = 5;
+    private static final int CALL_SITE_CYCLES = CALL_SITE_WORDS + SUBROUTINE_WORDS;
+    // a sequence of 5 words saves 1 word per call site, shorter ones save none
+    private static final int MIN_LENGTH = CALL_SITE_WORDS + 1;
+    private static final int MAX_LENGTH = 40;
+    private static final long HASH_MULTIPLIER = 1_000_003;
+
+    private final Writer out;
+    private final int budget;
+    private final StringBuilder text = new StringBuilder();
+    private boolean closed;
+    private int sizeBefore;
+    private int sizeAfter;
+    private int subroutineCount;
+    private int callSiteCount;
+
+    /**
+     * @param budget ROM words the program should fit into, 1 to outline every sequence that saves words
+     */
+    public Outliner(Writer out, int budget) {
+        this.out = out;
+        this.budget = budget;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        this.text.append(chars, offset, length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) {
+        this.text.append(string, offset, length);
+    }
+
+    /**
+     * Nothing is written before close, as sequences can only be outlined once the whole program is known.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try (Writer out = this.out) {
+            List<String> lines = this.text.toString().lines().toList();
+            this.text.setLength(0);
+            for (String line : this.outline(lines)) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+
+    private List<String> outline(List<String> lines) {
+        // the instructions up to the shared routines, and for each the line it is on and whether a label or a jump
+        // comes right before it
+        List<String> instructions = new ArrayList<>();
+        List<Integer> instructionLines = new ArrayList<>();
+        List<Boolean> blockStarts = new ArrayList<>();
+        int end = lines.size();
+        int size = 0;
+        boolean blockStart = true;
+        for (int i = 0; i < lines.size(); i++) {
+            String code = code(lines.get(i));
+            if (code.isEmpty()) {
+                continue;
+            }
+            if (code.equals("(" + CodeWriter.SHARED_ROUTINES_LABEL + ")") && end == lines.size()) {
+                end = i;
+            }
+            if (code.startsWith("(")) {
+                blockStart = true;
+                continue;
+            }
+            size++;
+            if (end == lines.size()) {
+                instructions.add(code);
+                instructionLines.add(i);
+                blockStarts.add(blockStart);
+                blockStart = isJump(code);
+            }
+        }
+        this.sizeBefore = size;
+
+        Sequences sequences = new Sequences(instructions, blockStarts);
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(
+                Comparator.comparingDouble(Candidate::wordsPerSite).reversed());
+        boolean[] replaced = new boolean[instructions.size()];
+        for (Sequence sequence : sequences.repeated()) {
+            int[] sites = sequence.sites(replaced);
+            int saved = savedWords(sequence.length, sites.length);
+            if (saved > 0) {
+                candidates.add(new Candidate(sequence, (double) saved / sites.length));
+            }
+        }
+
+        // subroutine called at each instruction replaced by a call, -1 elsewhere
+        int[] calls = new int[instructions.size()];
+        Arrays.fill(calls, -1);
+        List<Sequence> subroutines = new ArrayList<>();
+        while (size > this.budget && !candidates.isEmpty()) {
+            Candidate candidate = candidates.poll();
+            Sequence sequence = candidate.sequence;
+            int[] sites = sequence.sites(replaced);
+            int saved = savedWords(sequence.length, sites.length);
+            if (saved <= 0) {
+                continue;
+            }
+            // other subroutines took some of the sites since the candidate was ranked
+            double wordsPerSite = (double) saved / sites.length;
+            if (wordsPerSite < candidate.wordsPerSite && !candidates.isEmpty() &&
+                    wordsPerSite < candidates.peek().wordsPerSite) {
+                candidates.add(new Candidate(sequence, wordsPerSite));
+                continue;
+            }
+            for (int site : sites) {
+                calls[site] = subroutines.size();
+                Arrays.fill(replaced, site, site + sequence.length, true);
+            }
+            subroutines.add(sequence);
+            this.callSiteCount += sites.length;
+            size -= saved;
+        }
+        this.sizeAfter = size;
+        this.subroutineCount = subroutines.size();
+        if (subroutines.isEmpty()) {
+            return lines;
+        }
+
+        List<String> outlined = new ArrayList<>(lines.size());
+        int instruction = 0;
+        int skipUntil = 0;
+        int[] returnLabels = new int[subroutines.size()];
+        for (int i = 0; i < end; i++) {
+            if (instruction < instructions.size() && instructionLines.get(instruction) == i) {
+                int subroutine = calls[instruction];
+                if (subroutine != -1) {
+                    String label = LABEL_PREFIX + subroutine;
+                    String returnLabel = label + "$ret." + returnLabels[subroutine]++;
+                    outlined.addAll(List.of(
+                            "@" + returnLabel,
+                            "D=A",
+                            "@" + label,
+                            "0;JMP",
+                            "(" + returnLabel + ")"
+                    ));
+                    skipUntil = instruction + subroutines.get(subroutine).length;
+                } else if (instruction >= skipUntil) {
+                    outlined.add(lines.get(i));
+                }
+                instruction++;
+            } else if (instruction >= skipUntil) {
+                // comments inside an outlined sequence are dropped with it
+                outlined.add(lines.get(i));
+            }
+        }
+        if (end == lines.size()) {
+            outlined.add("(" + CodeWriter.SHARED_ROUTINES_LABEL + ")");
+        } else {
+            outlined.addAll(lines.subList(end, lines.size()));
+        }
+        for (int subroutine = 0; subroutine < subroutines.size(); subroutine++) {
+            Sequence sequence = subroutines.get(subroutine);
+            outlined.add("// outlined sequence, " + returnLabels[subroutine] + " call sites");
+            outlined.add("(" + LABEL_PREFIX + subroutine + ")");
+            outlined.add(RETURN_REGISTER);
+            outlined.add("M=D"); // R15 = return address
+            outlined.addAll(instructions.subList(sequence.start, sequence.start + sequence.length));
+            outlined.add(RETURN_REGISTER);
+            outlined.add("A=M");
+            outlined.add("0;JMP");
+        }
+        return outlined;
+    }
+
+    /**
+     * @return ROM words saved by outlining a sequence of the length at the number of sites
+     */
+    private static int savedWords(int length, int sites) {
+        return sites * (length - CALL_SITE_WORDS) - length - SUBROUTINE_WORDS;
+    }
+
+    /**
+     * @return the instruction or label on the line, without comment and whitespace
+     */
+    private static String code(String line) {
+        int comment = line.indexOf("//");
+        return (comment == -1 ? line : line.substring(0, comment)).strip();
+    }
+
+    private static boolean isJump(String instruction) {
+        return instruction.indexOf(';') != -1;
+    }
+
+    private static boolean isAInstruction(String instruction) {
+        return instruction.startsWith("@");
+    }
+
+    private static String computation(String instruction) {
+        int semicolon = instruction.indexOf(';');
+        return instruction.substring(instruction.indexOf('=') + 1, semicolon == -1 ? instruction.length() :
+                semicolon);
+    }
+
+    private static boolean writesD(String instruction) {
+        int equals = instruction.indexOf('=');
+        return equals != -1 && instruction.lastIndexOf('D', equals) != -1;
+    }
+
+    public String getReport() {
+        return String.format("outline: %d sequences into subroutines at %d call sites, %d -> %d ROM words " +
+                        "(budget %d%s), %d cycles more per call site run%n", this.subroutineCount, this.callSiteCount,
+                this.sizeBefore, this.sizeAfter, this.budget, this.sizeAfter > this.budget ? ", not reached" : "",
+                CALL_SITE_CYCLES);
+    }
+
+    /**
+     * The sequences that can be outlined, grouped by their instructions.
+     */
+    private static class Sequences {
+
+        private final int[] ids;
+        private final Map<Long, Sequence> sequences = new HashMap<>();
+
+        Sequences(List<String> instructions, List<Boolean> blockStarts) {
+            // every distinct instruction gets an id, so that sequences are hashed and compared as ints
+            Map<String, Integer> instructionIds = new HashMap<>();
+            this.ids = new int[instructions.size()];
+            for (int i = 0; i < this.ids.length; i++) {
+                this.ids[i] = instructionIds.computeIfAbsent(instructions.get(i), k -> instructionIds.size());
+            }
+            // whether A is set again before it is used, from each instruction on
+            boolean[] setsA = new boolean[this.ids.length + 1];
+            for (int i = this.ids.length - 1; i >= 0; i--) {
+                String instruction = instructions.get(i);
+                if (isAInstruction(instruction)) {
+                    setsA[i] = true;
+                } else {
+                    // M as computation or destination is addressed by A
+                    String computation = computation(instruction);
+                    int equals = instruction.indexOf('=');
+                    String destination = equals == -1 ? "" : instruction.substring(0, equals);
+                    setsA[i] = !isJump(instruction) && computation.indexOf('A') == -1 &&
+                            computation.indexOf('M') == -1 && destination.indexOf('M') == -1 &&
+                            (destination.indexOf('A') != -1 || setsA[i + 1]);
+                }
+            }
+            for (int start = 0; start < this.ids.length; start++) {
+                if (!isAInstruction(instructions.get(start))) {
+                    continue;
+                }
+                long hash = 0;
+                boolean setsD = false;
+                for (int end = start; end < this.ids.length && end - start < MAX_LENGTH; end++) {
+                    String instruction = instructions.get(end);
+                    if (end > start && blockStarts.get(end) || isJump(instruction) ||
+                            instruction.equals(RETURN_REGISTER)) {
+                        break;
+                    }
+                    if (!setsD && !isAInstruction(instruction)) {
+                        if (computation(instruction).indexOf('D') != -1) {
+                            break; // reads D before setting it
+                        }
+                        setsD = writesD(instruction);
+                    }
+                    hash = hash * HASH_MULTIPLIER + this.ids[end] + 1;
+                    int length = end - start + 1;
+                    if (length >= MIN_LENGTH && setsD && setsA[end + 1]) {
+                        this.add(hash, start, length);
+                    }
+                }
+            }
+        }
+
+        private void add(long hash, int start, int length) {
+            Sequence sequence = this.sequences.computeIfAbsent(hash ^ length * 0x9e3779b97f4a7c15L,
+                    k -> new Sequence(start, length));
+            // a different sequence with the same hash is not outlined
+            if (sequence.start != start && sequence.length == length &&
+                    Arrays.equals(this.ids, sequence.start, sequence.start + length, this.ids, start,
+                            start + length)) {
+                sequence.addSite(start);
+            }
+        }
+
+        List<Sequence> repeated() {
+            List<Sequence> repeated = new ArrayList<>();
+            for (Sequence sequence : this.sequences.values()) {
+                if (sequence.siteCount > 1) {
+                    repeated.add(sequence);
+                }
+            }
+            // the map's order depends on the hashes, the output must not
+            repeated.sort(Comparator.comparingInt((Sequence sequence) -> sequence.start)
+                    .thenComparingInt(sequence -> sequence.length));
+            return repeated;
+        }
+    }
+
+    /**
+     * A sequence of instructions and the instruction indices it starts at, in program order.
+     */
+    private static class Sequence {
+
+        private final int start;
+        private final int length;
+        private int[] sites = new int[2];
+        private int siteCount;
+
+        Sequence(int start, int length) {
+            this.start = start;
+            this.length = length;
+            this.sites[this.siteCount++] = start;
+        }
+
+        void addSite(int site) {
+            if (this.siteCount == this.sites.length) {
+                this.sites = Arrays.copyOf(this.sites, this.siteCount * 2);
+            }
+            this.sites[this.siteCount++] = site;
+        }
+
+        /**
+         * @param replaced the instructions already outlined
+         * @return the sites that don't overlap an outlined sequence or the previous site
+         */
+        int[] sites(boolean[] replaced) {
+            int[] free = new int[this.siteCount];
+            int count = 0;
+            int previousEnd = 0;
+            for (int i = 0; i < this.siteCount; i++) {
+                int site = this.sites[i];
+                if (site < previousEnd) {
+                    continue;
+                }
+                boolean isFree = true;
+                for (int j = site; j < site + this.length && isFree; j++) {
+                    isFree = !replaced[j];
+                }
+                if (isFree) {
+                    free[count++] = site;
+                    previousEnd = site + this.length;
+                }
+            }
+            return Arrays.copyOf(free, count);
+        }
+    }
+
+    private record Candidate(Sequence sequence, double wordsPerSite) {
+    }
+}
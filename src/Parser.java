@@ -1,11 +1,66 @@
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/**
+ * Parses VM commands without allocating per line: lines are scanned in place in a reused char buffer, commands are
+ * classified with a perfect hash and segment, label and function names are interned, so each distinct name is only
+ * allocated the first time it is seen.
+ */
 public class Parser implements AutoCloseable {
 
-    private final BufferedReader bufferedReader;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // files are mapped in windows of this size, a single mapping is limited to 2GB
+    private static final long MAP_WINDOW_SIZE = 1 << 26;
+    // perfect hash of the command keywords, see commandIndex
+    private static final int KEYWORD_TABLE_SIZE = 32;
+    private static final String[] KEYWORDS = new String[KEYWORD_TABLE_SIZE];
+    private static final CommandType[] KEYWORD_TYPES = new CommandType[KEYWORD_TABLE_SIZE];
+
+    static {
+        addKeyword("add", CommandType.C_ARITHMETIC);
+        addKeyword("sub", CommandType.C_ARITHMETIC);
+        addKeyword("neg", CommandType.C_ARITHMETIC);
+        addKeyword("eq", CommandType.C_ARITHMETIC);
+        addKeyword("gt", CommandType.C_ARITHMETIC);
+        addKeyword("lt", CommandType.C_ARITHMETIC);
+        addKeyword("and", CommandType.C_ARITHMETIC);
+        addKeyword("or", CommandType.C_ARITHMETIC);
+        addKeyword("not", CommandType.C_ARITHMETIC);
+        addKeyword("push", CommandType.C_PUSH);
+        addKeyword("pop", CommandType.C_POP);
+        addKeyword("label", CommandType.C_LABEL);
+        addKeyword("goto", CommandType.C_GOTO);
+        addKeyword("if-goto", CommandType.C_IF);
+        addKeyword("function", CommandType.C_FUNCTION);
+        addKeyword("return", CommandType.C_RETURN);
+        addKeyword("call", CommandType.C_CALL);
+    }
+
+    // the input is either read from channel or, for files, mapped from mappedChannel
+    private final ReadableByteChannel channel;
+    private final FileChannel mappedChannel;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private MappedByteBuffer window;
+    private long mappedBytes;
+    private final SymbolTable symbols = new SymbolTable();
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    // the line holding the next command is buffer[lineStart, lineEnd) once hasMoreLines returned true, and the line of
+    // the current command after advance until the next call to hasMoreLines or advance
+    private int lineStart;
+    private int lineEnd;
+    private boolean lookahead;
     private String currentLine;
     private String arg1;
     private int arg2;
@@ -13,54 +68,252 @@ public class Parser implements AutoCloseable {
     private CommandType commandType;
 
     Parser(InputStream in) {
-        this.bufferedReader = new BufferedReader(new InputStreamReader(in));
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads the channel as it arrives, e.g. standard input, without waiting for the whole input.
+     */
+    Parser(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.mappedChannel = null;
+    }
+
+    /**
+     * Reads the file through a memory mapping.
+     */
+    Parser(Path file) throws IOException {
+        this.channel = null;
+        this.mappedChannel = FileChannel.open(file, StandardOpenOption.READ);
     }
 
+    /**
+     * Must be called before the next call to hasMoreLines, which moves on to the line of the next command.
+     *
+     * @return the current command without comments and surrounding whitespace, created on demand
+     */
     public String getCurrentLine() {
-        return currentLine;
+        if (this.currentLine == null) {
+            this.currentLine = new String(this.buffer, this.lineStart, this.lineEnd - this.lineStart);
+        }
+        return this.currentLine;
     }
 
+    /**
+     * Makes the next command the current one.
+     *
+     * @throws NoSuchElementException if there are no more commands
+     */
     public void advance() throws IOException {
-        while (this.hasMoreLines()) {
-            String currentLine = this.bufferedReader.readLine();
-            if (currentLine.contains("//")) { // remove comments
-                currentLine = currentLine.substring(0, currentLine.indexOf("//"));
+        if (!this.hasMoreLines()) {
+            throw new NoSuchElementException("No more commands");
+        }
+        this.lookahead = false;
+        this.currentLine = null;
+        this.parseCommand(this.lineStart, this.lineEnd);
+    }
+
+    /**
+     * Reads ahead, skipping empty and comment-only lines, until the line of the next command. Blocks until that line
+     * or the end of the input arrives.
+     *
+     * @return true if there is another command
+     */
+    public boolean hasMoreLines() throws IOException {
+        while (!this.lookahead) {
+            if (!this.readLine()) {
+                return false;
+            }
+            int start = this.lineStart;
+            int end = this.lineEnd;
+            for (int i = start; i + 1 < end; i++) { // remove comments
+                if (this.buffer[i] == '/' && this.buffer[i + 1] == '/') {
+                    end = i;
+                    break;
+                }
+            }
+            while (start < end && Character.isWhitespace(this.buffer[start])) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(this.buffer[end - 1])) {
+                end--;
             }
-            currentLine = currentLine.trim();
 
-            if (!currentLine.isBlank()) { // ignore empty lines (after removing comments)
-                String[] tokens = currentLine.split(" ");
-                this.command = tokens[0];
+            if (start < end) { // ignore empty lines (after removing comments)
+                this.lineStart = start;
+                this.lineEnd = end;
+                this.lookahead = true;
+            }
+        }
+        return true;
+    }
 
-                if (tokens.length > 1) {
-                    this.arg1 = tokens[1];
-                } else {
-                    this.arg1 = null;
+    /**
+     * @return the remaining commands, parsed as they are iterated
+     */
+    public Iterator<VmCommand> commands() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return Parser.this.hasMoreLines();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+            }
 
-                if (tokens.length > 2) { // may not have a second argument
-                    this.arg2 = Integer.parseInt(tokens[2]);
-                } else {
-                    this.arg2 = -1;
+            @Override
+            public VmCommand next() {
+                try {
+                    Parser.this.advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+                return VmCommand.of(Parser.this.commandType, Parser.this.commandType == CommandType.C_ARITHMETIC ?
+                        Parser.this.command : Parser.this.arg1, Parser.this.arg2);
+            }
+        };
+    }
+
+    private void parseCommand(int start, int end) {
+        int commandEnd = this.skipToken(start, end);
+        int keyword = commandIndex(this.buffer, start, commandEnd - start);
+        if (keyword == -1) {
+            throw new RuntimeException("Unknown command: " + new String(this.buffer, start, commandEnd - start));
+        }
+        this.command = KEYWORDS[keyword];
+        this.commandType = KEYWORD_TYPES[keyword];
+
+        int arg1Start = this.skipWhitespace(commandEnd, end);
+        int arg1End = this.skipToken(arg1Start, end);
+        this.arg1 = arg1Start < arg1End ? this.symbols.intern(this.buffer, arg1Start, arg1End - arg1Start) : null;
+
+        int arg2Start = this.skipWhitespace(arg1End, end);
+        int arg2End = this.skipToken(arg2Start, end);
+        this.arg2 = arg2Start < arg2End ? this.parseInt(arg2Start, arg2End) : -1; // may not have a second argument
+    }
+
+    private int parseInt(int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = this.buffer[i];
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("For input string: \"" + new String(this.buffer, start,
+                        end - start) + "\"");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private int skipToken(int from, int end) {
+        while (from < end && !Character.isWhitespace(this.buffer[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private int skipWhitespace(int from, int end) {
+        while (from < end && Character.isWhitespace(this.buffer[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Sets the current line to the next line of input, without its line terminator.
+     *
+     * @return false if the input is exhausted
+     */
+    private boolean readLine() throws IOException {
+        int scan = this.position;
+        while (true) {
+            while (scan < this.limit) {
+                if (this.buffer[scan] == '\n') {
+                    this.setLine(this.position, scan);
+                    this.position = scan + 1;
+                    return true;
+                }
+                scan++;
+            }
+            int scanned = scan - this.position;
+            if (!this.fill()) {
+                if (this.position == this.limit) {
+                    return false;
+                }
+                this.setLine(this.position, this.limit); // last line without a line terminator
+                this.position = this.limit;
+                return true;
+            }
+            scan = this.position + scanned;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && this.buffer[end - 1] == '\r') {
+            end--;
+        }
+        this.lineStart = start;
+        this.lineEnd = end;
+    }
 
-                this.commandType = switch (this.command) {
-                    case "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not" -> CommandType.C_ARITHMETIC;
-                    case "push" -> CommandType.C_PUSH;
-                    case "pop" -> CommandType.C_POP;
-                    case "label" -> CommandType.C_LABEL;
-                    case "goto" -> CommandType.C_GOTO;
-                    case "if-goto" -> CommandType.C_IF;
-                    case "function" -> CommandType.C_FUNCTION;
-                    case "return" -> CommandType.C_RETURN;
-                    case "call" -> CommandType.C_CALL;
-                    default -> throw new RuntimeException("Unknown command: " + command);
-                };
+    /**
+     * Moves the unread part of the buffer to the front, growing the buffer if a line doesn't fit, and reads more input
+     * after it.
+     *
+     * @return false if there is no more input
+     */
+    private boolean fill() throws IOException {
+        int remaining = this.limit - this.position;
+        if (remaining == this.buffer.length) {
+            char[] grown = new char[this.buffer.length * 2];
+            System.arraycopy(this.buffer, this.position, grown, 0, remaining);
+            this.buffer = grown;
+        } else {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+        }
+        this.position = 0;
+        this.limit = remaining;
+        int read = this.readInput(this.buffer, this.limit, this.buffer.length - this.limit);
+        if (read <= 0) {
+            return false;
+        }
+        this.limit += read;
+        return true;
+    }
 
-                this.currentLine = currentLine;
-                break;
+    /**
+     * Copies the next ASCII bytes of the input into chars, without a charset decoder. Maps the next window of a mapped
+     * file when needed.
+     *
+     * @return number of chars read, or -1 at the end of the input
+     */
+    private int readInput(char[] chars, int offset, int length) throws IOException {
+        this.bytes.clear();
+        this.bytes.limit(Math.min(length, this.bytes.capacity()));
+        int read;
+        if (this.mappedChannel == null) {
+            do {
+                read = this.channel.read(this.bytes);
+            } while (read == 0);
+        } else {
+            if (this.window == null || !this.window.hasRemaining()) {
+                long size = this.mappedChannel.size();
+                if (this.mappedBytes >= size) {
+                    return -1;
+                }
+                long windowSize = Math.min(MAP_WINDOW_SIZE, size - this.mappedBytes);
+                this.window = this.mappedChannel.map(FileChannel.MapMode.READ_ONLY, this.mappedBytes, windowSize);
+                this.mappedBytes += windowSize;
             }
+            read = Math.min(this.bytes.remaining(), this.window.remaining());
+            this.window.get(this.bytes.array(), 0, read);
+        }
+        byte[] array = this.bytes.array();
+        for (int i = 0; i < read; i++) {
+            chars[offset + i] = (char) (array[i] & 0xff);
         }
+        return read;
     }
 
     public CommandType commandType() {
@@ -85,13 +338,46 @@ public class Parser implements AutoCloseable {
         }
     }
 
-    public boolean hasMoreLines() throws IOException {
-        return bufferedReader.ready();
-    }
-
     @Override
     public void close() throws IOException {
-        bufferedReader.close();
+        if (this.mappedChannel != null) {
+            this.mappedChannel.close();
+        } else {
+            this.channel.close();
+        }
+    }
+
+    private static void addKeyword(String keyword, CommandType commandType) {
+        int index = keywordHash(keyword.charAt(0), keyword.charAt(1), keyword.length());
+        if (KEYWORDS[index] != null) {
+            throw new IllegalStateException("Keyword hash collision: " + keyword + ", " + KEYWORDS[index]);
+        }
+        KEYWORDS[index] = keyword;
+        KEYWORD_TYPES[index] = commandType;
+    }
+
+    private static int keywordHash(char first, char second, int length) {
+        return (first * 12 + second * 25 + length) & (KEYWORD_TABLE_SIZE - 1);
+    }
+
+    /**
+     * @return index of the keyword in KEYWORDS, or -1 if the characters are not a command
+     */
+    private static int commandIndex(char[] chars, int start, int length) {
+        if (length < 2) {
+            return -1;
+        }
+        int index = keywordHash(chars[start], chars[start + 1], length);
+        String keyword = KEYWORDS[index];
+        if (keyword == null || keyword.length() != length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword.charAt(i) != chars[start + i]) {
+                return -1;
+            }
+        }
+        return index;
     }
 
     public enum CommandType {
@@ -109,4 +395,69 @@ public class Parser implements AutoCloseable {
             return this == C_PUSH || this == C_POP || this == C_FUNCTION || this == C_CALL;
         }
     }
+
+    /**
+     * Open addressing hash set of strings that can be looked up by a range of chars without creating a string.
+     */
+    private static class SymbolTable {
+        private String[] symbols = new String[256];
+        private int[] hashes = new int[256];
+        private int size;
+
+        String intern(char[] chars, int start, int length) {
+            int hash = 0;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            int mask = this.symbols.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                String symbol = this.symbols[slot];
+                if (symbol == null) {
+                    symbol = new String(chars, start, length);
+                    this.insert(symbol, hash);
+                    return symbol;
+                }
+                if (this.hashes[slot] == hash && equals(symbol, chars, start, length)) {
+                    return symbol;
+                }
+            }
+        }
+
+        private void insert(String symbol, int hash) {
+            if (++this.size * 2 > this.symbols.length) {
+                String[] oldSymbols = this.symbols;
+                int[] oldHashes = this.hashes;
+                this.symbols = new String[oldSymbols.length * 2];
+                this.hashes = new int[oldSymbols.length * 2];
+                for (int i = 0; i < oldSymbols.length; i++) {
+                    if (oldSymbols[i] != null) {
+                        this.put(oldSymbols[i], oldHashes[i]);
+                    }
+                }
+            }
+            this.put(symbol, hash);
+        }
+
+        private void put(String symbol, int hash) {
+            int mask = this.symbols.length - 1;
+            int slot = hash & mask;
+            while (this.symbols[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            this.symbols[slot] = symbol;
+            this.hashes[slot] = hash;
+        }
+
+        private static boolean equals(String symbol, char[] chars, int start, int length) {
+            if (symbol.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (symbol.charAt(i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs rewrites over the programs of a translation, e.g. a single file or all files of a directory, in the order they
+ * were added, before code generation. Analyses of the programs are computed once and kept until a rewrite changes
+ * them.
+ */
+public class PassManager {
+
+    private final List<Program> programs;
+    private final List<Rewrite> rewrites = new ArrayList<>();
+    private final Map<Analysis<?>, Object> analysisResults = new HashMap<>();
+
+    public PassManager(List<Program> programs) {
+        this.programs = programs;
+    }
+
+    public PassManager(Program program) {
+        this(List.of(program));
+    }
+
+    public PassManager addRewrite(Rewrite rewrite) {
+        this.rewrites.add(rewrite);
+        return this;
+    }
+
+    /**
+     * Runs every rewrite over every program, dropping the analyses of the programs whenever a rewrite changes one.
+     */
+    public void run() {
+        for (Rewrite rewrite : this.rewrites) {
+            for (Program program : this.programs) {
+                if (rewrite.run(program)) {
+                    this.analysisResults.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the result of the analysis for the programs as they are now, computed if there is none yet
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getAnalysis(Analysis<T> analysis) {
+        Object result = this.analysisResults.get(analysis);
+        if (result == null) {
+            // not computeIfAbsent, since an analysis can ask for the analyses it builds on
+            result = analysis.analyze(this);
+            this.analysisResults.put(analysis, result);
+        }
+        return (T) result;
+    }
+
+    public List<Program> getPrograms() {
+        return this.programs;
+    }
+
+    /**
+     * Computes facts about the programs without changing them. Implementations are used as keys of the results, so an
+     * analysis with parameters must implement equals, e.g. as a record.
+     */
+    public interface Analysis<T> {
+        /**
+         * @param passManager gives the programs and the other analyses
+         */
+        T analyze(PassManager passManager);
+    }
+
+    /**
+     * Changes a program.
+     */
+    public interface Rewrite {
+        /**
+         * @return true if the program was changed
+         */
+        boolean run(Program program);
+    }
+
+    /**
+     * Removes the functions that are not in a set, e.g. the ones that can't be reached from Sys.init. Commands outside
+     * of functions are kept.
+     */
+    public static class PruneFunctions implements Rewrite {
+        private final Set<String> kept;
+
+        public PruneFunctions(Set<String> kept) {
+            this.kept = kept;
+        }
+
+        @Override
+        public boolean run(Program program) {
+            return program.getFunctions().removeIf(function -> function.getName() != null &&
+                    !this.kept.contains(function.getName()));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Rewrites a buffer of emitted Hack instructions, removing redundancies that the code generators leave behind
+ * because they only look at one VM command at a time. Comments and blank lines are skipped when matching.
+ */
+public class PeepholeOptimizer {
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+
+    public static PeepholeOptimizer withDefaultRules() {
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        optimizer.addRule(new PushPopPair());
+        optimizer.addRule(new DeadDLoad());
+        optimizer.addRule(new RedundantALoad());
+        optimizer.addRule(new JumpToNextLabel());
+        return optimizer;
+    }
+
+    public void addRule(Rule rule) {
+        this.rules.add(rule);
+        this.hits.putIfAbsent(rule.name(), 0);
+    }
+
+    /**
+     * Applies every rule until none of them matches anymore.
+     */
+    public void optimize(List<String> lines) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : this.rules) {
+                int ruleHits = rule.apply(lines);
+                if (ruleHits > 0) {
+                    this.hits.merge(rule.name(), ruleHits, Integer::sum);
+                    lines.removeIf(Objects::isNull);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the rewrites counted by another optimizer to this one.
+     */
+    public void mergeHits(PeepholeOptimizer other) {
+        other.hits.forEach((rule, ruleHits) -> this.hits.merge(rule, ruleHits, Integer::sum));
+    }
+
+    /**
+     * @return number of rewrites per rule name, in the order the rules were added
+     */
+    public Map<String, Integer> getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return index of the first instruction or label at or after from, or -1 if there is none
+     */
+    static int nextCode(List<String> lines, int from) {
+        for (int i = from; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line != null && !line.isEmpty() && !line.startsWith("//")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isLabel(String line) {
+        return line.startsWith("(");
+    }
+
+    static boolean isAInstruction(String line) {
+        return line.startsWith("@");
+    }
+
+    static String dest(String line) {
+        int equals = line.indexOf('=');
+        return equals == -1 ? "" : line.substring(0, equals);
+    }
+
+    static String comp(String line) {
+        int equals = line.indexOf('=');
+        int semicolon = line.indexOf(';');
+        return line.substring(equals + 1, semicolon == -1 ? line.length() : semicolon);
+    }
+
+    static boolean isJump(String line) {
+        return line.indexOf(';') != -1;
+    }
+
+    /**
+     * A rewrite over the instruction buffer.
+     */
+    public interface Rule {
+        String name();
+
+        /**
+         * Deletes instructions by replacing them with null.
+         *
+         * @return number of rewrites
+         */
+        int apply(List<String> lines);
+    }
+
+    /**
+     * A push of D immediately followed by a pop: "@SP, A=M, M=D, @SP, M=M+1" then "@SP, M=M-1, A=M" or
+     * "@SP, AM=M-1". Only the store is kept, which leaves SP, A and M as they would be after the pop. A following
+     * "D=M" is dropped as well since D already equals M.
+     */
+    static class PushPopPair implements Rule {
+        private static final String[] PUSH = {"@SP", "A=M", "M=D", "@SP", "M=M+1"};
+
+        @Override
+        public String name() {
+            return "push-pop-pair";
+        }
+
+        @Override
+        public int apply(List<String> lines) {
+            int count = 0;
+            for (int i = nextCode(lines, 0); i != -1; i = nextCode(lines, i + 1)) {
+                int[] push = match(lines, i, PUSH);
+                if (push == null) {
+                    continue;
+                }
+                int next = nextCode(lines, push[push.length - 1] + 1);
+                int[] pop = match(lines, next, "@SP", "M=M-1", "A=M");
+                if (pop == null) {
+                    pop = match(lines, next, "@SP", "AM=M-1");
+                }
+                if (pop == null) {
+                    continue;
+                }
+                lines.set(push[3], null);
+                lines.set(push[4], null);
+                for (int index : pop) {
+                    lines.set(index, null);
+                }
+                int load = nextCode(lines, pop[pop.length - 1] + 1);
+                if (load != -1 && lines.get(load).equals("D=M")) {
+                    lines.set(load, null);
+                }
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * @return indices of the matched instructions, or null if the instructions starting at from don't match
+         */
+        private static int[] match(List<String> lines, int from, String... pattern) {
+            int[] indices = new int[pattern.length];
+            int i = from;
+            for (int p = 0; p < pattern.length; p++) {
+                if (i == -1 || !lines.get(i).equals(pattern[p])) {
+                    return null;
+                }
+                indices[p] = i;
+                i = nextCode(lines, i + 1);
+            }
+            return indices;
+        }
+    }
+
+    /**
+     * A load into D that is overwritten before it is read, e.g. "D=M, @5, D=A".
+     */
+    static class DeadDLoad implements Rule {
+        @Override
+        public String name() {
+            return "dead-d-load";
+        }
+
+        @Override
+        public int apply(List<String> lines) {
+            int count = 0;
+            for (int i = nextCode(lines, 0); i != -1; i = nextCode(lines, i + 1)) {
+                String line = lines.get(i);
+                if (isLabel(line) || isAInstruction(line) || isJump(line) || !dest(line).equals("D")) {
+                    continue;
+                }
+                for (int j = nextCode(lines, i + 1); j != -1; j = nextCode(lines, j + 1)) {
+                    String next = lines.get(j);
+                    if (isLabel(next)) {
+                        break;
+                    }
+                    if (isAInstruction(next)) {
+                        continue;
+                    }
+                    if (comp(next).contains("D") || isJump(next)) {
+                        break;
+                    }
+                    if (dest(next).contains("D")) {
+                        lines.set(i, null);
+                        count++;
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * An A-instruction loading the address A already holds, e.g. the second "@SP" in "@SP, M=M+1, @SP, D=M".
+     */
+    static class RedundantALoad implements Rule {
+        @Override
+        public String name() {
+            return "redundant-a-load";
+        }
+
+        @Override
+        public int apply(List<String> lines) {
+            int count = 0;
+            String address = null;
+            for (int i = nextCode(lines, 0); i != -1; i = nextCode(lines, i + 1)) {
+                String line = lines.get(i);
+                if (isAInstruction(line)) {
+                    if (line.equals(address)) {
+                        lines.set(i, null);
+                        count++;
+                    }
+                    address = line;
+                } else if (isLabel(line) || isJump(line) || dest(line).contains("A")) {
+                    address = null;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A jump without side effects to a label directly following it, e.g. "@L, 0;JMP, (L)".
+     */
+    static class JumpToNextLabel implements Rule {
+        @Override
+        public String name() {
+            return "jump-to-next-label";
+        }
+
+        @Override
+        public int apply(List<String> lines) {
+            int count = 0;
+            for (int i = nextCode(lines, 0); i != -1; i = nextCode(lines, i + 1)) {
+                String line = lines.get(i);
+                int jump = nextCode(lines, i + 1);
+                if (!isAInstruction(line) || jump == -1 || !isJump(lines.get(jump)) || !dest(lines.get(jump)).isEmpty()) {
+                    continue;
+                }
+                String target = "(" + line.substring(1) + ")";
+                for (int j = nextCode(lines, jump + 1); j != -1 && isLabel(lines.get(j)); j = nextCode(lines, j + 1)) {
+                    if (lines.get(j).equals(target)) {
+                        lines.set(i, null);
+                        lines.set(jump, null);
+                        count++;
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The RAM counters of a program translated with --profile. Every function gets three 32-bit counters, stored low word
+ * first above the keyboard register where programs don't write: how often it was entered, how many calls it made and
+ * how often it returned.
+ * <p>
+ * The symbol map written next to the output lists, per function, its ROM address and the RAM address of each counter,
+ * so any emulator can read the counters and attribute cycles to functions by ROM address. Hack code has no clock, so
+ * the cycles are counted by the emulator rather than by the program: the self cycles of a function are the
+ * instructions run at its own ROM addresses, and its cumulative cycles those run from a call to it until it returns,
+ * including the functions it called.
+ */
+public class ProfileMap {
+
+    // first word after KBD
+    public static final int BASE_ADDRESS = 24577;
+    private static final int COUNTER_WORDS = 2;
+    private static final int FUNCTION_WORDS = Counter.values().length * COUNTER_WORDS;
+    // ROM code before the first function and after the last one
+    private static final String BOOTSTRAP = "(bootstrap)";
+    private static final String SHARED_ROUTINES = "(shared routines)";
+
+    // function name -> address of its first counter, in the order the functions were added
+    private final Map<String, Integer> addresses = new LinkedHashMap<>();
+
+    /**
+     * Adds a function if it has no counters yet.
+     *
+     * @throws IllegalStateException if the counters don't fit in RAM anymore
+     */
+    public synchronized void add(String function) {
+        if (!this.addresses.containsKey(function)) {
+            int address = BASE_ADDRESS + this.addresses.size() * FUNCTION_WORDS;
+            if (address + FUNCTION_WORDS > HackEmulator.RAM_SIZE) {
+                throw new IllegalStateException("Too many functions to profile: " + function);
+            }
+            this.addresses.put(function, address);
+        }
+    }
+
+    /**
+     * @return RAM address of the low word of the function's counter, adding the function if needed
+     */
+    public synchronized int counterAddress(String function, Counter counter) {
+        this.add(function);
+        return this.addresses.get(function) + counter.ordinal() * COUNTER_WORDS;
+    }
+
+    /**
+     * @return the counter addresses, so cached translations are only reused while they don't change
+     */
+    public synchronized String describe() {
+        return this.addresses.toString();
+    }
+
+    /**
+     * Writes the symbol map: a line per function with its name, its ROM address and the RAM addresses of its
+     * counters, or -1 for a function that was not translated, e.g. pruned. The shared routines, if any, are listed
+     * last under their label, without counters.
+     */
+    public synchronized void write(Path file, HackAssembler assembler) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("// function, ROM address, RAM addresses of the entry, call and return counters");
+            writer.newLine();
+            writer.write("// counters are 32 bits, low word first");
+            writer.newLine();
+            for (Map.Entry<String, Integer> entry : this.addresses.entrySet()) {
+                int address = entry.getValue();
+                writer.write(String.format("%s %d %d %d %d", entry.getKey(),
+                        assembler.getLabels().getOrDefault(entry.getKey(), -1), address, address + COUNTER_WORDS,
+                        address + 2 * COUNTER_WORDS));
+                writer.newLine();
+            }
+            Integer sharedRoutines = assembler.getLabels().get(CodeWriter.SHARED_ROUTINES_LABEL);
+            if (sharedRoutines != null) {
+                writer.write(String.format("%s %d -1 -1 -1", CodeWriter.SHARED_ROUTINES_LABEL, sharedRoutines));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Counts the instructions the emulator runs at each ROM address and follows the calls and returns of the functions
+     * from now on, before the program runs.
+     *
+     * @return the cycles of each function once the program ran, for getReport
+     */
+    public synchronized CallTracker trackCalls(HackEmulator emulator, HackAssembler assembler) {
+        CallTracker calls = new CallTracker(emulator, assembler, new ArrayList<>(this.addresses.keySet()));
+        emulator.countInstructions();
+        emulator.setJumpListener(calls);
+        return calls;
+    }
+
+    /**
+     * @param emulator has run the program, tracked by calls
+     * @return the counters of every function that ran, the cycles spent in its own code and its cumulative cycles,
+     * most self cycles first
+     */
+    public synchronized String getReport(HackEmulator emulator, HackAssembler assembler, CallTracker calls) {
+        // code before the first function belongs to the bootstrap, code after the shared routines label to the
+        // shared routines
+        List<String> labels = new ArrayList<>(this.addresses.keySet());
+        labels.add(CodeWriter.SHARED_ROUTINES_LABEL);
+        Map<String, Integer> sizes = assembler.getCodeSizes(labels);
+        List<String> functions = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        functions.add(BOOTSTRAP);
+        starts.add(0);
+        for (String label : sizes.keySet()) {
+            functions.add(label.equals(CodeWriter.SHARED_ROUTINES_LABEL) ? SHARED_ROUTINES : label);
+            starts.add(assembler.getLabels().get(label));
+        }
+        starts.add(emulator.getRomSize());
+
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < functions.size(); i++) {
+            long cycles = 0;
+            for (int address = starts.get(i); address < starts.get(i + 1); address++) {
+                cycles += emulator.getInstructionCount(address);
+            }
+            Integer address = this.addresses.get(functions.get(i));
+            // everything runs below the bootstrap code, and the shared routines run for the function calling them
+            long cumulativeCycles = functions.get(i).equals(BOOTSTRAP) ? emulator.getCycles() :
+                    address == null ? cycles : calls.getCumulativeCycles(functions.get(i));
+            Row row = address == null ? new Row(functions.get(i), 0, 0, 0, cycles, cumulativeCycles) :
+                    new Row(functions.get(i), readCounter(emulator, address),
+                            readCounter(emulator, address + COUNTER_WORDS),
+                            readCounter(emulator, address + 2 * COUNTER_WORDS), cycles, cumulativeCycles);
+            if (row.cycles > 0 || row.entries > 0) {
+                rows.add(row);
+            }
+        }
+        rows.sort(Comparator.comparingLong(Row::cycles).reversed());
+        StringBuilder report = new StringBuilder(String.format("%-40s %10s %10s %10s %12s %6s %12s%n", "profile",
+                "entries", "calls", "returns", "self cycles", "%", "cumulative"));
+        for (Row row : rows) {
+            report.append(String.format("%-40s %10d %10d %10d %12d %6.1f %12d%n", row.function, row.entries,
+                    row.calls, row.returns, row.cycles, 100.0 * row.cycles / emulator.getCycles(),
+                    row.cumulativeCycles));
+        }
+        return report.toString();
+    }
+
+    private static long readCounter(HackEmulator emulator, int address) {
+        return (emulator.peek(address) & 0xffffL) | (emulator.peek(address + 1) & 0xffffL) << 16;
+    }
+
+    private record Row(String function, long entries, long calls, long returns, long cycles,
+                       long cumulativeCycles) {
+    }
+
+    /**
+     * Follows the calls and returns of a run through the jumps it takes. A jump to the ROM address of a function is a
+     * call to it. Every call sets LCL to the callee's frame and every return restores the caller's, so a jump that
+     * leaves LCL at the frame of a caller returns to that caller. Other jumps, e.g. into the shared routines, are
+     * part of the running function.
+     * <p>
+     * A function's cumulative cycles run from the jump calling it to the jump returning from it. While a function
+     * is already running further up the stack, e.g. when it recurses, its calls are not counted again.
+     */
+    public static class CallTracker implements HackEmulator.JumpListener {
+        private final HackEmulator emulator;
+        private final List<String> functions;
+        // ROM address -> index of the function starting there
+        private final Map<Integer, Integer> entries = new HashMap<>();
+        // per function: how often it is on the call stack, the cycles when it got on it, and its cumulative cycles
+        private final int[] depths;
+        private final long[] starts;
+        private final long[] cumulativeCycles;
+        // the running functions and the LCL of their frames, innermost last
+        private int[] stack = new int[64];
+        private int[] frames = new int[64];
+        private int stackSize;
+
+        CallTracker(HackEmulator emulator, HackAssembler assembler, List<String> functions) {
+            this.emulator = emulator;
+            this.functions = functions;
+            for (int i = 0; i < functions.size(); i++) {
+                Integer address = assembler.getLabels().get(functions.get(i));
+                if (address != null) {
+                    this.entries.put(address, i);
+                }
+            }
+            this.depths = new int[functions.size()];
+            this.starts = new long[functions.size()];
+            this.cumulativeCycles = new long[functions.size()];
+        }
+
+        @Override
+        public void jumped(int target, long cycles) {
+            int localPointer = this.emulator.peek(1);
+            Integer function = this.entries.get(target);
+            if (function != null) {
+                if (this.stackSize == this.stack.length) {
+                    this.stack = Arrays.copyOf(this.stack, this.stackSize * 2);
+                    this.frames = Arrays.copyOf(this.frames, this.stackSize * 2);
+                }
+                this.stack[this.stackSize] = function;
+                this.frames[this.stackSize++] = localPointer;
+                if (this.depths[function]++ == 0) {
+                    this.starts[function] = cycles;
+                }
+                return;
+            }
+            int caller = this.stackSize - 1;
+            while (caller >= 0 && this.frames[caller] != localPointer) {
+                caller--;
+            }
+            // nothing returns if LCL isn't the frame of a running function
+            while (caller >= 0 && this.stackSize - 1 > caller) {
+                int returned = this.stack[--this.stackSize];
+                if (--this.depths[returned] == 0) {
+                    this.cumulativeCycles[returned] += cycles - this.starts[returned];
+                }
+            }
+        }
+
+        /**
+         * @return the cycles the function ran for, including the functions it called, up to now if it is still
+         * running
+         */
+        public long getCumulativeCycles(String function) {
+            int index = this.functions.indexOf(function);
+            if (index == -1) {
+                return 0;
+            }
+            long cycles = this.cumulativeCycles[index];
+            return this.depths[index] > 0 ? cycles + this.emulator.getCycles() - this.starts[index] : cycles;
+        }
+    }
+
+    public enum Counter {
+        // the function was entered
+        ENTRIES,
+        // the function called another one
+        CALLS,
+        // the function returned
+        RETURNS
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Intermediate representation of a VM program: its functions in input order, each with its commands in a compact
+ * CommandList. Passes run by a PassManager can analyse and rewrite it before code generation.
+ */
+public class Program {
+
+    private final CommandList.Symbols symbols = new CommandList.Symbols();
+    private final List<VmFunction> functions = new ArrayList<>();
+
+    /**
+     * Reads the remaining commands of the parser as the functions of a file.
+     */
+    public void read(Parser parser, String fileName) throws IOException {
+        VmFunction function = null;
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            if (function == null || parser.commandType() == Parser.CommandType.C_FUNCTION) {
+                function = this.addFunction(fileName,
+                        parser.commandType() == Parser.CommandType.C_FUNCTION ? parser.arg1() : null);
+            }
+            function.getCommands().add(parser);
+        }
+    }
+
+    /**
+     * Adds an empty function, to which its commands are added.
+     *
+     * @param name null for commands outside of functions
+     */
+    public VmFunction addFunction(String fileName, String name) {
+        VmFunction function = new VmFunction(fileName, name, this.newCommandList());
+        this.functions.add(function);
+        return function;
+    }
+
+    /**
+     * @return the functions in input order, passes may remove or reorder them
+     */
+    public List<VmFunction> getFunctions() {
+        return this.functions;
+    }
+
+    /**
+     * @return an empty list sharing the names of this program
+     */
+    public CommandList newCommandList() {
+        return new CommandList(this.symbols);
+    }
+
+    /**
+     * @return total number of commands
+     */
+    public int size() {
+        int size = 0;
+        for (VmFunction function : this.functions) {
+            size += function.getCommands().size();
+        }
+        return size;
+    }
+}
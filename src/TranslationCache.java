@@ -0,0 +1,148 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of translated fragments, one entry per input file. An entry is keyed by the content of the file, its
+ * name (static symbols are named after it), the code generation options, the functions pruned from it and the
+ * translator version, so a changed translator never reuses old output.
+ * <p>
+ * An entry is stored as "[fileName].[key].frag": a header line with the shared call / return sites and the shared
+ * comparison sites (e.g. "EQ=12,LT=3", or "-" if there are none) followed by the fragment text.
+ */
+public class TranslationCache {
+
+    public static final String DIRECTORY_NAME = ".vmcache";
+    private static final String HEADER = "// vmcache ";
+    // classes whose code determines the translated output
+    private static final Class<?>[] TRANSLATOR_CLASSES = {Parser.class, VmCommand.class, CommandList.class,
+            Program.class, PassManager.class, LeafInliner.class, JumpOptimizer.class, VMTranslator.class,
+            CodeWriter.class, PeepholeOptimizer.class, ProfileMap.class};
+    private static String translatorVersion;
+
+    private final File directory;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public TranslationCache(File outputDirectory) {
+        this.directory = new File(outputDirectory, DIRECTORY_NAME);
+    }
+
+    /**
+     * @param variant anything else the translation of the file depends on
+     * @return the key of the file's cache entry
+     */
+    public String key(Path inputFile, String fileName, TranslatorOptions options, String variant) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(translatorVersion().getBytes(StandardCharsets.UTF_8));
+        digest.update(options.describeCodeGeneration().getBytes(StandardCharsets.UTF_8));
+        digest.update(fileName.getBytes(StandardCharsets.UTF_8));
+        digest.update(variant.getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = new DigestInputStream(Files.newInputStream(inputFile), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the cached fragment, or null if there is no entry for the key
+     */
+    public CodeWriter load(String fileName, String key, TranslatorOptions options) throws IOException {
+        Path entry = this.entry(fileName, key);
+        if (!Files.isRegularFile(entry)) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        String content = Files.readString(entry, StandardCharsets.US_ASCII);
+        int headerEnd = content.indexOf('\n');
+        String[] sites = content.substring(HEADER.length(), headerEnd).split(" ");
+        Map<CodeWriter.ArithmeticCommand, Integer> comparisonSites = new EnumMap<>(CodeWriter.ArithmeticCommand.class);
+        if (!sites[2].equals("-")) {
+            for (String kindSites : sites[2].split(",")) {
+                String[] parts = kindSites.split("=");
+                comparisonSites.put(CodeWriter.ArithmeticCommand.valueOf(parts[0]), Integer.parseInt(parts[1]));
+            }
+        }
+        this.hits.incrementAndGet();
+        return CodeWriter.restoreFragment(options, fileName, content.substring(headerEnd + 1),
+                new int[]{Integer.parseInt(sites[0]), Integer.parseInt(sites[1])}, comparisonSites);
+    }
+
+    /**
+     * Stores the fragment of the file, replacing older entries of the same file.
+     */
+    public void store(String fileName, String key, CodeWriter fragment) throws IOException {
+        Files.createDirectories(this.directory.toPath());
+        File[] stale = this.directory.listFiles((dir, name) -> name.startsWith(fileName + ".") &&
+                name.endsWith(".frag"));
+        if (stale != null) {
+            for (File file : stale) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        int[] sites = fragment.getSharedCallReturnSites(fileName);
+        StringJoiner comparisonSites = new StringJoiner(",").setEmptyValue("-");
+        fragment.getSharedComparisonSites().forEach((kind, kindSites) -> comparisonSites.add(kind.name() + "=" +
+                kindSites));
+        Path temp = Files.createTempFile(this.directory.toPath(), fileName, ".tmp");
+        Files.writeString(temp, HEADER + sites[0] + " " + sites[1] + " " + comparisonSites + "\n" +
+                fragment.getFragmentText(), StandardCharsets.US_ASCII);
+        Files.move(temp, this.entry(fileName, key), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public String getReport() {
+        return String.format("cache: %d hits, %d misses%n", this.hits.get(), this.misses.get());
+    }
+
+    private Path entry(String fileName, String key) {
+        return new File(this.directory, fileName + "." + key + ".frag").toPath();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a hash of the translator's class files
+     */
+    private static synchronized String translatorVersion() throws IOException {
+        if (translatorVersion == null) {
+            MessageDigest digest = newDigest();
+            for (Class<?> translatorClass : TRANSLATOR_CLASSES) {
+                updateDigest(digest, translatorClass);
+                for (Class<?> nestedClass : translatorClass.getDeclaredClasses()) {
+                    updateDigest(digest, nestedClass);
+                }
+            }
+            translatorVersion = HexFormat.of().formatHex(digest.digest());
+        }
+        return translatorVersion;
+    }
+
+    private static void updateDigest(MessageDigest digest, Class<?> translatorClass) throws IOException {
+        String classFile = "/" + translatorClass.getName().replace('.', '/') + ".class";
+        try (InputStream in = TranslationCache.class.getResourceAsStream(classFile)) {
+            if (in == null) {
+                throw new IOException("Can't read " + classFile);
+            }
+            digest.update(in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options for the translator. Flags start with "-" and may appear anywhere, the remaining argument is
+ * the input file or directory, or "-" to translate standard input to standard output. With --batch, every remaining
+ * argument is an input translated as a job of its own, or "-" reads the jobs from standard input.
+ */
+public class TranslatorOptions {
+
+    public static final String STANDARD_INPUT = "-";
+
+    private final List<String> inputs = new ArrayList<>();
+    // the arguments other than the inputs and --batch, to derive the options of a batch job
+    private final List<String> flags = new ArrayList<>();
+    private boolean batch;
+    private boolean sharedCallReturn;
+    private boolean optimize;
+    private boolean stackCache;
+    private boolean trimFrames;
+    private boolean cache = true;
+    private boolean prune;
+    private ComparisonStrategy comparisonStrategy = ComparisonStrategy.INLINE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int inlineThreshold;
+    private int outlineBudget;
+    private long runCycles;
+    private OutputFormat outputFormat = OutputFormat.ASM;
+    private boolean keepAsm;
+    private boolean profile;
+    private String reportFile;
+    private String linkDirectory;
+
+    private TranslatorOptions() {
+    }
+
+    public static TranslatorOptions defaults() {
+        return new TranslatorOptions();
+    }
+
+    /**
+     * @return the parsed options, or null if the arguments are invalid
+     */
+    public static TranslatorOptions parse(String[] args) {
+        TranslatorOptions options = new TranslatorOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.equals(STANDARD_INPUT)) {
+                options.inputs.add(arg);
+                continue;
+            }
+            int flagStart = i;
+            switch (arg) {
+                case "--batch" -> options.batch = true;
+                case "--shared-call-return" -> options.sharedCallReturn = true;
+                case "-O" -> options.optimize = true;
+                case "--stack-cache" -> options.stackCache = true;
+                case "--trim-frames" -> options.trimFrames = true;
+                case "--no-cache" -> options.cache = false;
+                case "--prune" -> options.prune = true;
+                case "--compare" -> {
+                    options.comparisonStrategy = i + 1 < args.length ? ComparisonStrategy.fromString(args[++i]) : null;
+                    if (options.comparisonStrategy == null) {
+                        return null;
+                    }
+                }
+                case "--emit" -> {
+                    options.outputFormat = i + 1 < args.length ? OutputFormat.fromString(args[++i]) : null;
+                    if (options.outputFormat == null) {
+                        return null;
+                    }
+                }
+                case "--keep-asm" -> options.keepAsm = true;
+                case "--profile" -> options.profile = true;
+                case "--report" -> {
+                    if (i + 1 >= args.length) {
+                        return null;
+                    }
+                    options.reportFile = args[++i];
+                }
+                case "--link" -> {
+                    if (i + 1 >= args.length) {
+                        return null;
+                    }
+                    options.linkDirectory = args[++i];
+                }
+                case "--threads" -> {
+                    options.threads = i + 1 < args.length ? parsePositive(args[++i]) : -1;
+                    if (options.threads <= 0) {
+                        return null;
+                    }
+                }
+                case "--inline" -> {
+                    options.inlineThreshold = i + 1 < args.length ? parsePositive(args[++i]) : -1;
+                    if (options.inlineThreshold <= 0) {
+                        return null;
+                    }
+                }
+                case "--outline" -> {
+                    options.outlineBudget = i + 1 < args.length ? parsePositive(args[++i]) : -1;
+                    if (options.outlineBudget <= 0) {
+                        return null;
+                    }
+                }
+                case "--run" -> {
+                    options.runCycles = i + 1 < args.length ? parsePositive(args[++i]) : -1;
+                    if (options.runCycles <= 0) {
+                        return null;
+                    }
+                }
+                default -> {
+                    return null;
+                }
+            }
+            if (!arg.equals("--batch")) {
+                options.flags.addAll(List.of(args).subList(flagStart, i + 1));
+            }
+        }
+        if (options.batch && options.inputs.size() > 1 && options.inputs.contains(STANDARD_INPUT)) {
+            return null;
+        }
+        // objects are translated file by file, without the whole program these options need
+        if ((options.linkDirectory != null || options.outputFormat == OutputFormat.OBJECT) &&
+                (options.prune || options.inlineThreshold > 0 || options.profile || options.trimFrames)) {
+            return null;
+        }
+        // the shared call and return routines save the full frame
+        if (options.trimFrames && options.sharedCallReturn) {
+            return null;
+        }
+        if (options.outputFormat == OutputFormat.OBJECT && (options.runCycles > 0 || options.reportFile != null ||
+                options.linkDirectory != null || options.outlineBudget > 0 ||
+                options.inputs.contains(STANDARD_INPUT))) {
+            return null;
+        }
+        return options.inputs.size() == 1 || options.batch && !options.inputs.isEmpty() ? options : null;
+    }
+
+    /**
+     * @param args the arguments of a batch job, at least its input
+     * @return the options of the job: these options without --batch and the inputs, followed by its arguments, or
+     * null if they are invalid
+     */
+    public TranslatorOptions forJob(String... args) {
+        List<String> jobArgs = new ArrayList<>(this.flags);
+        jobArgs.addAll(List.of(args));
+        return parse(jobArgs.toArray(new String[0]));
+    }
+
+    /**
+     * @return the number, or -1 if it is not a positive integer
+     */
+    private static int parsePositive(String value) {
+        try {
+            return Math.max(Integer.parseInt(value), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static String usage() {
+        return "[-O] [--shared-call-return] [--stack-cache] [--trim-frames] [--threads N] [--no-cache] [--prune] [--compare inline|shared|auto] [--inline N] [--outline N] [--run N] [--emit asm|hack|binary|object] [--keep-asm] [--profile] [--report FILE] [--link DIR] <inputfile[.vm] | directory | - >" +
+                "\n   or: --batch [options] <inputfile[.vm] | directory>... | -";
+    }
+
+    public String getInput() {
+        return inputs.get(0);
+    }
+
+    /**
+     * @return the inputs of a batch, one job each, or just "-" if the jobs are read from standard input
+     */
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * If true, the inputs are translated as separate jobs sharing one warm JVM and thread pool. Each line of a batch
+     * read from standard input holds the arguments of one job, added to the batch's own flags.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * If true, calls and returns jump into a single shared $$CALL / $$RETURN routine instead of being inlined.
+     */
+    public boolean isSharedCallReturn() {
+        return sharedCallReturn;
+    }
+
+    /**
+     * If true, the jumps of each function are simplified and the emitted instructions are run through the peephole
+     * optimizer.
+     */
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    /**
+     * If true, the top of the stack is kept in D across consecutive push, pop, arithmetic and if-goto commands and
+     * only written to RAM at labels, gotos, calls and returns.
+     */
+    public boolean isStackCache() {
+        return stackCache;
+    }
+
+    /**
+     * If true, a call only saves THIS and THAT if the callee may change them, which it can only do with pop pointer.
+     * The frame of each function holds the return address, LCL, ARG and the pointers it saves, in that order. Not
+     * supported for standard input, nor with --shared-call-return, whose shared routines save the full frame.
+     */
+    public boolean isTrimFrames() {
+        return trimFrames;
+    }
+
+    /**
+     * If true, translated files are cached under the output directory and reused while they don't change.
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    /**
+     * If true, functions that can't be reached from Sys.init are left out. Not supported for standard input, which is
+     * translated as it arrives.
+     */
+    public boolean isPrune() {
+        return prune;
+    }
+
+    public ComparisonStrategy getComparisonStrategy() {
+        return comparisonStrategy;
+    }
+
+    /**
+     * Calls to leaf functions of at most this many commands are inlined, 0 if no calls are inlined. Not supported for
+     * standard input.
+     */
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * If positive, instruction sequences repeated across the program are outlined into shared subroutines until the
+     * program fits into this many ROM words, e.g. 32768 for the Hack ROM, each call site costing 9 more cycles. 0 if
+     * nothing is outlined. Not supported for standard input.
+     */
+    public int getOutlineBudget() {
+        return outlineBudget;
+    }
+
+    /**
+     * If positive, the output is assembled and run on the built-in emulator for at most this many instructions, 0 if
+     * it is not run. Not supported for standard input.
+     */
+    public long getRunCycles() {
+        return runCycles;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * If true, the .asm file is written as well when the output format is not ASM. Not supported for standard input.
+     */
+    public boolean isKeepAsm() {
+        return keepAsm;
+    }
+
+    /**
+     * If true, every function counts its entries, calls and returns in RAM, and a symbol map of the counters is written
+     * next to the output. Not supported for standard input.
+     */
+    public boolean isProfile() {
+        return profile;
+    }
+
+    /**
+     * The file the JSON build report is written to, null if there is none. Not supported for standard input.
+     */
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * The directory of the precompiled objects linked into the program, null if there is none. Objects of files that
+     * are also part of the input are left out, so a program can replace a library file. Not supported for standard
+     * input, nor with --prune, --inline, --profile or --trim-frames, which need the whole program.
+     */
+    public String getLinkDirectory() {
+        return linkDirectory;
+    }
+
+    /**
+     * @return the options that change the code generated for a file, used to key cached translations and to check that
+     * linked objects were compiled the same way
+     */
+    public String describeCodeGeneration() {
+        return String.format("O=%b,shared-call-return=%b,stack-cache=%b,trim-frames=%b,compare=%s,inline=%d,profile=%b",
+                optimize, sharedCallReturn, stackCache, trimFrames, comparisonStrategy, inlineThreshold, profile);
+    }
+
+    /**
+     * Number of files translated concurrently.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * How eq, gt and lt are translated.
+     */
+    public enum ComparisonStrategy {
+        // every comparison is inlined
+        INLINE,
+        // every comparison calls a shared routine for its kind
+        SHARED,
+        // per file and kind, whichever is smaller
+        AUTO;
+
+        /**
+         * @return the strategy, or null if there is none with that name
+         */
+        public static ComparisonStrategy fromString(String strategy) {
+            return switch (strategy) {
+                case "inline" -> INLINE;
+                case "shared" -> SHARED;
+                case "auto" -> AUTO;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * What the translator writes.
+     */
+    public enum OutputFormat {
+        // symbolic Hack assembly
+        ASM(".asm"),
+        // machine code, one 16 digit binary number per line
+        HACK(".hack"),
+        // machine code as big-endian 16-bit words
+        BINARY(".bin"),
+        // a relocatable object per input file instead of a program, see ObjectFile
+        OBJECT(ObjectFile.EXTENSION);
+
+        private final String extension;
+
+        OutputFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * @return the format, or null if there is none with that name
+         */
+        public static OutputFormat fromString(String format) {
+            return switch (format) {
+                case "asm" -> ASM;
+                case "hack" -> HACK;
+                case "binary" -> BINARY;
+                case "object" -> OBJECT;
+                default -> null;
+            };
+        }
+    }
+}
@@ -1,79 +1,597 @@
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class VMTranslator {
+    // the function the bootstrap code calls
+    private static final String ENTRY_FUNCTION = "Sys.init";
+    // with --compare auto, the comparisons of the programs after the rewrites decide which ones are shared
+    private static final PassManager.Analysis<Map<CodeWriter.ArithmeticCommand, Integer>> COMPARISON_COUNTS =
+            passManager -> countComparisons(passManager.getPrograms());
+
     private static void usage() {
-        System.out.printf("Usage: java %s <inputfile[.vm] | directory>", VMTranslator.class.getName());
+        System.out.printf("Usage: java %s %s%n", VMTranslator.class.getName(), TranslatorOptions.usage());
         System.exit(1);
     }
 
     public static void main(String[] args) {
-        if (args.length != 1) {
+        TranslatorOptions options = TranslatorOptions.parse(args);
+        if (options == null) {
             usage();
             return;
         }
 
+        if (options.isBatch()) {
+            BatchTranslator.run(options);
+            return;
+        }
+        if (options.getInput().equals(TranslatorOptions.STANDARD_INPUT)) {
+            translateStandardInput(options);
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(options.getThreads());
+        try {
+            if (!translate(options, pool, System.out)) {
+                usage();
+            }
+        } catch (IOException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Translates a .vm file or a directory of .vm files into a file next to it.
+     *
+     * @param pool translates the files concurrently
+     * @param out  receives the reports
+     * @return false if the input is neither a .vm file nor a directory with .vm files
+     */
+    static boolean translate(TranslatorOptions options, ForkJoinPool pool, PrintStream out)
+            throws IOException, ExecutionException, InterruptedException {
+        long start = System.nanoTime();
         // check if it is a directory
-        File file = new File(args[0]);
+        File file = new File(options.getInput());
 
         String[] inputFileNames;
         if (file.isDirectory()) {
             inputFileNames = file.list((dir, name) -> name.endsWith(".vm"));
             if (inputFileNames == null || inputFileNames.length == 0) {
-                System.out.println("No .vm files found in the directory.");
-                usage();
-                return;
+                out.println("No .vm files found in the directory.");
+                return false;
             }
+            Arrays.sort(inputFileNames); // the output must not depend on the order the file system lists them in
         } else if (file.isFile() && file.getName().endsWith(".vm")) {
             inputFileNames = new String[]{file.getName()};
         } else {
-            usage();
-            return; // This line should not be reached due to the usage() method
-        }
-
-        String outputFileName = file.getAbsolutePath() + File.separator + (file.isDirectory() ? file.getName() +
-                ".asm" : file.getName().substring(
-                0,
-                file.getName().length() - 3
-        ) + ".asm");
-        try (CodeWriter codeWriter =
-                     new CodeWriter(new FileOutputStream(outputFileName)
-                     )) {
-            // Bootstrap code
-            for (String inputFileName : inputFileNames) {
-
-                String inputFilePath = file.isDirectory() ?
-                        file.getAbsolutePath() + File.separator + inputFileName : file.getAbsolutePath();
-                try (Parser parser = new Parser(new FileInputStream(inputFilePath))) {
-                    String inputFileNameWithoutExtension = inputFileName.substring(
-                            0,
-                            inputFileName.length() - 3
-                    );
-                    codeWriter.setFileName(inputFileNameWithoutExtension);
-                    while (parser.hasMoreLines()) {
-                        parser.advance();
-                        codeWriter.writeComment(parser.getCurrentLine());
-                        switch (parser.commandType()) {
-                            case C_ARITHMETIC -> codeWriter.writeArithmetic(parser.arg1());
-                            case C_PUSH, C_POP ->
-                                    codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-                            case C_LABEL -> codeWriter.writeLabel(parser.arg1());
-                            case C_GOTO -> codeWriter.writeGoto(parser.arg1());
-                            case C_IF -> codeWriter.writeIf(parser.arg1());
-                            case C_FUNCTION -> codeWriter.writeFunction(parser.arg1(), parser.arg2());
-                            case C_RETURN -> codeWriter.writeReturn();
-                            case C_CALL -> codeWriter.writeCall(parser.arg1(), parser.arg2());
+            return false;
+        }
+
+        File outputDirectory = file.isDirectory() ? file.getAbsoluteFile() : file.getAbsoluteFile().getParentFile();
+        String outputBaseName = outputDirectory + File.separator + (file.isDirectory() ? file.getName() :
+                file.getName().substring(
+                        0,
+                        file.getName().length() - 3
+                ));
+        TranslationCache cache = options.isCache() ? new TranslationCache(outputDirectory) : null;
+        String[] inputFilePaths = new String[inputFileNames.length];
+        String[] fileNames = new String[inputFileNames.length];
+        for (int i = 0; i < inputFileNames.length; i++) {
+            inputFilePaths[i] = file.isDirectory() ?
+                    file.getAbsolutePath() + File.separator + inputFileNames[i] : file.getAbsolutePath();
+            fileNames[i] = inputFileNames[i].substring(
+                    0,
+                    inputFileNames[i].length() - 3
+            );
+        }
+        if (options.getOutputFormat() == TranslatorOptions.OutputFormat.OBJECT) {
+            compileObjects(inputFilePaths, fileNames, outputDirectory, options, cache, pool, out);
+            return true;
+        }
+        List<ObjectFile> objects = options.getLinkDirectory() != null ?
+                readObjects(Path.of(options.getLinkDirectory()), fileNames, options) : List.of();
+
+        try (Writer output = openOutput(outputBaseName, options);
+             Outliner outliner = options.getOutlineBudget() > 0 ? new Outliner(output, options.getOutlineBudget()) :
+                     null;
+             CodeWriter codeWriter = new CodeWriter(outliner != null ? outliner : output, options)) {
+            BuildReport report = options.getReportFile() != null ? new BuildReport() : null;
+            BuildReport.FileMetrics[] metrics = new BuildReport.FileMetrics[inputFileNames.length];
+            for (int i = 0; i < inputFileNames.length && report != null; i++) {
+                metrics[i] = report.addFile(fileNames[i]);
+            }
+
+            // whole program passes read all files first, then analyse them together: --inline since a file can
+            // inline functions of any other file, the others for the call graph
+            boolean needsCallGraph = options.isPrune() || options.isProfile() || report != null ||
+                    options.isTrimFrames();
+            Program[] programs = new Program[inputFileNames.length];
+            PassManager wholeProgram = null;
+            if (needsCallGraph || options.getInlineThreshold() > 0) {
+                List<Future<Program>> reads = new ArrayList<>();
+                for (int i = 0; i < inputFileNames.length; i++) {
+                    String inputFilePath = inputFilePaths[i];
+                    String fileName = fileNames[i];
+                    BuildReport.FileMetrics fileMetrics = metrics[i];
+                    reads.add(pool.submit(() -> readProgram(inputFilePath, fileName, fileMetrics)));
+                }
+                for (int i = 0; i < programs.length; i++) {
+                    programs[i] = reads.get(i).get();
+                }
+                wholeProgram = new PassManager(Arrays.asList(programs));
+            }
+            CallGraph callGraph = needsCallGraph ? wholeProgram.getAnalysis(CallGraph.ANALYSIS) : null;
+
+            // with --profile, the counters of all functions are placed before the files are translated concurrently
+            ProfileMap profile = null;
+            if (options.isProfile()) {
+                profile = new ProfileMap();
+                for (String function : callGraph.functions()) {
+                    profile.add(function);
+                }
+                codeWriter.setProfile(profile);
+            }
+
+            // with --trim-frames, calls only save the pointers their callee changes
+            FrameLayouts frames = null;
+            if (options.isTrimFrames()) {
+                frames = wholeProgram.getAnalysis(FrameLayouts.analysis(options.getInlineThreshold() > 0,
+                        ENTRY_FUNCTION));
+                codeWriter.setFrames(frames);
+            }
+
+            // with --prune, only functions reachable from Sys.init are translated
+            Set<String> reachable = null;
+            Map<String, List<String>> prunedPerFile = new HashMap<>();
+            if (options.isPrune()) {
+                reachable = callGraph.reachableFrom(ENTRY_FUNCTION);
+                List<String> pruned = callGraph.unreachable(reachable);
+                for (String function : pruned) {
+                    prunedPerFile.computeIfAbsent(callGraph.fileOf(function), k -> new ArrayList<>()).add(function);
+                }
+                out.printf("pruned %d of %d functions%n", pruned.size(), callGraph.size());
+                for (String function : pruned) {
+                    out.printf("  %s (%s.vm)%n", function, callGraph.fileOf(function));
+                }
+            }
+
+            LeafInliner inliner = null;
+            String inlinedFunctions = "";
+            if (options.getInlineThreshold() > 0) {
+                inliner = LeafInliner.of(Arrays.asList(programs), options.getInlineThreshold());
+                inlinedFunctions = inliner.describe();
+            }
+
+            JumpOptimizer jumpOptimizer = options.isOptimize() ? new JumpOptimizer() : null;
+
+            // every file is translated into its own fragment, the fragments are then added in input order
+            List<Future<CodeWriter>> fragments = new ArrayList<>();
+            for (int i = 0; i < inputFileNames.length; i++) {
+                String inputFilePath = inputFilePaths[i];
+                String fileName = fileNames[i];
+                Set<String> translated = reachable;
+                Program program = programs[i];
+                LeafInliner fileInliner = inliner;
+                JumpOptimizer fileJumpOptimizer = jumpOptimizer;
+                ProfileMap fileProfile = profile;
+                FrameLayouts fileFrames = frames;
+                BuildReport.FileMetrics fileMetrics = metrics[i];
+                // the pruned and the inlined functions, the profile counters and the frame layouts change the output
+                // of a file, so they are part of its cache key
+                String variant = String.join(",", prunedPerFile.getOrDefault(fileName, List.of())) + "\n" +
+                        inlinedFunctions + (profile != null ? "\n" + profile.describe() : "") +
+                        (frames != null ? "\n" + frames.describe() : "");
+                fragments.add(pool.submit(() -> translateFile(inputFilePath, fileName, options, cache, translated,
+                        variant, program, fileInliner, fileJumpOptimizer, fileProfile, fileFrames, fileMetrics)));
+            }
+            for (Future<CodeWriter> fragment : fragments) {
+                codeWriter.writeFragment(fragment.get());
+            }
+            for (ObjectFile object : objects) {
+                codeWriter.writeObject(object);
+            }
+
+            codeWriter.finish(); // emits the shared routines, and outlines the whole program
+            out.print(codeWriter.getSharedCallReturnReport());
+            out.print(codeWriter.getSharedComparisonReport());
+            out.print(codeWriter.getPeepholeReport());
+            if (inliner != null) {
+                out.print(inliner.getReport());
+            }
+            if (jumpOptimizer != null) {
+                out.print(jumpOptimizer.getReport());
+            }
+            if (frames != null) {
+                out.print(frames.getReport());
+            }
+            if (cache != null) {
+                out.print(cache.getReport());
+            }
+            if (outliner != null) {
+                out.print(outliner.getReport());
+            }
+            if (options.getLinkDirectory() != null) {
+                out.printf("linked %d objects from %s%n", objects.size(), options.getLinkDirectory());
+            }
+            HackAssembler assembler = null;
+            if (options.getRunCycles() > 0 || profile != null || report != null) {
+                assembler = output instanceof HackWriter hackWriter ? hackWriter.getAssembler() :
+                        HackAssembler.assemble(Path.of(outputBaseName + ".asm"));
+            }
+            if (profile != null) {
+                profile.write(Path.of(outputBaseName + ".map"), assembler);
+                out.printf("profile counters: %s.map%n", outputBaseName);
+            }
+            if (report != null) {
+                report.write(Path.of(options.getReportFile()), options, System.nanoTime() - start, assembler,
+                        callGraph.functions());
+            }
+            if (options.getRunCycles() > 0) {
+                HackEmulator emulator = new HackEmulator(assembler.getRom());
+                ProfileMap.CallTracker calls = profile != null ? profile.trackCalls(emulator, assembler) : null;
+                emulator.run(options.getRunCycles());
+                out.print(emulator.getReport());
+                if (profile != null) {
+                    out.print(profile.getReport(emulator, assembler, calls));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Translates every file into an object file of the same name in the output directory, for --emit object.
+     */
+    private static void compileObjects(String[] inputFilePaths, String[] fileNames, File outputDirectory,
+                                       TranslatorOptions options, TranslationCache cache, ForkJoinPool pool,
+                                       PrintStream out) throws ExecutionException, InterruptedException {
+        JumpOptimizer jumpOptimizer = options.isOptimize() ? new JumpOptimizer() : null;
+        List<Future<ObjectFile>> objects = new ArrayList<>();
+        for (int i = 0; i < inputFilePaths.length; i++) {
+            String inputFilePath = inputFilePaths[i];
+            String fileName = fileNames[i];
+            // the same variant as a whole program translation without pruned or inlined functions, sharing its cache
+            objects.add(pool.submit(() -> {
+                ObjectFile object = ObjectFile.compile(translateFile(inputFilePath, fileName, options, cache, null,
+                        "\n", null, null, jumpOptimizer, null, null, null), fileName, options);
+                object.write(outputDirectory.toPath().resolve(fileName + ObjectFile.EXTENSION));
+                return object;
+            }));
+        }
+        int words = 0;
+        for (Future<ObjectFile> object : objects) {
+            words += object.get().getCode().length;
+        }
+        if (jumpOptimizer != null) {
+            out.print(jumpOptimizer.getReport());
+        }
+        if (cache != null) {
+            out.print(cache.getReport());
+        }
+        out.printf("compiled %d objects, %d ROM words, into %s%n", objects.size(), words, outputDirectory);
+    }
+
+    /**
+     * Reads the object files of a directory in file name order, leaving out those of the input files.
+     *
+     * @throws IllegalArgumentException if an object was compiled with different code generation options
+     */
+    private static List<ObjectFile> readObjects(Path directory, String[] inputFileNames, TranslatorOptions options)
+            throws IOException {
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(ObjectFile.EXTENSION));
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+        Set<String> inputs = Set.of(inputFileNames);
+        List<ObjectFile> objects = new ArrayList<>();
+        for (File file : files) {
+            ObjectFile object = ObjectFile.read(file.toPath());
+            if (inputs.contains(object.getFileName())) {
+                continue;
+            }
+            if (!object.getOptions().equals(options.describeCodeGeneration())) {
+                throw new IllegalArgumentException("Object " + file + " was compiled with " + object.getOptions() +
+                        ", not " + options.describeCodeGeneration());
+            }
+            objects.add(object);
+        }
+        return objects;
+    }
+
+    /**
+     * Opens the output file, named after the input with the extension of the output format. Machine code is
+     * assembled in memory, without writing the .asm file unless --keep-asm is given.
+     */
+    private static Writer openOutput(String outputBaseName, TranslatorOptions options) throws IOException {
+        TranslatorOptions.OutputFormat format = options.getOutputFormat();
+        FileChannel channel = openForWriting(outputBaseName + format.getExtension());
+        if (format == TranslatorOptions.OutputFormat.ASM) {
+            return new AsciiChannelWriter(channel);
+        }
+        Writer asmWriter = options.isKeepAsm() ? new AsciiChannelWriter(openForWriting(outputBaseName + ".asm")) :
+                null;
+        return new HackWriter(channel, format == TranslatorOptions.OutputFormat.BINARY, asmWriter);
+    }
+
+    private static FileChannel openForWriting(String fileName) throws IOException {
+        return FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Translates a single .vm file into a fragment writer, reusing the cached translation if the file didn't change.
+     *
+     * @param cache         may be null
+     * @param translated    the functions to translate, or null to translate all of them
+     * @param variant       anything else the translation depends on, e.g. the functions of the file that are not
+     *                      translated
+     * @param program       the file if it has already been read, null otherwise
+     * @param inliner       may be null
+     * @param jumpOptimizer may be null
+     * @param profile       may be null
+     * @param frames        may be null
+     * @param metrics       may be null
+     */
+    private static CodeWriter translateFile(String inputFilePath, String fileName, TranslatorOptions options,
+                                            TranslationCache cache, Set<String> translated, String variant,
+                                            Program program, LeafInliner inliner, JumpOptimizer jumpOptimizer,
+                                            ProfileMap profile, FrameLayouts frames, BuildReport.FileMetrics metrics)
+            throws IOException {
+        if (cache == null) {
+            return translateFile(inputFilePath, fileName, options, translated, program, inliner, jumpOptimizer,
+                    profile, frames, metrics);
+        }
+        String key = cache.key(Path.of(inputFilePath), fileName, options, variant);
+        CodeWriter cached = cache.load(fileName, key, options);
+        if (cached != null) {
+            if (metrics != null) {
+                metrics.setCached();
+            }
+            return cached;
+        }
+        CodeWriter codeWriter = translateFile(inputFilePath, fileName, options, translated, program, inliner,
+                jumpOptimizer, profile, frames, metrics);
+        cache.store(fileName, key, codeWriter);
+        return codeWriter;
+    }
+
+    /**
+     * Translates a single .vm file into a fragment writer.
+     *
+     * @param translated    the functions to translate, or null to translate all of them
+     * @param program       the file if it has already been read, null otherwise
+     * @param inliner       may be null
+     * @param jumpOptimizer may be null
+     * @param profile       may be null
+     * @param frames        may be null
+     * @param metrics       may be null
+     */
+    private static CodeWriter translateFile(String inputFilePath, String fileName, TranslatorOptions options,
+                                            Set<String> translated, Program program, LeafInliner inliner,
+                                            JumpOptimizer jumpOptimizer, ProfileMap profile, FrameLayouts frames,
+                                            BuildReport.FileMetrics metrics) throws IOException {
+        if (program == null) {
+            program = readProgram(inputFilePath, fileName, metrics);
+        }
+        long start = System.nanoTime();
+        PassManager passManager = new PassManager(program);
+        if (translated != null) {
+            passManager.addRewrite(new PassManager.PruneFunctions(translated));
+        }
+        if (inliner != null) {
+            passManager.addRewrite(inliner);
+        }
+        // after inlining, which copies the jumps of the inlined functions
+        if (jumpOptimizer != null) {
+            passManager.addRewrite(jumpOptimizer);
+        }
+        passManager.run();
+
+        CodeWriter codeWriter = CodeWriter.fragment(options);
+        codeWriter.setProfile(profile);
+        codeWriter.setFrames(frames);
+        if (options.getComparisonStrategy() == TranslatorOptions.ComparisonStrategy.AUTO) {
+            codeWriter.chooseComparisons(passManager.getAnalysis(COMPARISON_COUNTS));
+        }
+        translate(program, codeWriter, metrics);
+        if (metrics != null) {
+            metrics.addTranslateTime(System.nanoTime() - start);
+        }
+        return codeWriter;
+    }
+
+    /**
+     * @param metrics may be null
+     */
+    private static Program readProgram(String inputFilePath, String fileName, BuildReport.FileMetrics metrics)
+            throws IOException {
+        long start = System.nanoTime();
+        Program program = new Program();
+        try (Parser parser = new Parser(Path.of(inputFilePath))) {
+            program.read(parser, fileName);
+        }
+        if (metrics != null) {
+            metrics.read(program, System.nanoTime() - start);
+        }
+        return program;
+    }
+
+    /**
+     * @return number of eq, gt and lt commands in the programs
+     */
+    private static Map<CodeWriter.ArithmeticCommand, Integer> countComparisons(List<Program> programs) {
+        Map<CodeWriter.ArithmeticCommand, Integer> counts = new EnumMap<>(CodeWriter.ArithmeticCommand.class);
+        for (Program program : programs) {
+            for (VmFunction function : program.getFunctions()) {
+                CommandList commands = function.getCommands();
+                for (int i = 0; i < commands.size(); i++) {
+                    if (commands.commandType(i) == Parser.CommandType.C_ARITHMETIC) {
+                        CodeWriter.ArithmeticCommand command = commands.arithmeticCommand(i);
+                        switch (command) {
+                            case EQ, GT, LT -> counts.merge(command, 1, Integer::sum);
+                            default -> {
+                            }
                         }
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
             }
+        }
+        return counts;
+    }
 
+    /**
+     * Streams standard input, e.g. several concatenated .vm files, to standard output as it arrives: each function is
+     * translated once the next one starts. Static variables are named after the class of the function they are in,
+     * since the input has no file names. Reports go to standard error. Machine code is only written once the input
+     * ends, when all labels are known. With --compare auto, a kind of comparison calls its shared routine from the
+     * function in which the functions read so far have enough of them.
+     */
+    private static void translateStandardInput(TranslatorOptions options) {
+        if (options.isPrune()) {
+            System.err.println("--prune needs the whole program and is ignored for standard input");
+        }
+        if (options.getInlineThreshold() > 0) {
+            System.err.println("--inline needs the whole program and is ignored for standard input");
+        }
+        if (options.getRunCycles() > 0) {
+            System.err.println("--run needs an output file and is ignored for standard input");
+        }
+        if (options.isKeepAsm()) {
+            System.err.println("--keep-asm needs an output file and is ignored for standard input");
+        }
+        if (options.getReportFile() != null) {
+            System.err.println("--report is ignored for standard input");
+        }
+        if (options.isProfile()) {
+            System.err.println("--profile needs an output file for its symbol map and is ignored for standard input");
+        }
+        if (options.getLinkDirectory() != null) {
+            System.err.println("--link is ignored for standard input");
+        }
+        if (options.isTrimFrames()) {
+            System.err.println("--trim-frames needs the whole program and is ignored for standard input");
+        }
+        if (options.getOutlineBudget() > 0) {
+            System.err.println("--outline needs the whole program and is ignored for standard input");
+        }
+        TranslatorOptions.OutputFormat format = options.getOutputFormat();
+        WritableByteChannel out = Channels.newChannel(System.out);
+        try (Parser parser = new Parser(Channels.newChannel(System.in));
+             CodeWriter codeWriter = format == TranslatorOptions.OutputFormat.ASM ? new CodeWriter(out, options) :
+                     new CodeWriter(new HackWriter(out, format == TranslatorOptions.OutputFormat.BINARY, null),
+                             options)) {
+            // jumps only lead to labels of the same function, so each function can be optimized on its own
+            JumpOptimizer jumpOptimizer = options.isOptimize() ? new JumpOptimizer() : null;
+            Map<CodeWriter.ArithmeticCommand, Integer> comparisons =
+                    options.getComparisonStrategy() == TranslatorOptions.ComparisonStrategy.AUTO ?
+                            new EnumMap<>(CodeWriter.ArithmeticCommand.class) : null;
+            Program program = new Program();
+            VmFunction function = null;
+            while (parser.hasMoreLines()) {
+                parser.advance();
+                if (parser.commandType() == Parser.CommandType.C_FUNCTION) {
+                    if (function != null) {
+                        translateFunction(program, codeWriter, jumpOptimizer, comparisons);
+                        program = new Program();
+                    }
+                    String functionName = parser.arg1();
+                    int dot = functionName.indexOf('.');
+                    function = program.addFunction(dot == -1 ? functionName : functionName.substring(0, dot),
+                            functionName);
+                } else if (function == null) {
+                    function = program.addFunction(null, null);
+                }
+                function.getCommands().add(parser);
+            }
+            translateFunction(program, codeWriter, jumpOptimizer, comparisons);
+            codeWriter.finish(); // emits the shared routines
+            System.err.print(codeWriter.getSharedCallReturnReport());
+            System.err.print(codeWriter.getSharedComparisonReport());
+            System.err.print(codeWriter.getPeepholeReport());
+            if (jumpOptimizer != null) {
+                System.err.print(jumpOptimizer.getReport());
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Translates a function read from standard input.
+     *
+     * @param jumpOptimizer may be null
+     * @param comparisons   with --compare auto, the comparisons of the functions translated so far, which this adds
+     *                      the function's to, null otherwise
+     */
+    private static void translateFunction(Program program, CodeWriter codeWriter, JumpOptimizer jumpOptimizer,
+                                          Map<CodeWriter.ArithmeticCommand, Integer> comparisons) throws IOException {
+        PassManager passManager = new PassManager(program);
+        if (jumpOptimizer != null) {
+            passManager.addRewrite(jumpOptimizer);
+        }
+        passManager.run();
+        if (comparisons != null) {
+            passManager.getAnalysis(COMPARISON_COUNTS).forEach((kind, count) -> comparisons.merge(kind, count,
+                    Integer::sum));
+            codeWriter.chooseComparisons(comparisons);
+        }
+        translate(program, codeWriter, null);
+    }
+
+    /**
+     * Writes every command of the program.
+     *
+     * @param metrics counts the instructions written per command type, may be null
+     */
+    private static void translate(Program program, CodeWriter codeWriter, BuildReport.FileMetrics metrics)
+            throws IOException {
+        StringBuilder comment = new StringBuilder();
+        for (VmFunction function : program.getFunctions()) {
+            if (function.getFileName() != null) {
+                codeWriter.setFileName(function.getFileName());
+            }
+            CommandList commands = function.getCommands();
+            for (int i = 0; i < commands.size(); i++) {
+                long written = codeWriter.getWrittenInstructions();
+                comment.setLength(0);
+                codeWriter.writeComment(commands.appendTo(comment, i).toString());
+                switch (commands.commandType(i)) {
+                    case C_ARITHMETIC -> codeWriter.writeArithmetic(commands.arithmeticCommand(i));
+                    case C_PUSH, C_POP -> codeWriter.writePushPop(commands.commandType(i), commands.segment(i),
+                            commands.arg2(i), commands.symbol(i));
+                    case C_LABEL -> codeWriter.writeLabel(commands.symbol(i));
+                    case C_GOTO -> codeWriter.writeGoto(commands.symbol(i));
+                    case C_IF -> codeWriter.writeIf(commands.symbol(i), commands.isIfZero(i));
+                    case C_FUNCTION -> codeWriter.writeFunction(commands.symbol(i), commands.arg2(i));
+                    case C_RETURN -> codeWriter.writeReturn();
+                    case C_CALL -> codeWriter.writeCall(commands.symbol(i), commands.arg2(i));
+                }
+                if (metrics != null) {
+                    metrics.addInstructions(commands.commandType(i), codeWriter.getWrittenInstructions() - written);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,160 @@
+/**
+ * An immutable VM command. Programs store commands packed in a CommandList, the records are created when a command is
+ * read from or added to a list, and by Parser.commands.
+ */
+public sealed interface VmCommand {
+
+    Parser.CommandType commandType();
+
+    /**
+     * @param arg1 the command itself for C_ARITHMETIC, ignored for C_RETURN
+     * @param arg2 ignored if the command has no second argument
+     */
+    static VmCommand of(Parser.CommandType commandType, String arg1, int arg2) {
+        return switch (commandType) {
+            case C_ARITHMETIC -> new Arithmetic(CodeWriter.ArithmeticCommand.fromString(arg1));
+            case C_PUSH -> new Push(CodeWriter.Segment.fromString(arg1), arg2);
+            case C_POP -> new Pop(CodeWriter.Segment.fromString(arg1), arg2);
+            case C_LABEL -> new Label(arg1);
+            case C_GOTO -> new Goto(arg1);
+            case C_IF -> new IfGoto(arg1);
+            case C_FUNCTION -> new Function(arg1, arg2);
+            case C_RETURN -> new Return();
+            case C_CALL -> new Call(arg1, arg2);
+        };
+    }
+
+    record Arithmetic(CodeWriter.ArithmeticCommand command) implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_ARITHMETIC;
+        }
+
+        @Override
+        public String toString() {
+            return command.name().toLowerCase();
+        }
+    }
+
+    /**
+     * @param fileName for the static segment, the file whose static variables are used if it is not the file being
+     *                 translated, e.g. after inlining a function of another file, null otherwise
+     */
+    record Push(CodeWriter.Segment segment, int index, String fileName) implements VmCommand {
+        public Push(CodeWriter.Segment segment, int index) {
+            this(segment, index, null);
+        }
+
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_PUSH;
+        }
+
+        @Override
+        public String toString() {
+            return "push " + segment.name().toLowerCase() + " " + index + (fileName == null ? "" : " (" + fileName +
+                    ")");
+        }
+    }
+
+    /**
+     * @param fileName for the static segment, the file whose static variables are used if it is not the file being
+     *                 translated, e.g. after inlining a function of another file, null otherwise
+     */
+    record Pop(CodeWriter.Segment segment, int index, String fileName) implements VmCommand {
+        public Pop(CodeWriter.Segment segment, int index) {
+            this(segment, index, null);
+        }
+
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_POP;
+        }
+
+        @Override
+        public String toString() {
+            return "pop " + segment.name().toLowerCase() + " " + index + (fileName == null ? "" : " (" + fileName +
+                    ")");
+        }
+    }
+
+    record Label(String label) implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_LABEL;
+        }
+
+        @Override
+        public String toString() {
+            return "label " + label;
+        }
+    }
+
+    record Goto(String label) implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_GOTO;
+        }
+
+        @Override
+        public String toString() {
+            return "goto " + label;
+        }
+    }
+
+    /**
+     * @param ifZero if true, jumps if the popped value is 0 instead of if it is not. Only created by rewrites, it has
+     *               no VM syntax
+     */
+    record IfGoto(String label, boolean ifZero) implements VmCommand {
+        public IfGoto(String label) {
+            this(label, false);
+        }
+
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_IF;
+        }
+
+        @Override
+        public String toString() {
+            return (ifZero ? "if-zero-goto " : "if-goto ") + label;
+        }
+    }
+
+    record Function(String name, int nVars) implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_FUNCTION;
+        }
+
+        @Override
+        public String toString() {
+            return "function " + name + " " + nVars;
+        }
+    }
+
+    record Call(String function, int nArgs) implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_CALL;
+        }
+
+        @Override
+        public String toString() {
+            return "call " + function + " " + nArgs;
+        }
+    }
+
+    record Return() implements VmCommand {
+        @Override
+        public Parser.CommandType commandType() {
+            return Parser.CommandType.C_RETURN;
+        }
+
+        @Override
+        public String toString() {
+            return "return";
+        }
+    }
+}
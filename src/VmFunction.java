@@ -0,0 +1,36 @@
+/**
+ * A function of a program and the file it was read from. Its commands start with the function command, except for
+ * the commands before the first function of a file, which are kept in a function without name.
+ */
+public class VmFunction {
+
+    private final String fileName;
+    private final String name;
+    private CommandList commands;
+
+    /**
+     * @param fileName static variables are named after it, null if the commands should keep the writer's file name
+     * @param name     null for commands outside of functions
+     */
+    public VmFunction(String fileName, String name, CommandList commands) {
+        this.fileName = fileName;
+        this.name = name;
+        this.commands = commands;
+    }
+
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public CommandList getCommands() {
+        return this.commands;
+    }
+
+    public void setCommands(CommandList commands) {
+        this.commands = commands;
+    }
+}
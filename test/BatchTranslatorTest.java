@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BatchTranslatorTest {
+
+    private static final Map<String, String> COUNTER = Map.of("Sys", """
+            function Sys.init 1
+            label LOOP
+            push local 0
+            push constant 1
+            add
+            pop local 0
+            push local 0
+            push constant 5
+            lt
+            if-goto LOOP
+            push local 0
+            pop static 0
+            label HALT
+            goto HALT
+            """);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Every input on the command line is a job of its own, reported in order.
+     */
+    @Test
+    public void translatesInputsAsJobs() throws Exception {
+        File repeated = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        File counter = TestPrograms.write(this.directory, "Counter", COUNTER);
+        String[] output = TestPrograms.runMain("", "--batch", "--no-cache", repeated.getPath(), counter.getPath());
+
+        List<String> lines = output[0].lines().toList();
+        int first = indexOfPrefix(lines, "job 1 ok " + repeated.getPath() + " ");
+        int second = indexOfPrefix(lines, "job 2 ok " + counter.getPath() + " ");
+        assertTrue(first >= 0 && second > first, output[0]);
+        assertTrue(lines.get(lines.size() - 1).startsWith("batch: 2 jobs, 0 failed in "), output[0]);
+        assertTranslatedAlone(repeated);
+        assertTranslatedAlone(counter);
+    }
+
+    /**
+     * Jobs read from standard input add the flags on their line to the flags of the batch.
+     */
+    @Test
+    public void readsJobsFromStandardInput() throws Exception {
+        File repeated = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        File counter = TestPrograms.write(this.directory, "Counter", COUNTER);
+        String jobs = repeated.getPath() + "\n\n  --stack-cache " + counter.getPath() + "\n";
+        String[] output = TestPrograms.runMain(jobs, "--batch", "--no-cache", "-O", TranslatorOptions.STANDARD_INPUT);
+
+        List<String> lines = output[0].lines().toList();
+        assertTrue(indexOfPrefix(lines, "job 1 ok " + repeated.getPath() + " ") >= 0, output[0]);
+        assertTrue(indexOfPrefix(lines, "job 2 ok --stack-cache " + counter.getPath() + " ") >= 0, output[0]);
+        assertTrue(lines.get(lines.size() - 1).startsWith("batch: 2 jobs, 0 failed in "), output[0]);
+        assertTranslatedAlone(repeated, "-O");
+        assertTranslatedAlone(counter, "-O", "--stack-cache");
+
+        TranslatorOptions options = TranslatorOptions.parse(new String[]{"--batch", "-O", "--threads", "2",
+                TranslatorOptions.STANDARD_INPUT}).forJob("--stack-cache", counter.getPath());
+        assertFalse(options.isBatch());
+        assertTrue(options.isOptimize());
+        assertTrue(options.isStackCache());
+        assertEquals(2, options.getThreads());
+        assertEquals(counter.getPath(), options.getInput());
+    }
+
+    /**
+     * "-" reads the jobs from standard input, so it can't be one of several inputs.
+     */
+    @Test
+    public void rejectsStandardInputAmongInputs() {
+        assertNull(TranslatorOptions.parse(new String[]{"--batch", "Repeated", TranslatorOptions.STANDARD_INPUT}));
+        assertNull(TranslatorOptions.parse(new String[]{"--batch", TranslatorOptions.STANDARD_INPUT, "Repeated"}));
+        assertTrue(TranslatorOptions.parse(new String[]{"--batch", TranslatorOptions.STANDARD_INPUT}).isBatch());
+        assertEquals(List.of("Repeated", "Counter"), TranslatorOptions.parse(new String[]{"--batch", "Repeated",
+                "Counter"}).getInputs());
+    }
+
+    /**
+     * @return the index of the first line starting with the prefix, -1 if there is none
+     */
+    private static int indexOfPrefix(List<String> lines, String prefix) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks that the .asm the batch wrote is the same as translating the program on its own with the flags.
+     */
+    private static void assertTranslatedAlone(File program, String... flags) throws Exception {
+        Path asm = program.toPath().resolve(program.getName() + ".asm");
+        String batch = Files.readString(asm);
+        TestPrograms.translate(program, flags);
+        assertEquals(Files.readString(asm), batch, () -> program + " with " + List.of(flags));
+    }
+}
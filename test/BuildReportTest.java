@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuildReportTest {
+
+    private static final Pattern FILE = Pattern.compile("\\{\"file\": \"(\\w+)\", \"cached\": (\\w+), " +
+            "\"parseMillis\": [0-9.]+, \"translateMillis\": [0-9.]+,\n\\s+\"commands\": \\{([^}]*)},\n" +
+            "\\s+\"instructions\": \\{([^}]*)}}");
+    private static final Pattern FUNCTION = Pattern.compile("\\{\"function\": \"([\\w.]+)\", \"romWords\": (\\d+)}");
+    private static final Pattern COUNT = Pattern.compile("\"(\\w+)\": (\\d+)");
+    private static final String[] FUNCTIONS = {"Math.multiply", "Math.max", "Math.sum", "Sys.init"};
+
+    @TempDir
+    Path directory;
+
+    /**
+     * The report of a program of two files has the options of the translation, the ROM words and labels of the
+     * assembled program, the commands of each file by type with the instructions written for them, and the functions
+     * by ROM words, biggest first.
+     */
+    @Test
+    public void reportsMultiFileProgram() throws Exception {
+        File program = TestPrograms.write(this.directory, "Math", Map.of("Sys", TestPrograms.SYS,
+                "Math", TestPrograms.MATH));
+        Path reportFile = this.directory.resolve("report.json");
+        for (String flags : new String[]{"", "-O --compare shared"}) {
+            String[] flagArgs = flags.isEmpty() ? new String[0] : flags.split(" ");
+            HackAssembler assembler = TestPrograms.assemble(program, flagArgs);
+            List<String> args = new ArrayList<>(List.of(flagArgs));
+            args.addAll(List.of("--report", reportFile.toString()));
+            TestPrograms.translate(program, args.toArray(new String[0]));
+            args.add(program.getPath());
+            String options = TranslatorOptions.parse(args.toArray(new String[0])).describeCodeGeneration();
+            String report = Files.readString(reportFile);
+
+            assertTrue(report.startsWith("{\n  \"input\": \"" + program.getPath() + "\",\n  \"options\": \"" + options +
+                    "\",\n  \"millis\": "), report);
+            assertTrue(report.contains("\n  \"romWords\": " + assembler.getSize() + ",\n  \"labels\": " +
+                    assembler.getLabels().size() + ",\n"), report);
+
+            // in input file order, translated rather than taken from the cache
+            Matcher file = FILE.matcher(report);
+            Map<String, Map<String, Integer>> commands = new LinkedHashMap<>();
+            while (file.find()) {
+                assertEquals("false", file.group(2), report);
+                Map<String, Integer> fileCommands = counts(file.group(3));
+                commands.put(file.group(1), fileCommands);
+                Map<String, Integer> instructions = counts(file.group(4));
+                for (Parser.CommandType type : Parser.CommandType.values()) {
+                    // labels take no instructions, and only commands that are there write any
+                    assertTrue(instructions.get(type.name()) == 0 ||
+                                    type != Parser.CommandType.C_LABEL && fileCommands.get(type.name()) > 0,
+                            () -> "[" + flags + "] " + type + " of " + report);
+                }
+                assertTrue(instructions.values().stream().mapToInt(Integer::intValue).sum() > 0, report);
+            }
+            assertEquals(Map.of(
+                    "Math", commandCounts(8, 19, 5, 6, 3, 3, 3, 4, 0),
+                    "Sys", commandCounts(0, 5, 3, 1, 1, 0, 1, 0, 3)), commands, report);
+            assertEquals(List.of("Math", "Sys"), List.copyOf(commands.keySet()), report);
+
+            Matcher function = FUNCTION.matcher(report);
+            List<Integer> sizes = new ArrayList<>();
+            Map<String, Integer> functionSizes = new TreeMap<>();
+            while (function.find()) {
+                int size = Integer.parseInt(function.group(2));
+                sizes.add(size);
+                functionSizes.put(function.group(1), size);
+            }
+            assertEquals(functionSizes(assembler), functionSizes, report);
+            List<Integer> sorted = new ArrayList<>(sizes);
+            sorted.sort(Comparator.reverseOrder());
+            assertEquals(sorted, sizes, report);
+        }
+    }
+
+    // type name -> count, for the counts of a file's entry
+    private static Map<String, Integer> counts(String json) {
+        Map<String, Integer> counts = new TreeMap<>();
+        Matcher count = COUNT.matcher(json);
+        while (count.find()) {
+            counts.put(count.group(1), Integer.parseInt(count.group(2)));
+        }
+        return counts;
+    }
+
+    // the counts in the order of Parser.CommandType
+    private static Map<String, Integer> commandCounts(int... counts) {
+        Map<String, Integer> byType = new TreeMap<>();
+        for (Parser.CommandType type : Parser.CommandType.values()) {
+            byType.put(type.name(), counts[type.ordinal()]);
+        }
+        return byType;
+    }
+
+    // ROM words from each function's label to the next function, the shared routines or the end of the ROM
+    private static Map<String, Integer> functionSizes(HackAssembler assembler) {
+        TreeMap<Integer, String> starts = new TreeMap<>();
+        for (String function : FUNCTIONS) {
+            starts.put(assembler.getLabels().get(function), function);
+        }
+        Integer shared = assembler.getLabels().get(CodeWriter.SHARED_ROUTINES_LABEL);
+        int end = shared != null ? shared : assembler.getSize();
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Map.Entry<Integer, String> start : starts.entrySet()) {
+            Integer next = starts.higherKey(start.getKey());
+            sizes.put(start.getValue(), (next != null && next < end ? next : end) - start.getKey());
+        }
+        return sizes;
+    }
+}
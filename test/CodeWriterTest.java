@@ -0,0 +1,440 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CodeWriterTest {
+
+    private static final CodeWriter.Segment[] REFERENCED_SEGMENTS = {CodeWriter.Segment.LOCAL,
+            CodeWriter.Segment.ARGUMENT, CodeWriter.Segment.THIS, CodeWriter.Segment.THAT};
+    // operands at the edges of 16-bit overflow, where X - Y wraps
+    private static final int[][] EDGE_OPERANDS = {{20000, -20000}, {-20000, 20000}, {32767, -1}, {-1, 32767},
+            {-32768, 1}, {1, -32768}, {-32768, -32768}, {32767, 32767}, {5, 5}, {3, -7}, {0, -1}};
+    // RAM the results of constantFoldingComputesTheSame are written to
+    private static final int RESULTS = 3000;
+    // the stack prologueCosts runs on, and the most locals it tries
+    private static final int STACK = 256;
+    private static final int MAX_LOCALS = 64;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Checks the words push and pop emit for LOCAL, ARGUMENT, THIS and THAT at indices 0 to 200 against the cost table
+     * of CodeWriter.usesComputedOffset, and that they stay constant once the address is computed.
+     */
+    @Test
+    public void segmentAddressingCosts() throws IOException {
+        TranslatorOptions stackCache = TranslatorOptions.parse(new String[]{"--stack-cache",
+                TranslatorOptions.STANDARD_INPUT});
+        // push, pop and cached pop: the A=A+1 chain costs base + index, the computed offset a constant
+        long[] chainBaseCosts = {8, 7, 3};
+        long[] computedCosts = {10, 13, 13};
+        int[] maxChainIndices = {CodeWriter.MAX_PUSH_CHAIN_INDEX, CodeWriter.MAX_POP_CHAIN_INDEX,
+                CodeWriter.MAX_CACHED_POP_CHAIN_INDEX};
+        for (int index = 0; index <= 200; index++) {
+            for (CodeWriter.Segment segment : REFERENCED_SEGMENTS) {
+                long[] costs = {
+                        addressingWords(TranslatorOptions.defaults(), Parser.CommandType.C_PUSH, segment, index),
+                        addressingWords(TranslatorOptions.defaults(), Parser.CommandType.C_POP, segment, index),
+                        addressingWords(stackCache, Parser.CommandType.C_POP, segment, index)
+                };
+                for (int i = 0; i < costs.length; i++) {
+                    long chainCost = chainBaseCosts[i] + index;
+                    boolean computed = index > maxChainIndices[i];
+                    // the chain is kept while it isn't longer
+                    assertEquals(chainCost > computedCosts[i], computed, segment + " " + index + " uses the " +
+                            (computed ? "computed offset" : "chain") + ", the chain takes " + chainCost +
+                            " words and the computed offset " + computedCosts[i]);
+                    assertEquals(computed ? computedCosts[i] : chainCost, costs[i], segment + " " + index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the words and cycles of the prologues of functions with 0 to 64 locals against the cost table of
+     * CodeWriter.usesPrologueLoop, and runs them on a stack that isn't zero, checking that they push exactly their
+     * locals, set to 0.
+     */
+    @Test
+    public void prologueCosts() throws IOException {
+        long noLocalsCycles = runPrologue(0).getCycles();
+        for (int nVars = 0; nVars <= MAX_LOCALS; nVars++) {
+            List<String> prologue = functionBody(TranslatorOptions.defaults(), nVars, codeWriter -> {
+            });
+            long words = prologue.stream().filter(line -> !line.startsWith("(")).count();
+            boolean loop = nVars > CodeWriter.MAX_UNROLLED_LOCALS;
+            assertEquals(loop, CodeWriter.usesPrologueLoop(nVars), nVars + " locals");
+            long unrolledWords = nVars == 0 ? 0 : nVars <= 3 ? 3L * nVars + 1 : 2L * nVars + 4;
+            assertEquals(loop ? 9 : unrolledWords, words, nVars + " locals");
+
+            HackEmulator emulator = runPrologue(nVars);
+            assertEquals(loop ? 5L * nVars + 4 : unrolledWords, emulator.getCycles() - noLocalsCycles,
+                    nVars + " locals");
+            assertEquals(STACK + nVars, emulator.peek(0), nVars + " locals");
+            for (int address = STACK; address <= STACK + MAX_LOCALS; address++) {
+                assertEquals(address < STACK + nVars ? 0 : -1, emulator.peek(address), nVars + " locals at " + address);
+            }
+        }
+    }
+
+    /**
+     * Runs functions with 0, 16, 17 and 64 locals, unrolled and looped prologues at their limits, after one that left
+     * -1 in the words their locals take, checking that their locals are 0 and that SP is back where it was after each
+     * call.
+     */
+    @Test
+    public void functionsZeroTheirLocals() throws Exception {
+        int[] localCounts = {0, 16, 17, 64};
+        StringBuilder sys = new StringBuilder("function Sys.init 0\n");
+        StringBuilder main = new StringBuilder("function Main.dirty " + MAX_LOCALS + "\n");
+        for (int i = 0; i < MAX_LOCALS; i++) {
+            main.append("push constant 1\nneg\npop local ").append(i).append('\n');
+        }
+        main.append("push constant 0\nreturn\n");
+        for (int nVars : localCounts) {
+            sys.append("call Main.dirty 0\npop temp 0\ncall Main.f").append(nVars).append(" 0\npop static ")
+                    .append(nVars).append('\n');
+            // 1 if every local is 0
+            main.append("function Main.f").append(nVars).append(' ').append(nVars).append("\npush constant 0\n");
+            for (int i = 0; i < nVars; i++) {
+                main.append("push local ").append(i).append("\nor\n");
+            }
+            main.append("push constant 0\neq\nneg\nreturn\n");
+        }
+        sys.append("label END\ngoto END\n");
+        File program = TestPrograms.write(this.directory, "Locals", Map.of("Sys", sys.toString(),
+                "Main", main.toString()));
+        for (String flags : new String[]{"", "-O --stack-cache"}) {
+            HackAssembler assembler = TestPrograms.assemble(program, flags.isEmpty() ? new String[0] :
+                    flags.split(" "));
+            HackEmulator emulator = new HackEmulator(assembler.getRom());
+            assertTrue(emulator.run(100_000), flags);
+            for (int nVars : localCounts) {
+                assertEquals(1, TestPrograms.peekStatic(emulator, assembler, "Sys." + nVars),
+                        "[" + flags + "] " + nVars + " locals");
+            }
+            // Sys.init has no locals and nothing left on its stack
+            assertEquals(emulator.peek(1), emulator.peek(0), flags);
+        }
+    }
+
+    /**
+     * Checks that the stack cache computes the same as writing every value to the stack, with if-goto on a cached top,
+     * labels right after a cached value and pops to computed offsets, with and without a cached value (R13 and R14).
+     */
+    @Test
+    public void stackCacheComputesTheSame() throws Exception {
+        String sys = """
+                function Sys.init 1
+                push constant 2200
+                pop pointer 1
+                push constant 2
+                call Main.run 1
+                pop local 0
+                push local 0
+                push constant 0
+                call Main.sign 1
+                push constant 5
+                call Main.sign 1
+                add
+                pop static 0
+                push local 0
+                push constant 9
+                label END
+                goto END
+                """;
+        String main = """
+                function Main.run 24
+                push argument 0
+                push constant 10
+                label AFTER_PUSH
+                add
+                pop local 0
+                label LOOP
+                push local 2
+                push constant 1
+                add
+                pop local 2
+                push local 1
+                push local 2
+                add
+                pop local 1
+                push local 2
+                push constant 10
+                lt
+                if-goto LOOP
+                push local 1
+                pop local 20
+                push local 0
+                neg
+                pop local 23
+                push local 20
+                label SPILLED
+                pop local 21
+                push constant 77
+                pop local 8
+                push constant 2100
+                pop pointer 0
+                push local 21
+                pop this 30
+                push local 23
+                pop that 12
+                push that 12
+                push this 30
+                eq
+                pop temp 3
+                push that 12
+                push local 8
+                gt
+                if-goto POSITIVE
+                push constant 1
+                pop temp 4
+                label POSITIVE
+                push argument 0
+                pop argument 0
+                push local 8
+                pop this 15
+                push local 1
+                push local 23
+                sub
+                return
+                function Main.sign 0
+                push argument 0
+                if-goto NONZERO
+                push constant 1
+                return
+                label NONZERO
+                push constant 2
+                return
+                """;
+        TestPrograms.assertEquivalent(this.directory, "StackCache", Map.of("Sys", sys, "Main", main), "",
+                "--stack-cache", "-O", "-O --stack-cache", "--compare shared --stack-cache",
+                "--compare auto -O --stack-cache", "--shared-call-return", "--shared-call-return --stack-cache -O");
+    }
+
+    /**
+     * Checks the words --shared-call-return reports as saved: the files' savings less the shared routines make up the
+     * total, which is what the program shrinks by.
+     */
+    @Test
+    public void sharedCallReturnReport() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        int inlinedWords = TestPrograms.assemble(program).getRom().length;
+        String reports = TestPrograms.translate(program, "--shared-call-return");
+        int sharedWords = TestPrograms.assemble(program, "--shared-call-return").getRom().length;
+
+        Matcher file = Pattern.compile("(?m)^(\\S+): (\\d+) calls, (\\d+) returns, (\\d+) ROM words saved$")
+                .matcher(reports);
+        Map<String, Integer> calls = new HashMap<>();
+        int saved = 0;
+        while (file.find()) {
+            calls.put(file.group(1), Integer.parseInt(file.group(2)));
+            saved += Integer.parseInt(file.group(4));
+        }
+        // Sys.init is called by the bootstrap code, Main.count twice by Sys.init
+        assertEquals(Map.of("$bootstrap", 1, "Sys", 2, "Main", 0), calls);
+        Matcher total = Pattern.compile("total: (-?\\d+) ROM words saved \\(including shared routines\\)")
+                .matcher(reports);
+        assertTrue(total.find(), reports);
+        assertEquals(saved - CodeWriter.SHARED_ROUTINES_WORDS, Integer.parseInt(total.group(1)), reports);
+        assertEquals(inlinedWords - sharedWords, Integer.parseInt(total.group(1)), reports);
+    }
+
+    /**
+     * Checks the code written for constant pushes: 0, 1 and -1 go straight into the new stack slot, "push constant 1;
+     * add" increments the top of the stack in place, a constant popped into a segment is stored without the stack,
+     * and an if-goto on a constant becomes a goto or nothing.
+     */
+    @Test
+    public void specialisesConstantPushes() throws IOException {
+        TranslatorOptions options = TranslatorOptions.defaults();
+        for (int value : new int[]{0, 1, -1}) {
+            assertEquals(List.of("@SP", "M=M+1", "A=M-1", "M=" + value), functionBody(options, codeWriter ->
+                    codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, value)));
+        }
+        assertEquals(List.of("@SP", "A=M-1", "M=M+1"), functionBody(options, codeWriter -> {
+            codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, 1);
+            codeWriter.writeArithmetic(CodeWriter.ArithmeticCommand.ADD);
+        }));
+        assertEquals(List.of("@17", "D=A", "@LCL", "A=M", "A=A+1", "A=A+1", "M=D"), functionBody(options,
+                codeWriter -> {
+                    codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, 17);
+                    codeWriter.writePushPop(Parser.CommandType.C_POP, CodeWriter.Segment.LOCAL, 2);
+                }));
+        assertEquals(List.of("@Main.3", "M=-1"), functionBody(options, codeWriter -> {
+            codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, -1);
+            codeWriter.writePushPop(Parser.CommandType.C_POP, CodeWriter.Segment.STATIC, 3);
+        }));
+        assertEquals(List.of("@Main.f$TARGET", "0;JMP"), functionBody(options, codeWriter -> {
+            codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, 3);
+            codeWriter.writeIf("TARGET");
+        }));
+        assertEquals(List.of(), functionBody(options, codeWriter -> {
+            codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, 0);
+            codeWriter.writeIf("TARGET");
+        }));
+    }
+
+    /**
+     * Checks that folded and specialised constant pushes compute the same as the operations on values read from RAM,
+     * in particular gt and lt at the edges of 16-bit overflow, which the code written for them decides by the sign of
+     * the wrapped difference X - Y.
+     */
+    @Test
+    public void constantFoldingComputesTheSame() throws Exception {
+        List<List<String>> cases = new ArrayList<>();
+        String[] binary = {"add", "sub", "and", "or", "eq", "gt", "lt"};
+        for (int[] operands : EDGE_OPERANDS) {
+            for (String operation : binary) {
+                // both constant, constant Y only, neither constant
+                cases.add(List.of(
+                        pushValue(operands[0], true) + pushValue(operands[1], true) + operation + "\n",
+                        pushValue(operands[0], false) + pushValue(operands[1], true) + operation + "\n",
+                        pushValue(operands[0], false) + pushValue(operands[1], false) + operation + "\n"));
+            }
+        }
+        for (int value : new int[]{0, 1, -1, 2, -2, 32767, -32768, 20000}) {
+            cases.add(List.of(pushValue(value, true), pushValue(value, false)));
+            cases.add(List.of(pushValue(value, true) + "neg\n", pushValue(value, false) + "neg\n"));
+            cases.add(List.of(pushValue(value, true) + "not\n", pushValue(value, false) + "not\n"));
+            cases.add(List.of(pushValue(value, true) + "pop local 1\npush local 1\n",
+                    pushValue(value, false) + "pop local 1\npush local 1\n"));
+        }
+
+        // the results are popped into THAT, from RESULTS on
+        StringBuilder sys = new StringBuilder("function Sys.init 2\npush constant " + RESULTS + "\npop pointer 1\n");
+        int result = 0;
+        for (List<String> variants : cases) {
+            for (String variant : variants) {
+                sys.append(variant).append("pop that ").append(result++).append('\n');
+            }
+        }
+        // if-goto on a constant, taken or not, against the same condition from RAM
+        for (int condition : new int[]{0, 1, -1}) {
+            for (boolean constant : new boolean[]{true, false}) {
+                sys.append(pushValue(condition, constant)).append("if-goto TAKEN").append(result).append('\n')
+                        .append("push constant 10\npop that ").append(result).append('\n')
+                        .append("goto END").append(result).append('\n')
+                        .append("label TAKEN").append(result).append('\n')
+                        .append("push constant 20\npop that ").append(result).append('\n')
+                        .append("label END").append(result).append('\n');
+                result++;
+            }
+        }
+        sys.append("label HALT\ngoto HALT\n");
+
+        File program = TestPrograms.write(this.directory, "Folding", Map.of("Sys", sys.toString()));
+        for (String flags : new String[]{"", "-O", "--stack-cache", "--stack-cache -O", "--compare shared",
+                "--compare shared --stack-cache"}) {
+            HackAssembler assembler = TestPrograms.assemble(program, flags.isEmpty() ? new String[0] :
+                    flags.split(" "));
+            HackEmulator emulator = new HackEmulator(assembler.getRom());
+            assertTrue(emulator.run(100_000), flags);
+            int first = RESULTS;
+            for (List<String> variants : cases) {
+                for (int i = 1; i < variants.size(); i++) {
+                    assertEquals(emulator.peek(first), emulator.peek(first + i),
+                            "[" + flags + "] " + variants.get(i) + "instead of " + variants.get(0));
+                }
+                first += variants.size();
+            }
+            for (int condition = 0; condition < 3; condition++) {
+                assertEquals(emulator.peek(first), emulator.peek(first + 1), "[" + flags + "] if-goto");
+                first += 2;
+            }
+        }
+    }
+
+    /**
+     * @param constant if false, the value goes through temp 0, so it is read from RAM instead of being folded
+     * @return the commands pushing a 16-bit value, from a single pushed constant
+     */
+    private static String pushValue(int value, boolean constant) {
+        String push;
+        if (value >= 0) {
+            push = "push constant " + value + "\n";
+        } else if (value == Short.MIN_VALUE) {
+            push = "push constant " + Short.MAX_VALUE + "\nnot\n";
+        } else {
+            push = "push constant " + -value + "\nneg\n";
+        }
+        return constant ? push : push + "pop temp 0\npush temp 0\n";
+    }
+
+    /**
+     * @return the instructions written for the commands in a function of Main, before peephole optimization
+     */
+    private static List<String> functionBody(TranslatorOptions options, Commands commands) throws IOException {
+        return functionBody(options, 0, commands);
+    }
+
+    /**
+     * @return the instructions written for the prologue of a function of Main with nVars locals and the commands in
+     * it, before peephole optimization
+     */
+    private static List<String> functionBody(TranslatorOptions options, int nVars, Commands commands)
+            throws IOException {
+        CodeWriter codeWriter = CodeWriter.fragment(options);
+        codeWriter.setFileName("Main");
+        codeWriter.writeFunction("Main.f", nVars);
+        commands.write(codeWriter);
+        codeWriter.writeLabel("END"); // writes out pending constants
+        List<String> lines = codeWriter.getFragmentText().lines().toList();
+        return lines.subList(lines.indexOf("(Main.f)") + 1, lines.indexOf("(Main.f$END)"));
+    }
+
+    /**
+     * Runs the prologue of a function with nVars locals, with SP at STACK and the words from there set to -1.
+     *
+     * @return the emulator, halted
+     */
+    private static HackEmulator runPrologue(int nVars) throws IOException {
+        HackAssembler assembler = new HackAssembler();
+        List.of("@" + STACK, "D=A", "@SP", "M=D").forEach(assembler::add);
+        functionBody(TranslatorOptions.defaults(), nVars, codeWriter -> {
+        }).forEach(assembler::add);
+        List.of("(HALT)", "@HALT", "0;JMP").forEach(assembler::add);
+        HackEmulator emulator = new HackEmulator(assembler.getRom());
+        for (int address = STACK; address <= STACK + MAX_LOCALS; address++) {
+            emulator.poke(address, -1);
+        }
+        assertTrue(emulator.run(10_000));
+        return emulator;
+    }
+
+    /**
+     * @return the words a push or pop of the segment and index emits, before peephole optimization. With the stack
+     * cache, the value is loaded into D first, so a pop is written as a cached pop
+     */
+    private static long addressingWords(TranslatorOptions options, Parser.CommandType command,
+                                        CodeWriter.Segment segment, int index) throws IOException {
+        try (CodeWriter codeWriter = new CodeWriter(OutputStream.nullOutputStream(), options)) {
+            codeWriter.setFileName("Sys");
+            codeWriter.writeFunction("Sys.init", 0);
+            if (options.isStackCache()) {
+                codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.STATIC, 0);
+            }
+            long before = codeWriter.getWrittenInstructions();
+            codeWriter.writePushPop(command, segment, index);
+            return codeWriter.getWrittenInstructions() - before;
+        }
+    }
+
+    private interface Commands {
+        void write(CodeWriter codeWriter) throws IOException;
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CommandListTest {
+
+    @Test
+    public void appendsCommandsAsTheirRecords() {
+        List<VmCommand> commands = List.of(
+                new VmCommand.Function("Main.main", 2),
+                new VmCommand.Push(CodeWriter.Segment.CONSTANT, 7),
+                new VmCommand.Push(CodeWriter.Segment.STATIC, 3, "Math"),
+                new VmCommand.Pop(CodeWriter.Segment.LOCAL, 1),
+                new VmCommand.Pop(CodeWriter.Segment.STATIC, 0, "Math"),
+                new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.EQ),
+                new VmCommand.Label("WHILE_EXP0"),
+                new VmCommand.Goto("WHILE_EXP0"),
+                new VmCommand.IfGoto("IF_TRUE0"),
+                new VmCommand.IfGoto("IF_FALSE0", true),
+                new VmCommand.Call("Math.multiply", 2),
+                new VmCommand.Return());
+        CommandList list = new CommandList(new CommandList.Symbols());
+        commands.forEach(list::add);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < list.size(); i++) {
+            text.setLength(0);
+            assertEquals(commands.get(i).toString(), list.appendTo(text, i).toString());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class HackWriterTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * --emit hack and --emit binary assemble in memory, without writing the .asm file, the same machine code as
+     * assembling the .asm file of an --emit asm translation.
+     */
+    @Test
+    public void emitsMachineCodeWithoutAsm() throws Exception {
+        File program = TestPrograms.write(this.directory, "Math", Map.of("Sys", TestPrograms.SYS,
+                "Math", TestPrograms.MATH));
+        Path asm = program.toPath().resolve("Math.asm");
+        for (String flags : new String[]{"", "-O --stack-cache"}) {
+            Files.deleteIfExists(asm);
+            TestPrograms.translate(program, withFlags(flags, "--emit", "hack"));
+            TestPrograms.translate(program, withFlags(flags, "--emit", "binary"));
+            assertFalse(Files.exists(asm), flags);
+
+            short[] rom = TestPrograms.assemble(program, withFlags(flags)).getRom();
+            assertEquals(TestPrograms.hackText(rom), Files.readString(program.toPath().resolve("Math.hack")), flags);
+            assertArrayEquals(packed(rom), Files.readAllBytes(program.toPath().resolve("Math.bin")), flags);
+        }
+    }
+
+    /**
+     * With --keep-asm, --emit hack also writes the .asm file, the same as an --emit asm translation, and the machine
+     * code is that of the .asm file.
+     */
+    @Test
+    public void keepsAsm() throws Exception {
+        File program = TestPrograms.write(this.directory, "Math", Map.of("Sys", TestPrograms.SYS,
+                "Math", TestPrograms.MATH));
+        Path asm = program.toPath().resolve("Math.asm");
+        for (String flags : new String[]{"", "-O --stack-cache"}) {
+            TestPrograms.translate(program, withFlags(flags));
+            String expected = Files.readString(asm);
+            Files.delete(asm);
+
+            TestPrograms.translate(program, withFlags(flags, "--emit", "hack", "--keep-asm"));
+            assertEquals(expected, Files.readString(asm), flags);
+            assertEquals(TestPrograms.hackText(HackAssembler.assemble(asm).getRom()),
+                    Files.readString(program.toPath().resolve("Math.hack")), flags);
+        }
+    }
+
+    /**
+     * HackWriter resolves the labels and functions that are used before the text defining them is written, and passes
+     * the text on unchanged.
+     */
+    @Test
+    public void resolvesForwardReferences() throws IOException {
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        try (CodeWriter codeWriter = new CodeWriter(asm, TranslatorOptions.defaults())) {
+            writeFunctions(codeWriter);
+        }
+        HackAssembler assembler = new HackAssembler();
+        asm.toString(StandardCharsets.US_ASCII).lines().forEach(assembler::add);
+
+        ByteArrayOutputStream hack = new ByteArrayOutputStream();
+        ByteArrayOutputStream keptAsm = new ByteArrayOutputStream();
+        try (CodeWriter codeWriter = new CodeWriter(new HackWriter(Channels.newChannel(hack), false,
+                new OutputStreamWriter(keptAsm, StandardCharsets.US_ASCII)), TranslatorOptions.defaults())) {
+            writeFunctions(codeWriter);
+        }
+        assertEquals(TestPrograms.hackText(assembler.getRom()), hack.toString(StandardCharsets.US_ASCII));
+        assertEquals(asm.toString(StandardCharsets.US_ASCII), keptAsm.toString(StandardCharsets.US_ASCII));
+    }
+
+    // Main.first jumps forward to its own label and calls Main.second, defined after it
+    private static void writeFunctions(CodeWriter codeWriter) throws IOException {
+        codeWriter.setFileName("Main");
+        codeWriter.writeFunction("Main.first", 0);
+        codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.ARGUMENT, 0);
+        codeWriter.writeIf("SKIP");
+        codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.ARGUMENT, 0);
+        codeWriter.writeCall("Main.second", 1);
+        codeWriter.writeReturn();
+        codeWriter.writeLabel("SKIP");
+        codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.CONSTANT, 0);
+        codeWriter.writeReturn();
+        codeWriter.writeFunction("Main.second", 0);
+        codeWriter.writePushPop(Parser.CommandType.C_PUSH, CodeWriter.Segment.ARGUMENT, 0);
+        codeWriter.writeReturn();
+    }
+
+    private static String[] withFlags(String flags, String... more) {
+        String[] spaced = flags.isEmpty() ? new String[0] : flags.split(" ");
+        String[] args = new String[spaced.length + more.length];
+        System.arraycopy(spaced, 0, args, 0, spaced.length);
+        System.arraycopy(more, 0, args, spaced.length, more.length);
+        return args;
+    }
+
+    // the words of the machine code, big-endian, as --emit binary writes them
+    private static byte[] packed(short[] rom) {
+        ByteBuffer words = ByteBuffer.allocate(rom.length * 2);
+        for (short word : rom) {
+            words.putShort(word);
+        }
+        return words.array();
+    }
+}
@@ -0,0 +1,209 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class JumpOptimizerTest {
+
+    /**
+     * A conditional jump to a label followed by a goto jumps to the goto's target, through a chain of gotos but not
+     * around a loop of them. The labels of the chain and its gotos after the return are then dropped.
+     */
+    @Test
+    public void threadsJumps() throws IOException {
+        JumpOptimizer optimizer = new JumpOptimizer();
+        assertEquals(List.of(
+                "function Main.f 0",
+                "label LOOP",
+                "push argument 0",
+                "if-goto LOOP",
+                "push argument 1",
+                "if-goto SPIN",
+                "push constant 0",
+                "return",
+                "label SPIN",
+                "goto SPIN"
+        ), optimize(optimizer, """
+                function Main.f 0
+                label LOOP
+                push argument 0
+                if-goto FIRST
+                push argument 1
+                if-goto SPIN
+                push constant 0
+                return
+                label FIRST
+                goto SECOND
+                label SECOND
+                goto LOOP
+                label SPIN
+                goto SPIN
+                """));
+        assertEquals("jumps: 2 threaded, 0 inverted, 0 removed, 2 unreachable commands and 2 labels removed\n",
+                optimizer.getReport());
+    }
+
+    /**
+     * "if-goto L1, goto L2, label L1" becomes "if-zero-goto L2", and "if-zero-goto L1, goto L2, label L1", e.g. left by
+     * inverting a negated comparison, becomes "if-goto L2".
+     */
+    @Test
+    public void invertsJumpsOverGotos() throws IOException {
+        JumpOptimizer optimizer = new JumpOptimizer();
+        assertEquals(List.of(
+                "function Main.f 0",
+                "push argument 0",
+                "if-zero-goto FALSE",
+                "push constant 1",
+                "return",
+                "label FALSE",
+                "push argument 1",
+                "push constant 0",
+                "eq",
+                "if-goto ZERO",
+                "push constant 2",
+                "return",
+                "label ZERO",
+                "push constant 0",
+                "return"
+        ), optimize(optimizer, """
+                function Main.f 0
+                push argument 0
+                if-goto TRUE
+                goto FALSE
+                label TRUE
+                push constant 1
+                return
+                label FALSE
+                push argument 1
+                push constant 0
+                eq
+                not
+                if-goto NONZERO
+                goto ZERO
+                label NONZERO
+                push constant 2
+                return
+                label ZERO
+                push constant 0
+                return
+                """));
+        assertEquals("jumps: 0 threaded, 3 inverted, 0 removed, 0 unreachable commands and 2 labels removed\n",
+                optimizer.getReport());
+    }
+
+    /**
+     * "not, if-goto L" after a comparison, which is either 0 or -1, becomes "if-zero-goto L". After any other command
+     * the not is kept, since not of a value other than 0 or -1 is not 0 either.
+     */
+    @Test
+    public void invertsNegatedComparisons() throws IOException {
+        JumpOptimizer optimizer = new JumpOptimizer();
+        assertEquals(List.of(
+                "function Main.f 0",
+                "push argument 0",
+                "push constant 0",
+                "gt",
+                "if-zero-goto END",
+                "push argument 0",
+                "not",
+                "if-goto END",
+                "push constant 1",
+                "return",
+                "label END",
+                "push constant 0",
+                "return"
+        ), optimize(optimizer, """
+                function Main.f 0
+                push argument 0
+                push constant 0
+                gt
+                not
+                if-goto END
+                push argument 0
+                not
+                if-goto END
+                push constant 1
+                return
+                label END
+                push constant 0
+                return
+                """));
+        assertEquals("jumps: 0 threaded, 1 inverted, 0 removed, 0 unreachable commands and 0 labels removed\n",
+                optimizer.getReport());
+    }
+
+    /**
+     * Drops a goto to the label following it, the commands after a return that no label leads to, and the labels no
+     * jump refers to. A function without jumps is left alone.
+     */
+    @Test
+    public void removesUnreachableCodeAndUnusedLabels() throws IOException {
+        JumpOptimizer optimizer = new JumpOptimizer();
+        assertEquals(List.of(
+                "function Main.f 0",
+                "push argument 0",
+                "if-goto END",
+                "push constant 1",
+                "pop static 0",
+                "label END",
+                "push constant 0",
+                "return"
+        ), optimize(optimizer, """
+                function Main.f 0
+                label UNUSED
+                push argument 0
+                if-goto END
+                goto NEXT
+                label NEXT
+                push constant 1
+                pop static 0
+                label END
+                push constant 0
+                return
+                push constant 2
+                pop static 1
+                """));
+        assertEquals("jumps: 0 threaded, 0 inverted, 1 removed, 2 unreachable commands and 2 labels removed\n",
+                optimizer.getReport());
+
+        Program program = read("""
+                function Main.g 0
+                push constant 0
+                return
+                """);
+        assertFalse(optimizer.run(program));
+    }
+
+    /**
+     * Optimizes the functions of a file.
+     *
+     * @return the commands of the functions, as VmCommand.toString writes them
+     */
+    private static List<String> optimize(JumpOptimizer optimizer, String file) throws IOException {
+        Program program = read(file);
+        optimizer.run(program);
+        List<String> commands = new ArrayList<>();
+        for (VmFunction function : program.getFunctions()) {
+            CommandList functionCommands = function.getCommands();
+            for (int i = 0; i < functionCommands.size(); i++) {
+                commands.add(functionCommands.get(i).toString());
+            }
+        }
+        return commands;
+    }
+
+    private static Program read(String file) throws IOException {
+        Program program = new Program();
+        try (Parser parser = new Parser(new ByteArrayInputStream(file.getBytes(StandardCharsets.US_ASCII)))) {
+            program.read(parser, "Main");
+        }
+        return program;
+    }
+}
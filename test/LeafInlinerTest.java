@@ -0,0 +1,150 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+public class LeafInlinerTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Checks that inlining leaf functions computes the same as calling them, with leaves that return in several places,
+     * loop through labels of their own, use locals and statics, and change THIS or THAT, which the caller must get
+     * back. Leaves are called from Sys.init and from a function with values on the stack below the arguments.
+     */
+    @Test
+    public void inliningComputesTheSame() throws Exception {
+        String sys = """
+                function Sys.init 2
+                push constant 2100
+                pop pointer 0
+                push constant 2200
+                pop pointer 1
+                push constant 11
+                pop this 0
+                push constant 12
+                pop that 0
+                push constant 3
+                push constant 8
+                call Math.max 2
+                push constant 9
+                push constant 4
+                call Math.max 2
+                add
+                pop local 0
+                push constant 4
+                call Math.sumTo 1
+                push constant 6
+                call Math.sumTo 1
+                add
+                pop local 1
+                push constant 2150
+                push constant 42
+                call Point.setX 2
+                pop temp 0
+                push this 0
+                pop static 0
+                push constant 2250
+                push constant 3
+                push constant 77
+                call Memory.set 3
+                pop temp 1
+                push that 0
+                pop static 1
+                call Counter.inc 0
+                call Counter.inc 0
+                add
+                pop static 2
+                push local 0
+                push local 1
+                push constant 7
+                call Main.nested 1
+                label END
+                goto END
+                """;
+        String main = """
+                function Main.nested 1
+                push argument 0
+                push argument 0
+                push constant 2
+                call Math.max 2
+                call Math.sumTo 1
+                add
+                pop local 0
+                push constant 2160
+                push local 0
+                call Point.setX 2
+                pop temp 2
+                push local 0
+                return
+                """;
+        String math = """
+                function Math.max 0
+                push argument 0
+                push argument 1
+                gt
+                if-goto FIRST
+                push argument 1
+                return
+                label FIRST
+                push argument 0
+                return
+                function Math.sumTo 1
+                label LOOP
+                push argument 0
+                if-goto ADD
+                push local 0
+                return
+                label ADD
+                push local 0
+                push argument 0
+                add
+                pop local 0
+                push argument 0
+                push constant 1
+                sub
+                pop argument 0
+                goto LOOP
+                """;
+        String point = """
+                function Point.setX 0
+                push argument 0
+                pop pointer 0
+                push argument 1
+                pop this 0
+                push constant 0
+                return
+                """;
+        String memory = """
+                function Memory.set 0
+                push argument 0
+                push argument 1
+                add
+                pop pointer 1
+                push argument 2
+                pop that 0
+                push argument 0
+                push argument 1
+                add
+                return
+                """;
+        String counter = """
+                function Counter.inc 1
+                push static 0
+                push constant 1
+                add
+                pop local 0
+                push local 0
+                pop static 0
+                push local 0
+                return
+                """;
+        TestPrograms.assertEquivalent(this.directory, "Inlining", Map.of("Sys", sys, "Main", main, "Math", math,
+                        "Point", point, "Memory", memory, "Counter", counter), "", "--inline 20", "--inline 8",
+                "--inline 20 -O", "--inline 20 --stack-cache", "--inline 20 --trim-frames",
+                "--inline 20 --compare shared", "--inline 20 --shared-call-return",
+                "--inline 20 --shared-call-return --stack-cache -O");
+    }
+}
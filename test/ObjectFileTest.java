@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ObjectFileTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Compiles a file into an object file, and links it into a program as assembly and as machine code.
+     */
+    @Test
+    public void linksObject() throws Exception {
+        File os = compile("Os", TestPrograms.MATH);
+        File program = TestPrograms.write(this.directory, "Program", Map.of("Sys", TestPrograms.SYS));
+        HackAssembler assembler = TestPrograms.assemble(program, "--link", os.getPath());
+        assertResults(assembler);
+
+        // linked by HackWriter, the object's code is the same as in the assembly
+        TestPrograms.translate(program, "--link", os.getPath(), "--emit", "hack");
+        assertEquals(TestPrograms.hackText(assembler.getRom()),
+                Files.readString(program.toPath().resolve("Program.hack")));
+    }
+
+    /**
+     * An input file replaces the object of the same name, e.g. one compiled before the file was changed.
+     */
+    @Test
+    public void inputReplacesObject() throws Exception {
+        // Math.max of the object returns the smaller argument
+        File os = compile("Os", TestPrograms.MATH.replace("push argument 1\ngt\n", "push argument 1\nlt\n"));
+        File program = TestPrograms.write(this.directory, "Program", Map.of("Sys", TestPrograms.SYS));
+        HackAssembler linked = TestPrograms.assemble(program, "--link", os.getPath());
+        HackEmulator emulator = new HackEmulator(linked.getRom());
+        assertTrue(emulator.run(10_000));
+        assertEquals(3, TestPrograms.peekStatic(emulator, linked, "Sys.1"));
+
+        Files.writeString(program.toPath().resolve("Math.vm"), TestPrograms.MATH);
+        assertResults(TestPrograms.assemble(program, "--link", os.getPath()));
+    }
+
+    /**
+     * An object compiled with other code generation options than the program is rejected, since they call each other
+     * and share routines in different ways.
+     */
+    @Test
+    public void rejectsObjectWithOtherOptions() throws Exception {
+        File os = compile("Os", TestPrograms.MATH, "-O", "--shared-call-return");
+        File program = TestPrograms.write(this.directory, "Program", Map.of("Sys", TestPrograms.SYS));
+        IllegalArgumentException rejected = assertThrows(IllegalArgumentException.class,
+                () -> TestPrograms.translate(program, "--link", os.getPath(), "-O"));
+        assertTrue(rejected.getMessage().contains("shared-call-return=true"), rejected.getMessage());
+
+        TestPrograms.translate(program, "--link", os.getPath(), "-O", "--shared-call-return");
+        assertResults(HackAssembler.assemble(program.toPath().resolve("Program.asm")));
+    }
+
+    /**
+     * Compiles Math.vm into a directory of its own.
+     *
+     * @return the directory, with Math.vmo
+     */
+    private File compile(String name, String math, String... flags) throws Exception {
+        File os = TestPrograms.write(this.directory, name, Map.of("Math", math));
+        String[] args = new String[flags.length + 2];
+        System.arraycopy(flags, 0, args, 0, flags.length);
+        args[flags.length] = "--emit";
+        args[flags.length + 1] = "object";
+        TestPrograms.translate(os, args);
+        assertTrue(new File(os, "Math" + ObjectFile.EXTENSION).isFile());
+        return os;
+    }
+
+    private static void assertResults(HackAssembler assembler) {
+        HackEmulator emulator = new HackEmulator(assembler.getRom());
+        assertTrue(emulator.run(10_000));
+        for (int i = 0; i < TestPrograms.SYS_RESULTS.length; i++) {
+            assertEquals(TestPrograms.SYS_RESULTS[i], TestPrograms.peekStatic(emulator, assembler, "Sys." + i));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutlinerTest {
+
+    // functions that repeat the same pushes, pops and arithmetic, as compiled Jack code does
+    private static final Map<String, String> PROGRAM = Map.of("Sys", """
+            function Sys.init 0
+            push constant 2100
+            pop pointer 0
+            push constant 2200
+            pop pointer 1
+            push constant 6
+            push constant 7
+            call Main.multiply 2
+            pop static 0
+            push constant 10
+            call Main.fill 1
+            pop static 1
+            push constant 10
+            call Main.sum 1
+            pop static 2
+            push constant 3
+            push constant 9
+            call Main.max 2
+            push constant 9
+            push constant 3
+            call Main.max 2
+            add
+            pop static 3
+            label HALT
+            goto HALT
+            """, "Main", """
+            function Main.multiply 1
+            label WHILE_EXP0
+            push argument 1
+            push constant 0
+            gt
+            not
+            if-goto WHILE_END0
+            push local 0
+            push argument 0
+            add
+            pop local 0
+            push argument 1
+            push constant 1
+            sub
+            pop argument 1
+            goto WHILE_EXP0
+            label WHILE_END0
+            push local 0
+            return
+            function Main.fill 1
+            label WHILE_EXP0
+            push local 0
+            push argument 0
+            lt
+            not
+            if-goto WHILE_END0
+            push local 0
+            push local 0
+            add
+            push constant 2250
+            push local 0
+            add
+            pop pointer 1
+            pop that 0
+            push local 0
+            push constant 1
+            add
+            pop local 0
+            goto WHILE_EXP0
+            label WHILE_END0
+            push local 0
+            return
+            function Main.sum 2
+            label WHILE_EXP0
+            push local 0
+            push argument 0
+            lt
+            not
+            if-goto WHILE_END0
+            push constant 2250
+            push local 0
+            add
+            pop pointer 1
+            push that 0
+            push local 1
+            add
+            pop local 1
+            push local 0
+            push constant 1
+            add
+            pop local 0
+            goto WHILE_EXP0
+            label WHILE_END0
+            push local 1
+            pop this 0
+            push local 1
+            return
+            function Main.max 0
+            push argument 0
+            push argument 1
+            gt
+            if-goto IF_TRUE0
+            push argument 1
+            pop this 1
+            push argument 1
+            return
+            label IF_TRUE0
+            push argument 0
+            pop this 1
+            push argument 0
+            return
+            """);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Checks that outlined code computes the same, with a budget small enough that everything worth outlining is, and
+     * with the shared routines and the stack cache, which also use R15 and D.
+     */
+    @Test
+    public void outliningComputesTheSame() throws Exception {
+        TestPrograms.assertEquivalent(this.directory, "Outlining", PROGRAM, "", "--outline 150", "--outline 150 -O",
+                "--outline 150 --stack-cache", "--outline 150 --compare shared",
+                "--outline 150 --shared-call-return -O");
+    }
+
+    /**
+     * Checks the report: the program shrinks from the size it assembles to without outlining to the size it assembles
+     * to with it, through fewer sequences when the budget is reached early, and still computes its results.
+     */
+    @Test
+    public void reportsOutlinedSequences() throws Exception {
+        File program = TestPrograms.write(this.directory, "Outlining", PROGRAM);
+        int words = TestPrograms.assemble(program).getRom().length;
+
+        int[] everything = outline(program, 150, words);
+        assertTrue(everything[0] > 0 && everything[1] >= 2 * everything[0], () -> "outlined " + everything[0] +
+                " sequences at " + everything[1] + " call sites");
+        int[] reached = outline(program, words - 50, words);
+        assertTrue(reached[0] > 0 && reached[0] < everything[0], () -> "outlined " + reached[0] + " of " +
+                everything[0] + " sequences");
+
+        HackAssembler assembler = TestPrograms.assemble(program, "--outline", "150");
+        HackEmulator emulator = new HackEmulator(assembler.getRom());
+        assertTrue(emulator.run(100_000));
+        assertEquals(42, TestPrograms.peekStatic(emulator, assembler, "Sys.0"));
+        assertEquals(10, TestPrograms.peekStatic(emulator, assembler, "Sys.1"));
+        assertEquals(90, TestPrograms.peekStatic(emulator, assembler, "Sys.2"));
+        assertEquals(18, TestPrograms.peekStatic(emulator, assembler, "Sys.3"));
+    }
+
+    /**
+     * Outlines the program with the budget and checks the sizes in the report.
+     *
+     * @param words ROM words of the program without outlining
+     * @return the sequences outlined and their call sites
+     */
+    private static int[] outline(File program, int budget, int words) throws Exception {
+        String reports = TestPrograms.translate(program, "--outline", String.valueOf(budget));
+        Matcher report = Pattern.compile("outline: (\\d+) sequences into subroutines at (\\d+) call sites, " +
+                "(\\d+) -> (\\d+) ROM words \\(budget " + budget + "(, not reached)?\\)").matcher(reports);
+        assertTrue(report.find(), reports);
+        int outlinedWords = TestPrograms.assemble(program, "--outline", String.valueOf(budget)).getRom().length;
+        assertEquals(words, Integer.parseInt(report.group(3)), reports);
+        assertEquals(outlinedWords, Integer.parseInt(report.group(4)), reports);
+        assertEquals(outlinedWords > budget, report.group(5) != null, reports);
+        return new int[]{Integer.parseInt(report.group(1)), Integer.parseInt(report.group(2))};
+    }
+}
@@ -0,0 +1,211 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParserTest {
+
+    // every command keyword, between comments, blank lines, tabs and a CRLF line terminator
+    private static final String EVERY_COMMAND = """
+            // Main.vm
+            function Main.main 2
+
+            \tpush constant 7   // comment after a command
+            push local 0\r
+            pop that 5
+            add
+            sub
+            neg
+              eq
+            gt
+            lt
+            and
+            or
+            not
+            // label loop
+            label WHILE_EXP0
+            goto WHILE_EXP0
+            if-goto IF_TRUE0
+            call Math.multiply 2
+            return
+            """;
+    private static final List<VmCommand> EVERY_COMMAND_PARSED = List.of(
+            new VmCommand.Function("Main.main", 2),
+            new VmCommand.Push(CodeWriter.Segment.CONSTANT, 7),
+            new VmCommand.Push(CodeWriter.Segment.LOCAL, 0),
+            new VmCommand.Pop(CodeWriter.Segment.THAT, 5),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.ADD),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.SUB),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.NEG),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.EQ),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.GT),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.LT),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.AND),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.OR),
+            new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.NOT),
+            new VmCommand.Label("WHILE_EXP0"),
+            new VmCommand.Goto("WHILE_EXP0"),
+            new VmCommand.IfGoto("IF_TRUE0"),
+            new VmCommand.Call("Math.multiply", 2),
+            new VmCommand.Return());
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Parses every command keyword, from a stream and from a mapped file, skipping comments and blank lines.
+     */
+    @Test
+    public void parsesEveryCommand() throws IOException {
+        assertEquals(EVERY_COMMAND_PARSED, parse(EVERY_COMMAND));
+        Path file = this.directory.resolve("Main.vm");
+        Files.writeString(file, EVERY_COMMAND);
+        try (Parser parser = new Parser(file)) {
+            assertEquals(EVERY_COMMAND_PARSED, commands(parser));
+        }
+    }
+
+    /**
+     * Reads commands through advance, which returns arithmetic commands as their own first argument.
+     */
+    @Test
+    public void readsArguments() throws IOException {
+        try (Parser parser = parser("push static 3\ngt\nfunction Main.main 2\nreturn\n")) {
+            parser.advance();
+            assertEquals(Parser.CommandType.C_PUSH, parser.commandType());
+            assertEquals("static", parser.arg1());
+            assertEquals(3, parser.arg2());
+            assertEquals("push static 3", parser.getCurrentLine());
+            parser.advance();
+            assertEquals(Parser.CommandType.C_ARITHMETIC, parser.commandType());
+            assertEquals("gt", parser.arg1());
+            assertThrows(RuntimeException.class, parser::arg2);
+            parser.advance();
+            assertEquals("Main.main", parser.arg1());
+            assertEquals(2, parser.arg2());
+            parser.advance();
+            assertEquals(Parser.CommandType.C_RETURN, parser.commandType());
+            assertThrows(RuntimeException.class, parser::arg1);
+            assertFalse(parser.hasMoreLines());
+        }
+    }
+
+    /**
+     * Words that hash like a keyword, or that are one with characters added or missing, are not commands.
+     */
+    @Test
+    public void rejectsUnknownCommands() {
+        for (String command : new String[]{"ad", "adds", "pop2 local 0", "Push constant 1", "lable X", "retrun", "a",
+                "if-got X", "xor"}) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> parse(command + "\n"));
+            assertTrue(e.getMessage().startsWith("Unknown command: "), e::getMessage);
+        }
+    }
+
+    /**
+     * The last line may end without a line terminator, and may be only a comment.
+     */
+    @Test
+    public void parsesLastLineWithoutNewline() throws IOException {
+        assertEquals(List.of(new VmCommand.Push(CodeWriter.Segment.CONSTANT, 1),
+                new VmCommand.Pop(CodeWriter.Segment.LOCAL, 0)), parse("push constant 1\npop local 0"));
+        assertEquals(List.of(new VmCommand.Push(CodeWriter.Segment.CONSTANT, 1)), parse("push constant 1\n// end"));
+        assertEquals(List.of(new VmCommand.Push(CodeWriter.Segment.CONSTANT, 1)), parse("push constant 1 // end"));
+        assertEquals(List.of(), parse(""));
+        assertEquals(List.of(), parse("// only a comment"));
+        assertEquals(List.of(), parse("\n\n  \r\n"));
+
+        Path file = this.directory.resolve("NoNewline.vm");
+        Files.writeString(file, "label A\ngoto A");
+        try (Parser parser = new Parser(file)) {
+            assertEquals(List.of(new VmCommand.Label("A"), new VmCommand.Goto("A")), commands(parser));
+        }
+    }
+
+    /**
+     * hasMoreLines looks ahead without consuming the command, and a line longer than the buffer is read whole.
+     */
+    @Test
+    public void looksAhead() throws IOException {
+        String longLabel = "L".repeat(100_000);
+        try (Parser parser = parser("\n// first\nlabel " + longLabel + "\n\nreturn\n\n// end\n")) {
+            assertTrue(parser.hasMoreLines());
+            assertTrue(parser.hasMoreLines());
+            parser.advance();
+            assertEquals(longLabel, parser.arg1());
+            assertTrue(parser.hasMoreLines());
+            parser.advance();
+            assertEquals(Parser.CommandType.C_RETURN, parser.commandType());
+            assertFalse(parser.hasMoreLines());
+            assertFalse(parser.hasMoreLines());
+        }
+    }
+
+    /**
+     * Segment, label and function names are the same instance every time they are read.
+     */
+    @Test
+    public void internsNames() throws IOException {
+        List<VmCommand> commands = parse("push local 0\npop local 1\nlabel LOOP\ngoto LOOP\ncall Main.f 0\n" +
+                "function Main.f 0\n");
+        assertSame(((VmCommand.Label) commands.get(2)).label(), ((VmCommand.Goto) commands.get(3)).label());
+        assertSame(((VmCommand.Call) commands.get(4)).function(), ((VmCommand.Function) commands.get(5)).name());
+        try (Parser parser = parser("push local 0\npop local 1\n")) {
+            parser.advance();
+            String local = parser.arg1();
+            parser.advance();
+            assertSame(local, parser.arg1());
+        }
+    }
+
+    /**
+     * Standard input is parsed as it arrives: a command is returned as soon as its line is complete, before the input
+     * ends.
+     */
+    @Test
+    public void streamsInput() throws IOException {
+        PipedOutputStream input = new PipedOutputStream();
+        try (Parser parser = new Parser(new PipedInputStream(input))) {
+            input.write("push constant 1\npush con".getBytes(StandardCharsets.US_ASCII));
+            input.flush();
+            assertTrue(parser.hasMoreLines());
+            parser.advance();
+            assertEquals("push constant 1", parser.getCurrentLine());
+
+            input.write("stant 2\nadd".getBytes(StandardCharsets.US_ASCII));
+            input.close();
+            assertEquals(List.of(new VmCommand.Push(CodeWriter.Segment.CONSTANT, 2),
+                    new VmCommand.Arithmetic(CodeWriter.ArithmeticCommand.ADD)), commands(parser));
+        }
+    }
+
+    private static Parser parser(String input) {
+        return new Parser(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static List<VmCommand> parse(String input) throws IOException {
+        try (Parser parser = parser(input)) {
+            return commands(parser);
+        }
+    }
+
+    private static List<VmCommand> commands(Parser parser) {
+        List<VmCommand> commands = new ArrayList<>();
+        parser.commands().forEachRemaining(commands::add);
+        return commands;
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PassManagerTest {
+
+    /**
+     * An analysis is computed once, and again after a rewrite changed the program, but not after one that didn't.
+     */
+    @Test
+    public void keepsAnalysesUntilRewriteChangesProgram() {
+        Program program = new Program();
+        program.addFunction("Main", "Main.main").getCommands().add(new VmCommand.Call("Main.helper", 0));
+        program.addFunction("Main", "Main.helper").getCommands().add(new VmCommand.Return());
+        program.addFunction("Main", "Main.unused").getCommands().add(new VmCommand.Return());
+        AtomicInteger runs = new AtomicInteger();
+        PassManager.Analysis<Integer> functions = passManager -> {
+            runs.incrementAndGet();
+            return passManager.getAnalysis(CallGraph.ANALYSIS).size();
+        };
+
+        PassManager passManager = new PassManager(program);
+        assertEquals(3, passManager.getAnalysis(functions));
+        assertEquals(3, passManager.getAnalysis(functions));
+        assertEquals(1, runs.get());
+
+        passManager.addRewrite(p -> false).run();
+        assertEquals(3, passManager.getAnalysis(functions));
+        assertEquals(1, runs.get());
+
+        passManager.addRewrite(new PassManager.PruneFunctions(Set.of("Main.main", "Main.helper"))).run();
+        assertEquals(2, passManager.getAnalysis(functions));
+        assertEquals(2, runs.get());
+        assertTrue(passManager.getAnalysis(CallGraph.ANALYSIS).callees("Main.main").contains("Main.helper"));
+    }
+}
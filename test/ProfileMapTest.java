@@ -0,0 +1,168 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class ProfileMapTest {
+
+    // Main.loop calls Main.leaf 7 * 10000 times, more than a 16-bit counter holds
+    private static final Map<String, String> PROGRAM = Map.of("Sys", """
+            function Sys.init 0
+            call Main.loop 0
+            pop temp 0
+            push constant 20
+            call Main.sum 1
+            pop static 0
+            push constant 5
+            call Main.outer 1
+            pop static 1
+            label HALT
+            goto HALT
+            """, "Main", """
+            function Main.loop 2
+            push constant 7
+            pop local 0
+            label OUTER
+            push constant 10000
+            pop local 1
+            label INNER
+            call Main.leaf 0
+            pop temp 0
+            push local 1
+            push constant 1
+            sub
+            pop local 1
+            push local 1
+            if-goto INNER
+            push local 0
+            push constant 1
+            sub
+            pop local 0
+            push local 0
+            if-goto OUTER
+            push constant 0
+            return
+            function Main.leaf 0
+            push constant 1
+            return
+            function Main.sum 0
+            push argument 0
+            if-goto RECURSE
+            push constant 0
+            return
+            label RECURSE
+            push argument 0
+            push argument 0
+            push constant 1
+            sub
+            call Main.sum 1
+            add
+            return
+            function Main.outer 1
+            label LOOP
+            push argument 0
+            if-goto CALL
+            push local 0
+            return
+            label CALL
+            push argument 0
+            call Main.inner 1
+            push local 0
+            add
+            pop local 0
+            push argument 0
+            push constant 1
+            sub
+            pop argument 0
+            goto LOOP
+            function Main.inner 0
+            push argument 0
+            push argument 0
+            add
+            return
+            """);
+
+    @TempDir
+    Path directory;
+
+    /**
+     * The 32-bit counters carry into their high word past 65535.
+     */
+    @Test
+    public void countersWrapPast16Bits() throws Exception {
+        File program = TestPrograms.write(this.directory, "Profiled", PROGRAM);
+        String reports = TestPrograms.translate(program, "--profile", "--run", "50000000");
+        assertTrue(reports.contains("halted"), reports);
+
+        // function, entries, calls, returns, self cycles, %, cumulative cycles
+        List<String> lines = reports.lines().toList();
+        String[] leaf = find(lines, "Main.leaf");
+        assertEquals("70000", leaf[1], reports);
+        assertEquals("70000", leaf[3], reports);
+        assertEquals("70000", find(lines, "Main.loop")[2], reports);
+        assertEquals("21", find(lines, "Main.sum")[1], reports);
+
+        // the symbol map gives the counters to any emulator: 70000 is 4464 + 1 * 65536
+        List<String> map = Files.readAllLines(program.toPath().resolve("Profiled.map"));
+        int entries = Integer.parseInt(find(map, "Main.leaf")[2]);
+        HackAssembler assembler = HackAssembler.assemble(program.toPath().resolve("Profiled.asm"));
+        HackEmulator emulator = new HackEmulator(assembler.getRom());
+        assertTrue(emulator.run(50_000_000));
+        assertEquals(4464, emulator.peek(entries));
+        assertEquals(1, emulator.peek(entries + 1));
+    }
+
+    /**
+     * A function's cumulative cycles are its own and those of the functions it called, counted once for recursion.
+     */
+    @Test
+    public void reportsCumulativeCycles() throws Exception {
+        File program = TestPrograms.write(this.directory, "Profiled", PROGRAM);
+        for (String flags : new String[]{"--profile --run 50000000", "--profile -O --run 50000000"}) {
+            String reports = TestPrograms.translate(program, flags.split(" "));
+            List<String> lines = reports.lines().toList();
+            long total = Long.parseLong(find(lines, "run:")[1]);
+            // leaves, and a recursive function whose calls all run below its first one
+            for (String function : new String[]{"Main.leaf", "Main.inner", "Main.sum"}) {
+                assertEquals(self(lines, function), cumulative(lines, function), () -> flags + ": " + reports);
+            }
+            assertEquals(self(lines, "Main.loop") + cumulative(lines, "Main.leaf"), cumulative(lines, "Main.loop"),
+                    () -> flags + ": " + reports);
+            assertEquals(self(lines, "Main.outer") + cumulative(lines, "Main.inner"),
+                    cumulative(lines, "Main.outer"), () -> flags + ": " + reports);
+            // Sys.init runs from the end of the bootstrap code until the program halts
+            assertEquals(total - self(lines, "(bootstrap)"), cumulative(lines, "Sys.init"),
+                    () -> flags + ": " + reports);
+            assertEquals(total, cumulative(lines, "(bootstrap)"), () -> flags + ": " + reports);
+        }
+    }
+
+    private static long self(List<String> report, String function) {
+        return Long.parseLong(find(report, function)[4]);
+    }
+
+    private static long cumulative(List<String> report, String function) {
+        return Long.parseLong(find(report, function)[6]);
+    }
+
+    /**
+     * @return the fields of the line starting with the function
+     */
+    private static String[] find(List<String> lines, String function) {
+        for (String line : lines) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].equals(function)) {
+                return fields;
+            }
+        }
+        return fail(function + " not found in " + lines);
+    }
+}
@@ -0,0 +1,306 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * VM programs for the tests, and translating them the way the command line does.
+ */
+final class TestPrograms {
+
+    /**
+     * Labels repeated in every function, as the Jack compiler writes them. Sys.init leaves 2 * 3 + 2 * 4 in static 0.
+     */
+    static final Map<String, String> REPEATED_LABELS = Map.of("Sys", """
+            function Sys.init 0
+            push constant 3
+            call Main.count 1
+            push constant 4
+            call Main.count 1
+            add
+            pop static 0
+            label WHILE_EXP0
+            goto WHILE_EXP0
+            """, "Main", """
+            function Main.count 1
+            label WHILE_EXP0
+            push argument 0
+            if-goto IF_TRUE0
+            push local 0
+            return
+            label IF_TRUE0
+            push local 0
+            push constant 2
+            add
+            pop local 0
+            push argument 0
+            push constant 1
+            sub
+            pop argument 0
+            goto WHILE_EXP0
+            function Main.zero 0
+            label WHILE_EXP0
+            label IF_TRUE0
+            push constant 0
+            return
+            """);
+    static final int REPEATED_LABELS_RESULT = 14;
+    /**
+     * A class of loops and comparisons, called by {@link #SYS}.
+     */
+    static final String MATH = """
+            function Math.multiply 1
+            push constant 0
+            pop local 0
+            label WHILE_EXP0
+            push argument 1
+            push constant 0
+            gt
+            not
+            if-goto WHILE_END0
+            push local 0
+            push argument 0
+            add
+            pop local 0
+            push argument 1
+            push constant 1
+            sub
+            pop argument 1
+            goto WHILE_EXP0
+            label WHILE_END0
+            push local 0
+            return
+            function Math.max 0
+            push argument 0
+            push argument 1
+            gt
+            if-goto IF_TRUE0
+            goto IF_FALSE0
+            label IF_TRUE0
+            push argument 0
+            return
+            label IF_FALSE0
+            push argument 1
+            return
+            function Math.sum 1
+            label WHILE_EXP0
+            push argument 0
+            push constant 0
+            eq
+            if-goto WHILE_END0
+            push local 0
+            push argument 0
+            add
+            pop local 0
+            push argument 0
+            push constant 1
+            sub
+            pop argument 0
+            goto WHILE_EXP0
+            label WHILE_END0
+            push local 0
+            return
+            """;
+    /**
+     * Leaves 6 * 7, max(3, 9) and 1 + ... + 10, computed by {@link #MATH}, in statics 0 to 2.
+     */
+    static final String SYS = """
+            function Sys.init 0
+            push constant 6
+            push constant 7
+            call Math.multiply 2
+            pop static 0
+            push constant 3
+            push constant 9
+            call Math.max 2
+            pop static 1
+            push constant 10
+            call Math.sum 1
+            pop static 2
+            label END
+            goto END
+            """;
+    static final int[] SYS_RESULTS = {42, 9, 55};
+    // RAM compared from the heap base, where the checked programs point THIS and THAT
+    private static final int HEAP_BASE = 2048;
+    private static final int HEAP_WORDS = 256;
+
+    private TestPrograms() {
+    }
+
+    /**
+     * Writes a program directory.
+     *
+     * @param files VM file name without extension -> its commands
+     * @return the directory, named after the program
+     */
+    static File write(Path directory, String name, Map<String, String> files) throws IOException {
+        File program = directory.resolve(name).toFile();
+        if (!program.mkdir()) {
+            throw new IOException("Can't create " + program);
+        }
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Files.writeString(new File(program, file.getKey() + ".vm").toPath(), file.getValue());
+        }
+        return program;
+    }
+
+    /**
+     * Translates a program directory into the output file next to its .vm files, without the translation cache.
+     *
+     * @param flags the options other than the input
+     * @return the reports
+     * @throws IllegalArgumentException if the program can't be translated with the options
+     */
+    static String translate(File program, String... flags) throws Exception {
+        List<String> args = new ArrayList<>(List.of("--no-cache"));
+        args.addAll(List.of(flags));
+        return translateCached(program, args.toArray(new String[0]));
+    }
+
+    /**
+     * Translates a program directory into the output file next to its .vm files, with the translation cache unless
+     * the flags include --no-cache, on as many threads as --threads says.
+     *
+     * @param flags the options other than the input
+     * @return the reports
+     * @throws IllegalArgumentException if the program can't be translated with the options
+     */
+    static String translateCached(File program, String... flags) throws Exception {
+        List<String> args = new ArrayList<>(List.of(flags));
+        args.add(program.getPath());
+        TranslatorOptions options = TranslatorOptions.parse(args.toArray(new String[0]));
+        if (options == null) {
+            throw new IllegalArgumentException("Invalid options " + args);
+        }
+        ByteArrayOutputStream reports = new ByteArrayOutputStream();
+        ForkJoinPool pool = new ForkJoinPool(options.getThreads());
+        try {
+            if (!VMTranslator.translate(options, pool, new PrintStream(reports, true, StandardCharsets.UTF_8))) {
+                throw new IllegalArgumentException("Can't translate " + program + " with " + args);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return reports.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Runs the translator as "java VMTranslator args" does, with the input as standard input.
+     *
+     * @return what it printed to standard output and to standard error
+     */
+    static String[] runMain(String input, String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        InputStream systemIn = System.in;
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        try {
+            System.setIn(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+            System.setOut(new PrintStream(out, true, StandardCharsets.US_ASCII));
+            System.setErr(new PrintStream(err, true, StandardCharsets.US_ASCII));
+            VMTranslator.main(args);
+        } finally {
+            System.setIn(systemIn);
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+        }
+        return new String[]{out.toString(StandardCharsets.US_ASCII), err.toString(StandardCharsets.US_ASCII)};
+    }
+
+    /**
+     * Translates a program directory into its .asm file and assembles it.
+     *
+     * @param flags the options other than the input
+     */
+    static HackAssembler assemble(File program, String... flags) throws Exception {
+        translate(program, flags);
+        return HackAssembler.assemble(new File(program, program.getName() + ".asm").toPath());
+    }
+
+    /**
+     * @return the value of a static variable, e.g. "Sys.0", 0 if the program doesn't use it
+     */
+    static int peekStatic(HackEmulator emulator, HackAssembler assembler, String variable) {
+        Integer address = assembler.getVariables().get(variable);
+        return address == null ? 0 : emulator.peek(address);
+    }
+
+    /**
+     * @return the machine code as a .hack file, one 16 digit binary number per line
+     */
+    static String hackText(short[] rom) {
+        StringBuilder text = new StringBuilder();
+        for (short word : rom) {
+            String bits = Integer.toBinaryString(word & 0xffff);
+            text.append("0".repeat(16 - bits.length())).append(bits).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Translates and runs a program with each set of flags, checking that it leaves the machine in the same state as
+     * with the first.
+     *
+     * @param files    VM file name without extension -> its commands
+     * @param flagSets the options other than the input, separated by spaces
+     */
+    static void assertEquivalent(Path directory, String name, Map<String, String> files, String... flagSets)
+            throws Exception {
+        File program = write(directory, name, files);
+        String expected = null;
+        for (String flags : flagSets) {
+            HackAssembler assembler = assemble(program, flags.isEmpty() ? new String[0] : flags.split(" "));
+            HackEmulator emulator = new HackEmulator(assembler.getRom());
+            assertTrue(emulator.run(1_000_000), () -> name + " doesn't halt with [" + flags + "]");
+            String state = machineState(emulator, assembler);
+            if (expected == null) {
+                expected = state;
+            } else {
+                assertEquals(expected, state, name + " with [" + flags + "] instead of [" + flagSets[0] + "]");
+            }
+        }
+    }
+
+    /**
+     * @return SP, LCL, ARG, THIS, THAT, the temp segment, the stack from the locals of the running function, the static
+     * variables by name, without the translator's own ones starting with "$", and the start of the heap
+     */
+    private static String machineState(HackEmulator emulator, HackAssembler assembler) {
+        int[] registers = new int[13];
+        for (int address = 0; address < registers.length; address++) {
+            registers[address] = emulator.peek(address);
+        }
+        List<Integer> stack = new ArrayList<>();
+        for (int address = emulator.peek(1); address < emulator.peek(0); address++) {
+            stack.add(emulator.peek(address));
+        }
+        Map<String, Integer> statics = new TreeMap<>();
+        for (Map.Entry<String, Integer> variable : assembler.getVariables().entrySet()) {
+            if (!variable.getKey().startsWith("$")) {
+                statics.put(variable.getKey(), emulator.peek(variable.getValue()));
+            }
+        }
+        int[] heap = new int[HEAP_WORDS];
+        for (int i = 0; i < heap.length; i++) {
+            heap[i] = emulator.peek(HEAP_BASE + i);
+        }
+        return "registers " + Arrays.toString(registers) + " stack " + stack + " statics " + statics + " heap " +
+                Arrays.toString(heap);
+    }
+}
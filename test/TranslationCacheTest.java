@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TranslationCacheTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A second build takes every file from the cache and writes the same program.
+     */
+    @Test
+    public void secondBuildHitsCache() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        assertCacheReport("0 hits, 2 misses", TestPrograms.translateCached(program));
+        String first = readAsm(program);
+        assertCacheReport("2 hits, 0 misses", TestPrograms.translateCached(program));
+        assertEquals(first, readAsm(program));
+        assertEquals(List.of("Main", "Sys"), entries(program).stream().map(entry -> entry.split("\\.")[0])
+                .toList());
+    }
+
+    /**
+     * Editing a file only translates that file again, and replaces its entry.
+     */
+    @Test
+    public void editedFileMisses() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        TestPrograms.translateCached(program);
+        List<String> before = entries(program);
+        Path main = program.toPath().resolve("Main.vm");
+        Files.writeString(main, Files.readString(main).replace("push constant 2", "push constant 3"));
+
+        assertCacheReport("1 hits, 1 misses", TestPrograms.translateCached(program));
+        List<String> after = entries(program);
+        assertEquals(2, after.size(), after::toString);
+        assertNotEquals(before.get(0), after.get(0)); // Main
+        assertEquals(before.get(1), after.get(1)); // Sys
+        String cached = readAsm(program);
+        TestPrograms.translate(program);
+        assertEquals(readAsm(program), cached);
+    }
+
+    /**
+     * An option that changes the generated code misses, one that doesn't hits.
+     */
+    @Test
+    public void codeGenerationOptionsMiss() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        TestPrograms.translateCached(program);
+        assertCacheReport("2 hits, 0 misses", TestPrograms.translateCached(program, "--threads", "1"));
+        assertCacheReport("0 hits, 2 misses", TestPrograms.translateCached(program, "-O"));
+        assertCacheReport("0 hits, 2 misses", TestPrograms.translateCached(program, "--compare", "shared"));
+        String cached = readAsm(program);
+        TestPrograms.translate(program, "--compare", "shared");
+        assertEquals(readAsm(program), cached);
+    }
+
+    private static void assertCacheReport(String expected, String reports) {
+        assertTrue(reports.lines().anyMatch(("cache: " + expected)::equals), () -> "expected cache: " + expected +
+                " in " + reports);
+    }
+
+    private static String readAsm(File program) throws Exception {
+        return Files.readString(program.toPath().resolve(program.getName() + ".asm"));
+    }
+
+    /**
+     * @return the names of the cache entries, sorted
+     */
+    private static List<String> entries(File program) {
+        String[] names = new File(program, TranslationCache.DIRECTORY_NAME).list((dir, name) ->
+                name.endsWith(".frag"));
+        assertTrue(names != null, program::toString);
+        Arrays.sort(names);
+        return List.of(names);
+    }
+}
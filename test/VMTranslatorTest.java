@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VMTranslatorTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * --run assembles the program in memory, which fails on a label defined twice, so labels repeated across
+     * functions must be scoped to their function.
+     */
+    @Test
+    public void runsLabelsRepeatedAcrossFunctions() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        for (String flags : new String[]{"--run 1000", "-O --run 1000"}) {
+            String reports = TestPrograms.translate(program, flags.split(" "));
+            assertTrue(reports.contains("halted"), () -> "[" + flags + "] reports " + reports);
+            HackAssembler assembler = HackAssembler.assemble(new File(program, "Repeated.asm").toPath());
+            HackEmulator emulator = new HackEmulator(assembler.getRom());
+            assertTrue(emulator.run(1000), flags);
+            assertEquals(TestPrograms.REPEATED_LABELS_RESULT, TestPrograms.peekStatic(emulator, assembler, "Sys.0"),
+                    flags);
+        }
+    }
+
+    /**
+     * --prune drops Main.zero, which Sys.init never calls, and reports it.
+     */
+    @Test
+    public void prunesUnreachableFunctions() throws Exception {
+        File program = TestPrograms.write(this.directory, "Repeated", TestPrograms.REPEATED_LABELS);
+        String reports = TestPrograms.translate(program, "--prune");
+        List<String> lines = reports.lines().toList();
+        int pruned = lines.indexOf("pruned 1 of 3 functions");
+        assertTrue(pruned >= 0, reports);
+        assertEquals("  Main.zero (Main.vm)", lines.get(pruned + 1), reports);
+        String asm = Files.readString(program.toPath().resolve("Repeated.asm"));
+        assertFalse(asm.contains("Main.zero"), asm);
+        assertTrue(asm.contains("(Main.count)"), asm);
+
+        HackAssembler assembler = HackAssembler.assemble(program.toPath().resolve("Repeated.asm"));
+        HackEmulator emulator = new HackEmulator(assembler.getRom());
+        assertTrue(emulator.run(1000));
+        assertEquals(TestPrograms.REPEATED_LABELS_RESULT, TestPrograms.peekStatic(emulator, assembler, "Sys.0"));
+    }
+
+    /**
+     * Files translated concurrently are added in input order, and each file numbers its own labels, so the program is
+     * the same with any number of threads.
+     */
+    @Test
+    public void threadsDontChangeOutput() throws Exception {
+        Map<String, String> files = new HashMap<>();
+        StringBuilder sys = new StringBuilder("function Sys.init 0\n");
+        for (int i = 0; i < 12; i++) {
+            sys.append("push constant ").append(i).append("\ncall File").append(i).append(".run 1\npop static ")
+                    .append(i).append('\n');
+            files.put("File" + i, """
+                    function File%1$d.run 1
+                    label LOOP
+                    push argument 0
+                    push static 0
+                    gt
+                    if-goto DONE
+                    push static 0
+                    push constant 1
+                    add
+                    pop static 0
+                    goto LOOP
+                    label DONE
+                    push argument 0
+                    push constant %1$d
+                    eq
+                    call File%2$d.id 1
+                    return
+                    function File%1$d.id 0
+                    push argument 0
+                    return
+                    """.formatted(i, (i + 1) % 12));
+        }
+        files.put("Sys", sys.append("label HALT\ngoto HALT\n").toString());
+        File program = TestPrograms.write(this.directory, "Threads", files);
+        Path asm = program.toPath().resolve("Threads.asm");
+        for (String flags : new String[]{"", "-O --compare auto --shared-call-return --inline 10"}) {
+            List<String> args = new ArrayList<>(flags.isEmpty() ? List.of() : List.of(flags.split(" ")));
+            args.addAll(List.of("--threads", "1"));
+            TestPrograms.translate(program, args.toArray(new String[0]));
+            String expected = Files.readString(asm);
+            args.set(args.size() - 1, "8");
+            for (int run = 0; run < 5; run++) {
+                TestPrograms.translate(program, args.toArray(new String[0]));
+                assertEquals(expected, Files.readString(asm), "[" + flags + "] --threads 8");
+            }
+        }
+    }
+
+    /**
+     * With --compare auto, standard input shares a kind of comparison once the functions read so far have enough of
+     * them, and computes the same as with inlined comparisons.
+     */
+    @Test
+    public void standardInputChoosesComparisons() throws Exception {
+        StringBuilder program = new StringBuilder("""
+                function Sys.init 0
+                call Main.compare 0
+                pop temp 0
+                label END
+                goto END
+                function Main.compare 0
+                """);
+        for (int i = 0; i < 10; i++) {
+            // through temp 0, so the comparison isn't folded
+            program.append("push constant ").append(i).append("\npop temp 0\npush temp 0\npush constant 5\neq\n")
+                    .append("pop static ").append(i).append('\n');
+        }
+        program.append("push constant 0\nreturn\n");
+
+        String[] inline = translateStandardInput(program.toString());
+        assertFalse(inline[0].contains("($$EQ)"), inline[0]);
+        String[] auto = translateStandardInput(program.toString(), "--compare", "auto");
+        assertTrue(auto[0].contains("($$EQ)"), auto[0]);
+        assertTrue(auto[1].contains("shared eq: 10 sites"), auto[1]);
+        for (String asm : new String[]{inline[0], auto[0]}) {
+            HackAssembler assembler = new HackAssembler();
+            asm.lines().forEach(assembler::add);
+            HackEmulator emulator = new HackEmulator(assembler.getRom());
+            assertTrue(emulator.run(10_000));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i == 5 ? -1 : 0, TestPrograms.peekStatic(emulator, assembler, "Main." + i));
+            }
+        }
+    }
+
+    /**
+     * Translates standard input, as "java VMTranslator [flags] -" does.
+     *
+     * @return the program and the reports
+     */
+    private static String[] translateStandardInput(String input, String... flags) {
+        List<String> args = new ArrayList<>(List.of(flags));
+        args.add(TranslatorOptions.STANDARD_INPUT);
+        return TestPrograms.runMain(input, args.toArray(new String[0]));
+    }
+}